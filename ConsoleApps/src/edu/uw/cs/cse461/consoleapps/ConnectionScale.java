@@ -0,0 +1,154 @@
+package edu.uw.cs.cse461.consoleapps;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONObject;
+
+import edu.uw.cs.cse461.net.base.NetBase;
+import edu.uw.cs.cse461.net.base.NetLoadable.NetLoadableConsoleApp;
+import edu.uw.cs.cse461.net.tcpmessagehandler.TCPMessageHandler;
+import edu.uw.cs.cse461.service.EchoRPCService;
+import edu.uw.cs.cse461.service.EchoServiceBase;
+import edu.uw.cs.cse461.util.ConfigManager;
+import edu.uw.cs.cse461.util.SampledStatistic.ElapsedTime;
+import edu.uw.cs.cse461.util.SampledStatistic.ElapsedTimeInterval;
+
+/**
+ * Connection-scaling benchmark.  Opens N connections to a server and holds all of them open,
+ * then sends one echo request on every connection and waits for all the replies.  A server that
+ * dedicates a pool thread to each open connection answers only as many of them as it has threads;
+ * the rest time out.  Running this against servers configured with different *.executor and
+ * rpc.server.mode values compares how those modes scale.
+ * <p>
+ * Both the EchoTCPMessageHandler service and the RPC service (echorpc) can be targeted.
+ * The RPC connections ask for keep-alive, so they stay open between the handshake and the call.
+ *
+ * @author grahamb5
+ */
+public class ConnectionScale extends NetLoadableConsoleApp {
+	private static final String TAG="ConnectionScale";
+
+	// ConsoleApp's must have a constructor taking no arguments
+	public ConnectionScale() {
+		super("connectionscale");
+	}
+
+	@Override
+	public void run() {
+		try {
+			// Eclipse doesn't support System.console()
+			BufferedReader console = new BufferedReader(new InputStreamReader(System.in));
+			ConfigManager config = NetBase.theNetBase().config();
+
+			String targetIP = config.getProperty("net.server.ip");
+			if ( targetIP == null ) {
+				System.out.print("Enter the server's ip, or empty line to exit: ");
+				targetIP = console.readLine();
+				if ( targetIP == null || targetIP.trim().isEmpty() ) return;
+			}
+
+			System.out.print("Target (tcpmessagehandler or rpc): ");
+			String target = console.readLine();
+			if ( target == null || target.trim().isEmpty() ) return;
+			boolean rpc = target.trim().equalsIgnoreCase("rpc");
+
+			System.out.print("Enter the server's port, or empty line to exit: ");
+			String portStr = console.readLine();
+			if ( portStr == null || portStr.trim().isEmpty() ) return;
+			int port = Integer.parseInt( portStr );
+
+			System.out.print("Enter the number of connections: ");
+			int nConnections = Integer.parseInt(console.readLine().trim());
+
+			int socketTimeout = config.getAsInt("net.timeout.socket", 2000);
+
+			ElapsedTime.clear();
+			ElapsedTimeInterval result = scale(rpc, targetIP, port, socketTimeout, nConnections);
+			System.out.println(nConnections + " connections: " + String.format("%.2f msec for all replies (%d replies, %d failures)",
+					ElapsedTime.get("ConnectionScale_Round").mean(), result.nSamples(), result.nAborted()));
+			System.out.println(ElapsedTime.statString());
+		} catch (Exception e) {
+			System.out.println("ConnectionScale.run() caught exception: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Opens nConnections connections, then echoes once over each.  Replies are read in connection order,
+	 * so the sample recorded for each connection is how much longer its reply took than the previous one's;
+	 * the samples sum to the total time taken to collect every reply (key ConnectionScale_Round).
+	 * @return Reply times; a connection that couldn't be opened or answered counts as aborted
+	 */
+	public ElapsedTimeInterval scale(boolean rpc, String hostIP, int port, int timeout, int nConnections) {
+		List<TCPMessageHandler> handlers = new ArrayList<TCPMessageHandler>();
+		try {
+			ElapsedTime.start("ConnectionScale_Connect");
+			for ( int i=0; i<nConnections; i++ ) {
+				try {
+					TCPMessageHandler handler = new TCPMessageHandler(new Socket(hostIP, port));
+					handler.setTimeout(timeout);
+					handler.setNoDelay(true);
+					if ( rpc ) {
+						handler.sendMessage(rpcMessage("control").put("action", "connect")
+										.put("options", new JSONObject().put("connection", "keep-alive")));
+					}
+					handlers.add(handler);
+				} catch (Exception e) {
+					System.out.println("Connection " + i + " failed: " + e.getMessage());
+					ElapsedTime.start("ConnectionScale_Reply");
+					ElapsedTime.abort("ConnectionScale_Reply");
+				}
+			}
+			ElapsedTime.stop("ConnectionScale_Connect");
+
+			// Every connection is open (and, for RPC, has a handshake outstanding).  Fire the requests.
+			for ( TCPMessageHandler handler : handlers ) {
+				try {
+					if ( rpc ) {
+						JSONObject header = new JSONObject().put(EchoRPCService.HEADER_TAG_KEY, EchoServiceBase.HEADER_STR);
+						handler.sendMessage(rpcMessage("invoke").put("app", "echorpc").put("method", "echo")
+								.put("args", new JSONObject().put(EchoRPCService.HEADER_KEY, header).put(EchoRPCService.PAYLOAD_KEY, "")));
+					} else {
+						handler.sendMessage(EchoServiceBase.HEADER_STR);
+						handler.sendMessage("");
+					}
+				} catch (Exception e) {
+					// reported when we try to read the reply
+				}
+			}
+
+			ElapsedTime.start("ConnectionScale_Round");
+			for ( TCPMessageHandler handler : handlers ) {
+				ElapsedTime.start("ConnectionScale_Reply");
+				try {
+					if ( rpc ) {
+						JSONObject handshake = handler.readMessageAsJSONObject();
+						if ( !handshake.getString("type").equals("OK") ) throw new Exception("Handshake failed: " + handshake);
+						JSONObject reply = handler.readMessageAsJSONObject();
+						if ( !reply.getString("type").equals("OK") ) throw new Exception("Call failed: " + reply);
+					} else {
+						String headerStr = handler.readMessageAsString();
+						if ( !headerStr.equalsIgnoreCase(EchoServiceBase.RESPONSE_OKAY_STR) )
+							throw new Exception("Bad response header: '" + headerStr + "'");
+						handler.readMessageAsString();
+					}
+					ElapsedTime.stop("ConnectionScale_Reply");
+				} catch (Exception e) {
+					ElapsedTime.abort("ConnectionScale_Reply");
+				}
+			}
+			ElapsedTime.stop("ConnectionScale_Round");
+		} finally {
+			for ( TCPMessageHandler handler : handlers ) handler.close();
+		}
+		return ElapsedTime.get("ConnectionScale_Reply");
+	}
+
+	private static int mNextId = 0;
+	private static JSONObject rpcMessage(String type) throws Exception {
+		return new JSONObject().put("id", ++mNextId).put("host", NetBase.theNetBase().hostname()).put("type", type);
+	}
+}
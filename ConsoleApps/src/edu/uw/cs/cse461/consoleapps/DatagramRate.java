@@ -0,0 +1,140 @@
+package edu.uw.cs.cse461.consoleapps;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.uw.cs.cse461.net.base.NetBase;
+import edu.uw.cs.cse461.net.base.NetLoadable.NetLoadableConsoleApp;
+import edu.uw.cs.cse461.service.EchoServiceBase;
+import edu.uw.cs.cse461.util.ConfigManager;
+
+/**
+ * UDP packet rate benchmark.  Sends echo requests to the UDP port of the echoraw service from several
+ * client sockets at once, each keeping a window of requests outstanding and sending another as each
+ * reply arrives, and reports how many replies per second come back.
+ * <p>
+ * Each client socket is a separate flow, and a server running several sockets on its port
+ * (echoraw.udp.sockets, see ReusePort) spreads flows, not datagrams, across them.  So use at least as
+ * many flows as the server has sockets; comparing echoraw.udp.sockets=1 against one socket per core
+ * then shows how the packet rate scales with cores.
+ *
+ * @author grahamb5
+ */
+public class DatagramRate extends NetLoadableConsoleApp {
+	private static final String TAG="DatagramRate";
+
+	// Bytes of payload after the header in each request; it starts with the request's sequence number
+	private static final int PAYLOAD_LEN = 16;
+	// A flow that has heard nothing for this long assumes its outstanding requests were lost
+	private static final int LOSS_TIMEOUT = 100;
+
+	// ConsoleApp's must have a constructor taking no arguments
+	public DatagramRate() {
+		super("datagramrate");
+	}
+
+	@Override
+	public void run() {
+		try {
+			// Eclipse doesn't support System.console()
+			BufferedReader console = new BufferedReader(new InputStreamReader(System.in));
+			ConfigManager config = NetBase.theNetBase().config();
+
+			String targetIP = config.getProperty("net.server.ip");
+			if ( targetIP == null ) {
+				System.out.print("Enter the server's ip, or empty line to exit: ");
+				targetIP = console.readLine();
+				if ( targetIP == null || targetIP.trim().isEmpty() ) return;
+			}
+
+			System.out.print("Enter the echoraw service's UDP port, or empty line to exit: ");
+			String portStr = console.readLine();
+			if ( portStr == null || portStr.trim().isEmpty() ) return;
+			int port = Integer.parseInt( portStr.trim() );
+
+			System.out.print("Enter the number of flows (client sockets): ");
+			int nFlows = Integer.parseInt(console.readLine().trim());
+
+			System.out.print("Enter the number of requests each flow keeps outstanding: ");
+			int window = Integer.parseInt(console.readLine().trim());
+
+			System.out.print("Enter the number of seconds to run: ");
+			int seconds = Integer.parseInt(console.readLine().trim());
+
+			long replies = rate(targetIP, port, nFlows, window, seconds * 1000);
+			System.out.println(String.format("%d flows: %d replies in %d sec. = %.0f packets/sec.",
+					nFlows, replies, seconds, replies / (double)seconds));
+		} catch (Exception e) {
+			System.out.println("DatagramRate.run() caught exception: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Runs nFlows flows against hostIP:port for duration msec.
+	 * @return The number of replies received
+	 */
+	public long rate(String hostIP, int port, int nFlows, final int window, final long duration) throws Exception {
+		final InetSocketAddress server = new InetSocketAddress(hostIP, port);
+		final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(duration);
+		final AtomicLong replies = new AtomicLong();
+		List<Thread> flows = new ArrayList<Thread>();
+		for ( int i=0; i<nFlows; i++ ) {
+			Thread flow = new Thread() {
+				public void run() {
+					DatagramChannel channel = null;
+					try {
+						channel = DatagramChannel.open();
+						channel.connect(server);
+						channel.socket().setSoTimeout(LOSS_TIMEOUT);
+						ByteBuffer request = ByteBuffer.allocateDirect(EchoServiceBase.HEADER_LEN + PAYLOAD_LEN);
+						request.put(EchoServiceBase.HEADER_BYTES).position(request.capacity()).flip();
+						byte[] reply = new byte[request.capacity()];
+						ByteBuffer replyBuf = ByteBuffer.wrap(reply);
+						DatagramPacket replyPacket = new DatagramPacket(reply, reply.length);
+
+						long seq = 0;			// number of the next request
+						long windowStart = 0;	// requests numbered below this have been given up for lost
+						int outstanding = 0;
+						while ( System.nanoTime() < deadline ) {
+							while ( outstanding < window ) {
+								request.putLong(EchoServiceBase.HEADER_LEN, seq++);
+								request.rewind();
+								channel.write(request);
+								outstanding++;
+							}
+							try {
+								// the socket adaptor honors the timeout; the channel's own read() doesn't
+								channel.socket().receive(replyPacket);
+							} catch (SocketTimeoutException e) {
+								outstanding = 0;
+								windowStart = seq;
+								continue;
+							}
+							// a late reply to a request given up for lost neither counts nor frees a slot in the window
+							if ( replyPacket.getLength() < reply.length || replyBuf.getLong(EchoServiceBase.HEADER_LEN) < windowStart ) continue;
+							outstanding--;
+							replies.incrementAndGet();
+						}
+					} catch (Exception e) {
+						System.out.println("Flow caught " + e.getClass().getName() + " exception: " + e.getMessage());
+					} finally {
+						if ( channel != null ) try { channel.close(); } catch (Exception e) {}
+					}
+				}
+			};
+			flows.add(flow);
+			flow.start();
+		}
+		for ( Thread flow : flows ) flow.join();
+		return replies.get();
+	}
+}
@@ -0,0 +1,142 @@
+package edu.uw.cs.cse461.consoleapps;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+import edu.uw.cs.cse461.net.base.NetBase;
+import edu.uw.cs.cse461.net.base.NetLoadable.NetLoadableConsoleApp;
+import edu.uw.cs.cse461.net.tcpmessagehandler.TCPMessageHandler;
+import edu.uw.cs.cse461.util.ConfigManager;
+import edu.uw.cs.cse461.util.SampledStatistic.TransferRate;
+
+/**
+ * Receive-side throughput benchmark for TCPMessageHandler.  A local thread streams pre-framed messages
+ * over a loopback connection as fast as it can, in large writes, and the app reads them back with
+ * readMessageInto(), once with the read buffer disabled (one or more socket reads per length prefix
+ * and per message body, which is how TCPMessageHandler read before FrameDecoder) and once with
+ * the configured tcpmessagehandler.readbuffersize.  Small messages show the difference best.
+ *
+ * @author grahamb5
+ */
+public class FrameDecoderBench extends NetLoadableConsoleApp {
+	private static final String TAG="FrameDecoderBench";
+
+	private static final int DEFAULT_READ_BUFFER_SIZE = 16384;
+	// Frames are written to the socket in blocks of about this size
+	private static final int SEND_BLOCK_SIZE = 65536;
+
+	// ConsoleApp's must have a constructor taking no arguments
+	public FrameDecoderBench() {
+		super("framedecoderbench");
+	}
+
+	@Override
+	public void run() {
+		try {
+			// Eclipse doesn't support System.console()
+			BufferedReader console = new BufferedReader(new InputStreamReader(System.in));
+			ConfigManager config = NetBase.theNetBase().config();
+			int readBufferSize = config.getAsInt("tcpmessagehandler.readbuffersize", DEFAULT_READ_BUFFER_SIZE, 1);
+
+			System.out.print("Enter message size (bytes), or empty line to exit: ");
+			String sizeStr = console.readLine();
+			if ( sizeStr == null || sizeStr.trim().isEmpty() ) return;
+			int msgSize = Integer.parseInt(sizeStr.trim());
+
+			System.out.print("Enter number of messages per trial: ");
+			int nMessages = Integer.parseInt(console.readLine().trim());
+
+			System.out.print("Enter number of trials: ");
+			int nTrials = Integer.parseInt(console.readLine().trim());
+
+			TransferRate.clear();
+			for ( int trial=0; trial<nTrials; trial++ ) {
+				bench("FrameDecoderBench_unbuffered", 0, msgSize, nMessages);
+				bench("FrameDecoderBench_buffered_" + readBufferSize, readBufferSize, msgSize, nMessages);
+			}
+			System.out.println(TransferRate.statString());
+		} catch (Exception e) {
+			System.out.println("FrameDecoderBench.run() caught exception: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Runs one trial: sends nMessages messages of msgSize bytes over loopback and reads them back
+	 * through a TCPMessageHandler with the given read buffer size.  The result is recorded as
+	 * a TransferRate sample under key.
+	 */
+	public void bench(String key, int readBufferSize, final int msgSize, final int nMessages) throws IOException {
+		ServerSocket serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+		Socket sock = null;
+		TCPMessageHandler handler = null;
+		try {
+			final int port = serverSocket.getLocalPort();
+			Thread sender = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					send(port, msgSize, nMessages);
+				}
+			}, TAG + "-sender");
+			sender.setDaemon(true);
+			sender.start();
+
+			sock = serverSocket.accept();
+			handler = new TCPMessageHandler(sock, readBufferSize);
+			handler.setMaxReadLength(msgSize);
+			handler.setTimeout(NetBase.theNetBase().config().getAsInt("net.timeout.socket", 5000));
+			ByteBuffer buf = ByteBuffer.allocate(msgSize);
+
+			TransferRate.start(key);
+			try {
+				for ( int i=0; i<nMessages; i++ ) {
+					buf.clear();
+					handler.readMessageInto(buf);
+				}
+				TransferRate.stop(key, (long)nMessages * msgSize);
+			} catch (IOException e) {
+				TransferRate.abort(key, 0);
+				throw e;
+			}
+		} finally {
+			if ( handler != null ) handler.close();
+			else if ( sock != null ) sock.close();
+			serverSocket.close();
+		}
+	}
+
+	// Writes nMessages framed messages to the server, packing as many frames into each write as fit in a block.
+	private void send(int port, int msgSize, int nMessages) {
+		Socket sock = null;
+		try {
+			sock = new Socket(InetAddress.getLoopbackAddress(), port);
+			int frameSize = 4 + msgSize;
+			int framesPerBlock = Math.max(1, SEND_BLOCK_SIZE / frameSize);
+			byte[] block = new byte[framesPerBlock * frameSize];
+			for ( int f=0; f<framesPerBlock; f++ ) {
+				int off = f * frameSize;
+				block[off] = (byte)msgSize;
+				block[off+1] = (byte)(msgSize >>> 8);
+				block[off+2] = (byte)(msgSize >>> 16);
+				block[off+3] = (byte)(msgSize >>> 24);
+			}
+			OutputStream out = sock.getOutputStream();
+			int nSent = 0;
+			while ( nSent < nMessages ) {
+				int n = Math.min(framesPerBlock, nMessages - nSent);
+				out.write(block, 0, n * frameSize);
+				nSent += n;
+			}
+			out.flush();
+		} catch (IOException e) {
+			System.out.println("FrameDecoderBench sender caught exception: " + e.getMessage());
+		} finally {
+			if ( sock != null ) try { sock.close(); } catch (IOException e) { }
+		}
+	}
+}
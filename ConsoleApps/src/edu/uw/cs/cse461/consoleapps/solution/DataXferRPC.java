@@ -15,8 +15,10 @@ import edu.uw.cs.cse461.net.base.NetBase;
 import edu.uw.cs.cse461.net.base.NetLoadable.NetLoadableConsoleApp;
 import edu.uw.cs.cse461.net.rpc.RPCCall;
 import edu.uw.cs.cse461.net.tcpmessagehandler.TCPMessageHandler;
+import edu.uw.cs.cse461.service.DataXferRPCService;
 import edu.uw.cs.cse461.service.DataXferServiceBase;
 import edu.uw.cs.cse461.service.EchoRPCService;
+import edu.uw.cs.cse461.util.Base64;
 import edu.uw.cs.cse461.util.ConfigManager;
 import edu.uw.cs.cse461.util.SampledStatistic.ElapsedTime;
 import edu.uw.cs.cse461.util.SampledStatistic.TransferRate;
@@ -24,6 +26,8 @@ import edu.uw.cs.cse461.util.SampledStatistic.TransferRateInterval;
 
 public class DataXferRPC extends NetLoadableConsoleApp implements DataXferRPCInterface {
 
+	private static final String STREAM_STAT = DataXferServiceBase.HEADER_STR + "stream";
+
 	public DataXferRPC() {
 		super("dataxferrpc");
 	}
@@ -80,6 +84,17 @@ public class DataXferRPC extends NetLoadableConsoleApp implements DataXferRPCInt
 			System.out.println("\nTCP: xfer rate = " + String.format("%9.0f", xferStats.mean() * 1000.0) + " bytes/sec.");
 			System.out.println("TCP: failure rate = " + String.format("%5.1f", xferStats.failureRate()) +
 					" [" + xferStats.nAborted()+ "/" + xferStats.nTrials() + "]");
+			System.out.println("TCP: xfer time " + xferStats.timeHistogram() + " msec.");
+
+			//-----------------------------------------------------
+			// Streamed transfer
+			//-----------------------------------------------------
+			TransferRateInterval streamStats = DataXferStreamRate(header, server, targetPort, socketTimeout, nTrials);
+
+			System.out.println("\nStreamed: xfer rate = " + String.format("%9.0f", streamStats.mean() * 1000.0) + " bytes/sec.");
+			System.out.println("Streamed: failure rate = " + String.format("%5.1f", streamStats.failureRate()) +
+					" [" + streamStats.nAborted()+ "/" + streamStats.nTrials() + "]");
+			System.out.println("Streamed: xfer time " + streamStats.timeHistogram() + " msec.");
 
 			
 		} catch (Exception e) {
@@ -130,11 +145,48 @@ public class DataXferRPC extends NetLoadableConsoleApp implements DataXferRPCInt
 					EchoServiceBase.RESPONSE_OKAY_STR + "'");
 					*/
 		
-		// read response
-		resp = response.getString("data").getBytes();
+		// read response: dataxfer sends Base64 text, but a service that sends the raw bytes works too
+		Object data = response.get(DataXferRPCService.DATA_KEY);
+		if ( data instanceof byte[] ) resp = (byte[])data;
+		else resp = Base64.decode(data.toString());
 		return resp;
 	}
 	
+	/**
+	 * Like DataXferRate(), but for DataXferStream().
+	 */
+	public TransferRateInterval DataXferStreamRate(JSONObject header, String hostIP, int port, int timeout, int nTrials) {
+		for ( int trial=0; trial<nTrials; trial++) {
+			try {
+				TransferRate.start(STREAM_STAT);
+				long nBytes = DataXferStream(header, hostIP, port, timeout);
+				TransferRate.stop(STREAM_STAT, nBytes);
+			} catch (Exception e) {
+				TransferRate.abort(STREAM_STAT, header.optLong(DataXferServiceBase.HEADER_XFER_LEN_KEY));
+				System.out.println("xfer trial failed: " + e.getMessage());
+			}
+		}
+		return TransferRate.get(STREAM_STAT);
+	}
+	
+	/**
+	 * Streamed version of DataXfer(): the service sends the data as a sequence of chunks, which are
+	 * counted as they arrive and then dropped, so the transfer isn't limited by what fits in memory.
+	 * @return The number of bytes received
+	 */
+	public long DataXferStream(JSONObject header, String hostIP, int port, int timeout) throws JSONException, IOException {
+		final long[] nBytes = new long[1];
+		JSONObject args = new JSONObject().put(EchoRPCService.HEADER_KEY, header);
+		RPCCall.invokeStream(hostIP, port, "dataxferrpc", "dataxferstream", args, new RPCCall.ChunkHandler() {
+			@Override
+			public void handleChunk(JSONObject chunk) throws Exception {
+				Object data = chunk.get(DataXferRPCService.DATA_KEY);
+				nBytes[0] += data instanceof byte[] ? ((byte[])data).length : Base64.decode(data.toString()).length;
+			}
+		}, timeout);
+		return nBytes[0];
+	}
+	
 
 }
 
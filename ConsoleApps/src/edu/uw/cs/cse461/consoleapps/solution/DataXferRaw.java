@@ -1,22 +1,26 @@
 package edu.uw.cs.cse461.consoleapps.solution;
 
 import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.net.ConnectException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
 import edu.uw.cs.cse461.consoleapps.DataXferInterface.DataXferRawInterface;
 import edu.uw.cs.cse461.net.base.NetBase;
 import edu.uw.cs.cse461.net.base.NetLoadable.NetLoadableConsoleApp;
 import edu.uw.cs.cse461.service.DataXferRawService;
 import edu.uw.cs.cse461.service.DataXferServiceBase;
+import edu.uw.cs.cse461.service.ReliableUdp;
 import edu.uw.cs.cse461.util.ConfigManager;
+import edu.uw.cs.cse461.util.DatagramRing;
 import edu.uw.cs.cse461.util.SampledStatistic.TransferRate;
 import edu.uw.cs.cse461.util.SampledStatistic.TransferRateInterval;
 
@@ -27,6 +31,9 @@ import edu.uw.cs.cse461.util.SampledStatistic.TransferRateInterval;
  */
 public class DataXferRaw extends NetLoadableConsoleApp implements DataXferRawInterface {
 	private static final String TAG="DataXferRaw";
+
+	// Most UDP response datagrams taken per wakeup
+	private static final int RING_SLOTS = 64;
 	
 	// ConsoleApp's must have a constructor taking no arguments
 	public DataXferRaw() throws Exception {
@@ -91,6 +98,14 @@ public class DataXferRaw extends NetLoadableConsoleApp implements DataXferRawInt
 				System.out.println("UDP: xfer rate = " + String.format("%9.0f", udpStats.mean() * 1000.0) + " bytes/sec.");
 				System.out.println("UDP: failure rate = " + String.format("%5.1f", udpStats.failureRate()) +
 						           " [" + udpStats.nAborted() + "/" + udpStats.nTrials() + "]");
+				System.out.println("UDP: xfer time " + udpStats.timeHistogram() + " msec.");
+				System.out.println("UDP: datagram loss = " + String.format("%5.1f", 100.0 * udpDataXferLoss(server, port, socketTimeout, xferLength, nTrials)) + "%");
+
+				TransferRateInterval reliableStats = udpReliableDataXferRate(server, port, socketTimeout, xferLength, nTrials);
+				System.out.println("Reliable UDP: xfer rate = " + String.format("%9.0f", reliableStats.mean() * 1000.0) + " bytes/sec.");
+				System.out.println("Reliable UDP: failure rate = " + String.format("%5.1f", reliableStats.failureRate()) +
+						           " [" + reliableStats.nAborted() + "/" + reliableStats.nTrials() + "]");
+				System.out.println("Reliable UDP: xfer time " + reliableStats.timeHistogram() + " msec.");
 
 				//-----------------------------------------------------
 				// TCP transfer
@@ -101,7 +116,31 @@ public class DataXferRaw extends NetLoadableConsoleApp implements DataXferRawInt
 				System.out.println("\nTCP: xfer rate = " + String.format("%9.0f", tcpStats.mean() * 1000.0) + " bytes/sec.");
 				System.out.println("TCP: failure rate = " + String.format("%5.1f", tcpStats.failureRate()) +
 						           " [" + tcpStats.nAborted()+ "/" + tcpStats.nTrials() + "]");
+				System.out.println("TCP: xfer time " + tcpStats.timeHistogram() + " msec.");
+
+			}
+
+			//-----------------------------------------------------
+			// Bulk TCP transfer
+			//-----------------------------------------------------
+
+			int bulkPort = config.getAsInt("dataxferraw.bulk.port", basePort + DataXferRawService.NPORTS);
+			long bulkLength = config.getAsLong("dataxferraw.bulk.length", 0, 0);
+			if ( bulkPort > 0 && bulkLength > 0 ) {
+				TransferRate.clear();
+				System.out.println("\n" + bulkLength + " bytes (bulk)");
+				TransferRateInterval bulkStats = tcpBulkDataXferRate(server, bulkPort, socketTimeout, bulkLength, nTrials);
+				System.out.println("Bulk TCP: xfer rate = " + String.format("%9.0f", bulkStats.mean() * 1000.0) + " bytes/sec.");
+				System.out.println("Bulk TCP: failure rate = " + String.format("%5.1f", bulkStats.failureRate()) +
+						           " [" + bulkStats.nAborted()+ "/" + bulkStats.nTrials() + "]");
+				System.out.println("Bulk TCP: xfer time " + bulkStats.timeHistogram() + " msec.");
 
+				int nStreams = config.getAsInt("dataxferraw.parallel.streams", 4, 1);
+				TransferRateInterval parallelStats = tcpParallelDataXferRate(server, bulkPort, socketTimeout, bulkLength, nStreams, nTrials);
+				System.out.println("Parallel TCP (" + nStreams + " streams): xfer rate = " + String.format("%9.0f", parallelStats.mean() * 1000.0) + " bytes/sec.");
+				System.out.println("Parallel TCP: failure rate = " + String.format("%5.1f", parallelStats.failureRate()) +
+						           " [" + parallelStats.nAborted()+ "/" + parallelStats.nTrials() + "]");
+				System.out.println("Parallel TCP: xfer time " + parallelStats.timeHistogram() + " msec.");
 			}
 			
 		} catch (Exception e) {
@@ -124,55 +163,58 @@ public class DataXferRaw extends NetLoadableConsoleApp implements DataXferRawInt
 		//TODO: implement this method
 		//(note it is used by udpDataXferRate, an important method for you to look at)
 		
+		DatagramRing ring = null;
 		try {
-			DatagramSocket socket = new DatagramSocket();
-			socket.setSoTimeout(socketTimeout); // wait at most a bounded time when receiving on this socket
-	
-			DatagramPacket packet = new DatagramPacket(header, header.length, new InetSocketAddress(hostIP, udpPort));
-			socket.send(packet);
+			ring = DatagramRing.open(RING_SLOTS, DataXferServiceBase.RESPONSE_OKAY_LEN + DataXferRawService.UDP_PAYLOAD_LEN);
+			ring.channel().connect(new InetSocketAddress(hostIP, udpPort));
+			ring.send(ByteBuffer.wrap(header), null, socketTimeout);
 			
 			byte[] result = new byte[xferLength];
 			
+			// Keep receiving data until the total amount is received, taking every datagram that has
+			// arrived each time we wake up.
 			int bytesRead = 0;
-			try {
-				byte[] receiveBuf = new byte[DataXferServiceBase.RESPONSE_OKAY_LEN + 1000];
-				DatagramPacket receivePacket = new DatagramPacket(receiveBuf, receiveBuf.length);
-				
-				// Keep receiving data until the total amount is received.
-				while (bytesRead < xferLength) {
-					
-					socket.receive(receivePacket);
-					
-//					System.out.println(bytesRead + " / " + xferLength + " read.");
-//					System.out.println("packet len: " + receivePacket.getLength());
-					if ( receivePacket.getLength() != Math.min(1000, xferLength - bytesRead) + DataXferServiceBase.RESPONSE_OKAY_LEN ) {
-						socket.close();
+			while (bytesRead < xferLength) {
+				int n = ring.receive(socketTimeout);
+				if ( n == 0 ) {
+					System.out.println("UDP socket timeout");
+					throw new SocketTimeoutException("No data for " + socketTimeout + " msec.");
+				}
+				for ( int i = 0; i < n && bytesRead < xferLength; i++ ) {
+					ByteBuffer datagram = ring.get(i);
+					if ( datagram.remaining() != Math.min(DataXferRawService.UDP_PAYLOAD_LEN, xferLength - bytesRead) + DataXferServiceBase.RESPONSE_OKAY_LEN )
 						throw new IOException("Bad response: did not get back a multiple of 1000 bytes and is not final packet.");
-					}
-					String rcvdHeader = new String(receiveBuf, 0, DataXferServiceBase.RESPONSE_OKAY_LEN);
-					if ( !rcvdHeader.equalsIgnoreCase(DataXferServiceBase.RESPONSE_OKAY_STR) ) {
-						socket.close();
-						throw new IOException("Bad returned header: got '" + rcvdHeader + "' but wanted '" + DataXferServiceBase.RESPONSE_OKAY_STR);
+					if ( !isResponseOkay(datagram) ) {
+						byte[] rcvdHeader = new byte[DataXferServiceBase.RESPONSE_OKAY_LEN];
+						datagram.get(rcvdHeader);
+						throw new IOException("Bad returned header: got '" + new String(rcvdHeader) + "' but wanted '" + DataXferServiceBase.RESPONSE_OKAY_STR);
 					}
 					// Copy section of data to result
-					int receivedlen = receivePacket.getLength() - DataXferServiceBase.RESPONSE_OKAY_LEN;
-					for (int i = 0; i < receivedlen; i++)
-						result[i] = receiveBuf[i + DataXferServiceBase.RESPONSE_OKAY_LEN];
+					datagram.position(DataXferServiceBase.RESPONSE_OKAY_LEN);
+					int receivedlen = datagram.remaining();
+					datagram.get(result, bytesRead, receivedlen);
 					
 					// Increment data read.
 					bytesRead += receivedlen;
 				}
-				socket.close();
-				return result;
-			} catch (SocketTimeoutException e) {
-				System.out.println("UDP socket timeout");
-				throw e;
 			}
+			return result;
+		} catch (SocketTimeoutException e) {
+			throw e;
 		} catch (IOException e) {
 			System.out.println("Exception: " + e.getMessage());
 			throw e;
+		} finally {
+			if ( ring != null ) ring.close();
 		}
 	}
+
+	// True if datagram starts with the okay response (in any case)
+	private static boolean isResponseOkay(ByteBuffer datagram) {
+		for ( int i = 0; i < DataXferServiceBase.RESPONSE_OKAY_LEN; i++ )
+			if ( Character.toLowerCase((char)datagram.get(i)) != Character.toLowerCase((char)DataXferServiceBase.RESPONSE_OKAY_BYTES[i]) ) return false;
+		return true;
+	}
 	
 	/**
 	 * Performs nTrials trials via UDP of a data xfer to host hostIP on port udpPort.  Expects to get xferLength
@@ -200,6 +242,84 @@ public class DataXferRaw extends NetLoadableConsoleApp implements DataXferRawInt
 		return TransferRate.get("udp");
 	}
 	
+	/**
+	 * Asks for a sequence numbered UDP transfer of xferLength bytes, and counts the datagrams that
+	 * arrive.  Waits up to socketTimeout msec. for each datagram; a timeout just ends the count.
+	 * @return The number of distinct datagrams received (the transfer is sent as
+	 *  ceil(xferLength / DataXferRawService.UDP_PAYLOAD_LEN) of them)
+	 */
+	public int udpSequencedDataXfer(String hostIP, int udpPort, int socketTimeout, int xferLength) throws IOException {
+		int nDatagrams = (xferLength + DataXferRawService.UDP_PAYLOAD_LEN - 1) / DataXferRawService.UDP_PAYLOAD_LEN;
+		int seqOffset = DataXferServiceBase.RESPONSE_OKAY_LEN;
+		DatagramRing ring = DatagramRing.open(RING_SLOTS, seqOffset + DataXferRawService.UDP_SEQ_LEN + DataXferRawService.UDP_PAYLOAD_LEN);
+		try {
+			ring.channel().connect(new InetSocketAddress(hostIP, udpPort));
+			ByteBuffer request = ByteBuffer.allocate(DataXferServiceBase.HEADER_LEN + 1);
+			request.put(DataXferServiceBase.HEADER_BYTES).put(DataXferRawService.UDP_OPTION_SEQUENCE).flip();
+			ring.send(request, null, socketTimeout);
+
+			// whatever hasn't arrived when we've waited socketTimeout msec. for more was lost
+			BitSet received = new BitSet(nDatagrams);
+			int n;
+			while ( received.cardinality() < nDatagrams && (n = ring.receive(socketTimeout)) > 0 ) {
+				for ( int i = 0; i < n; i++ ) {
+					ByteBuffer datagram = ring.get(i);
+					if ( datagram.remaining() < seqOffset + DataXferRawService.UDP_SEQ_LEN ) continue;
+					int seq = datagram.getInt(seqOffset);
+					if ( seq >= 0 && seq < nDatagrams ) received.set(seq);
+				}
+			}
+			return received.cardinality();
+		} finally {
+			ring.close();
+		}
+	}
+
+	/**
+	 * Performs nTrials sequence numbered UDP transfers (see udpSequencedDataXfer()).
+	 * @return The fraction of all the datagrams sent that didn't arrive
+	 */
+	public double udpDataXferLoss(String hostIP, int udpPort, int socketTimeout, int xferLength, int nTrials) {
+		int nDatagrams = (xferLength + DataXferRawService.UDP_PAYLOAD_LEN - 1) / DataXferRawService.UDP_PAYLOAD_LEN;
+		long sent = 0;
+		long received = 0;
+		for ( int trial=0; trial<nTrials; trial++ ) {
+			try {
+				received += udpSequencedDataXfer(hostIP, udpPort, socketTimeout, xferLength);
+				sent += nDatagrams;
+			} catch (Exception e) {
+				System.out.println("Unexpected " + e.getClass().getName() + " exception in UDP trial: " + e.getMessage());
+			}
+		}
+		return sent > 0 ? (double)(sent - received) / sent : 0.0;
+	}
+
+	/**
+	 * Fetches xferLength bytes from udpPort using the reliable UDP protocol (see ReliableUdp), which
+	 * retransmits whatever is lost.
+	 * @param socketTimeout Give up if nothing arrives for this long
+	 */
+	public byte[] udpReliableDataXfer(String hostIP, int udpPort, int socketTimeout, int xferLength) throws IOException {
+		return ReliableUdp.receive(hostIP, udpPort, socketTimeout, xferLength);
+	}
+
+	/**
+	 * Performs nTrials reliable UDP transfers (see udpReliableDataXfer()).
+	 */
+	public TransferRateInterval udpReliableDataXferRate(String hostIP, int udpPort, int socketTimeout, int xferLength, int nTrials) {
+		for ( int trial=0; trial<nTrials; trial++ ) {
+			try {
+				TransferRate.start("reliableudp");
+				udpReliableDataXfer(hostIP, udpPort, socketTimeout, xferLength);
+				TransferRate.stop("reliableudp", xferLength);
+			} catch (Exception e) {
+				TransferRate.abort("reliableudp", xferLength);
+				System.out.println("Reliable UDP trial failed: " + e.getMessage());
+			}
+		}
+		return TransferRate.get("reliableudp");
+	}
+
 	private static final int MAX_CHUNK_SIZE = 1000000;
 
 	/**
@@ -284,4 +404,122 @@ public class DataXferRaw extends NetLoadableConsoleApp implements DataXferRawInt
 		return TransferRate.get("tcp");
 	}
 	
+
+	// buffer bulk data is read into, and discarded from
+	private static final int BULK_BUFFER_SIZE = 1 << 20;
+
+	/**
+	 * Asks the bulk port for xferLength bytes, and reads them.  The data isn't kept (there may be far too
+	 * much of it), so this returns the number of bytes received, which is xferLength if nothing went wrong.
+	 */
+	public long tcpBulkDataXfer(String hostIP, int tcpPort, int socketTimeout, long xferLength) throws IOException {
+		return tcpRangeDataXfer(hostIP, tcpPort, socketTimeout, 0, xferLength, null, 0);
+	}
+
+	/**
+	 * Asks the bulk port for the length bytes at offset of a transfer, and reads them into
+	 * dest[destOffset..], or if dest is null reads and drops them.
+	 * @return The number of bytes received, which is length if nothing went wrong
+	 */
+	public long tcpRangeDataXfer(String hostIP, int tcpPort, int socketTimeout, long offset, long length, byte[] dest, int destOffset) throws IOException {
+		Socket tcpSocket = new Socket(hostIP, tcpPort);
+		try {
+			tcpSocket.setSoTimeout(socketTimeout);
+			DataOutputStream os = new DataOutputStream(tcpSocket.getOutputStream());
+			os.write(DataXferServiceBase.HEADER_BYTES);
+			os.writeLong(length);
+			os.writeLong(offset);
+			os.flush();
+
+			InputStream is = tcpSocket.getInputStream();
+			byte[] okay = new byte[DataXferServiceBase.RESPONSE_OKAY_LEN];
+			for ( int off=0; off<okay.length; ) {
+				int len = is.read(okay, off, okay.length - off);
+				if ( len < 0 ) throw new EOFException("Connection closed before response header");
+				off += len;
+			}
+			String headerStr = new String(okay);
+			if ( !headerStr.equalsIgnoreCase(DataXferServiceBase.RESPONSE_OKAY_STR) )
+				throw new IOException("Bad response header: got '" + headerStr + "' but expected '" + DataXferServiceBase.RESPONSE_OKAY_STR + "'");
+
+			// Without a destination, the data is read into one reused buffer and dropped, so memory use
+			// doesn't depend on length.
+			long bytesRead = 0;
+			if ( dest != null ) {
+				while ( bytesRead < length ) {
+					int len = is.read(dest, destOffset + (int)bytesRead, (int)(length - bytesRead));
+					if ( len < 0 ) break;
+					bytesRead += len;
+				}
+			} else {
+				byte[] buf = new byte[BULK_BUFFER_SIZE];
+				while ( bytesRead < length ) {
+					int len = is.read(buf, 0, (int)Math.min(buf.length, length - bytesRead));
+					if ( len < 0 ) break;
+					bytesRead += len;
+				}
+			}
+			if ( bytesRead < length ) throw new EOFException("Connection closed after " + bytesRead + " of " + length + " bytes");
+			return bytesRead;
+		} finally {
+			tcpSocket.close();
+		}
+	}
+
+	/**
+	 * Fetches xferLength bytes from the bulk port as nStreams ranges, over that many connections at once,
+	 * and puts them back together.
+	 */
+	public byte[] tcpParallelDataXfer(final String hostIP, final int tcpPort, final int socketTimeout, int xferLength, int nStreams) throws IOException {
+		final byte[] result = new byte[xferLength];
+		ParallelXfer.fetch(xferLength, nStreams, new ParallelXfer.Range() {
+			@Override
+			public void fetch(long offset, long length) throws Exception {
+				tcpRangeDataXfer(hostIP, tcpPort, socketTimeout, offset, length, result, (int)offset);
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Performs nTrials transfers of xferLength bytes from the bulk port, each fetched as nStreams ranges
+	 * at once.  The data isn't kept.  The rates measured are of the transfer as a whole, so are the
+	 * aggregate rates of the streams.
+	 */
+	public TransferRateInterval tcpParallelDataXferRate(final String hostIP, final int tcpPort, final int socketTimeout, long xferLength, int nStreams, int nTrials) {
+		for ( int trial=0; trial<nTrials; trial++) {
+			try {
+				TransferRate.start("parallel");
+				ParallelXfer.fetch(xferLength, nStreams, new ParallelXfer.Range() {
+					@Override
+					public void fetch(long offset, long length) throws Exception {
+						tcpRangeDataXfer(hostIP, tcpPort, socketTimeout, offset, length, null, 0);
+					}
+				});
+				TransferRate.stop("parallel", xferLength);
+			} catch (Exception e) {
+				TransferRate.abort("parallel", xferLength);
+				System.out.println("Parallel TCP trial failed: " + e.getMessage());
+			}
+		}
+		return TransferRate.get("parallel");
+	}
+
+	/**
+	 * Performs nTrials bulk transfers of xferLength bytes from the bulk TCP port.
+	 */
+	public TransferRateInterval tcpBulkDataXferRate(String hostIP, int tcpPort, int socketTimeout, long xferLength, int nTrials) {
+		for ( int trial=0; trial<nTrials; trial++) {
+			try {
+				TransferRate.start("bulk");
+				tcpBulkDataXfer(hostIP, tcpPort, socketTimeout, xferLength);
+				TransferRate.stop("bulk", xferLength);
+			} catch (Exception e) {
+				TransferRate.abort("bulk", xferLength);
+				System.out.println("Bulk TCP trial failed: " + e.getMessage());
+			}
+		}
+		return TransferRate.get("bulk");
+	}
+
 }
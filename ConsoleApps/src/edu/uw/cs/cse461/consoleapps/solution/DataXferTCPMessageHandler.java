@@ -15,6 +15,7 @@ import edu.uw.cs.cse461.net.base.NetBase;
 import edu.uw.cs.cse461.net.base.NetLoadable.NetLoadableConsoleApp;
 import edu.uw.cs.cse461.net.tcpmessagehandler.TCPMessageHandler;
 import edu.uw.cs.cse461.service.DataXferServiceBase;
+import edu.uw.cs.cse461.service.DataXferTCPMessageHandlerService;
 import edu.uw.cs.cse461.util.ConfigManager;
 import edu.uw.cs.cse461.util.SampledStatistic.TransferRate;
 import edu.uw.cs.cse461.util.SampledStatistic.TransferRateInterval;
@@ -76,6 +77,16 @@ public class DataXferTCPMessageHandler extends NetLoadableConsoleApp implements
 			System.out.println("\nTCP: xfer rate = " + String.format("%9.0f", xferStats.mean() * 1000.0) + " bytes/sec.");
 			System.out.println("TCP: failure rate = " + String.format("%5.1f", xferStats.failureRate()) +
 					" [" + xferStats.nAborted()+ "/" + xferStats.nTrials() + "]");
+			System.out.println("TCP: xfer time " + xferStats.timeHistogram() + " msec.");
+
+			int nStreams = config.getAsInt("dataxfertcpmessagehandler.parallel.streams", 1, 1);
+			if ( nStreams > 1 ) {
+				TransferRateInterval parallelStats = ParallelDataXferRate(DataXferServiceBase.HEADER_STR, server, targetPort, socketTimeout, xferLength, nStreams, nTrials);
+				System.out.println("\nParallel TCP (" + nStreams + " streams): xfer rate = " + String.format("%9.0f", parallelStats.mean() * 1000.0) + " bytes/sec.");
+				System.out.println("Parallel TCP: failure rate = " + String.format("%5.1f", parallelStats.failureRate()) +
+						" [" + parallelStats.nAborted()+ "/" + parallelStats.nTrials() + "]");
+				System.out.println("Parallel TCP: xfer time " + parallelStats.timeHistogram() + " msec.");
+			}
 
 			
 		} catch (Exception e) {
@@ -109,6 +120,17 @@ public class DataXferTCPMessageHandler extends NetLoadableConsoleApp implements
 	@Override
 	public byte[] DataXfer(String header, String hostIP, int port, int timeout,
 			int xferLength) throws JSONException, IOException {
+		ByteBuffer message = ByteBuffer.allocate(xferLength);
+		DataXferRange(header, hostIP, port, timeout, xferLength, 0, message);
+		return message.array();
+	}
+
+	/**
+	 * Fetches the range of an xferLength byte transfer that starts at offset and fills dest, reading
+	 * it into dest.
+	 */
+	public void DataXferRange(String header, String hostIP, int port, int timeout,
+			int xferLength, int offset, ByteBuffer dest) throws JSONException, IOException {
 		Socket tcpSocket = null;
 		TCPMessageHandler tcpMessageHandlerSocket = null;
 		try {
@@ -121,7 +143,11 @@ public class DataXferTCPMessageHandler extends NetLoadableConsoleApp implements
 			// send the header and message
 			tcpMessageHandlerSocket.sendMessage(header);
 			JSONObject lengthRequest = new JSONObject();
-			lengthRequest.put("transferSize", xferLength);
+			lengthRequest.put(DataXferTCPMessageHandlerService.TRANSFER_SIZE_KEY, xferLength);
+			if ( offset != 0 || dest.remaining() != xferLength ) {
+				lengthRequest.put(DataXferTCPMessageHandlerService.RANGE_OFFSET_KEY, offset);
+				lengthRequest.put(DataXferTCPMessageHandlerService.RANGE_LENGTH_KEY, dest.remaining());
+			}
 			tcpMessageHandlerSocket.sendMessage(lengthRequest);
 			
 			// read response header
@@ -129,18 +155,12 @@ public class DataXferTCPMessageHandler extends NetLoadableConsoleApp implements
 			if ( ! headerStr.equalsIgnoreCase(DataXferServiceBase.RESPONSE_OKAY_STR) )
 				throw new IOException("Bad response header: '" + headerStr + "'");
 
-			// read response
-			ByteBuffer message = ByteBuffer.allocate(xferLength);
-			int bytesRead = 0;
-			
-			while (bytesRead < xferLength) {
-				byte[] chunk = tcpMessageHandlerSocket.readMessageAsBytes();
-				message.put(chunk);
-				bytesRead += chunk.length;
+			// read response, each chunk directly into place
+			while ( dest.hasRemaining() ) {
+				tcpMessageHandlerSocket.readMessageInto(dest);
 			}
 			
 			tcpMessageHandlerSocket.close();
-			return message.array();
 		} catch (ConnectException e) {
 			System.out.println("TCP connection refused");
 			throw e;
@@ -151,6 +171,42 @@ public class DataXferTCPMessageHandler extends NetLoadableConsoleApp implements
 			if ( tcpMessageHandlerSocket != null ) try {tcpMessageHandlerSocket.close();} catch (Exception e) {}
 		}
 	}
-	
+
+	/**
+	 * Fetches an xferLength byte transfer as nStreams ranges, over that many connections at once,
+	 * each read straight into its place in the result.
+	 */
+	public byte[] ParallelDataXfer(final String header, final String hostIP, final int port, final int timeout,
+			final int xferLength, int nStreams) throws IOException {
+		final ByteBuffer message = ByteBuffer.allocate(xferLength);
+		ParallelXfer.fetch(xferLength, nStreams, new ParallelXfer.Range() {
+			@Override
+			public void fetch(long offset, long length) throws Exception {
+				ByteBuffer range = message.duplicate();
+				range.limit((int)(offset + length)).position((int)offset);
+				DataXferRange(header, hostIP, port, timeout, xferLength, (int)offset, range.slice());
+			}
+		});
+		return message.array();
+	}
+
+	/**
+	 * Like DataXferRate(), but each transfer is made by ParallelDataXfer().  The rates measured are
+	 * of the transfer as a whole, so are the aggregate rates of the streams.
+	 */
+	public TransferRateInterval ParallelDataXferRate(String header, String hostIP,
+			int port, int timeout, int xferLength, int nStreams, int nTrials) {
+		for ( int trial=0; trial<nTrials; trial++) {
+			try {
+				TransferRate.start("parallel");
+				ParallelDataXfer(header, hostIP, port, timeout, xferLength, nStreams);
+				TransferRate.stop("parallel", xferLength);
+			} catch (Exception e) {
+				TransferRate.abort("parallel", xferLength);
+				System.out.println("parallel xfer trial failed: " + e.getMessage());
+			}
+		}
+		return TransferRate.get("parallel");
+	}
 
 }
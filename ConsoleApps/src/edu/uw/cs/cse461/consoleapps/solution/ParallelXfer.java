@@ -0,0 +1,76 @@
+package edu.uw.cs.cse461.consoleapps.solution;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Splits one transfer into byte ranges fetched over several connections at once.  On a path with a
+ * large bandwidth-delay product a single TCP connection can't keep enough data in flight to fill it;
+ * n connections can keep n times as much.
+ * <p>
+ * The clients supply the code that fetches one range; this just divides up the transfer, runs the
+ * ranges concurrently, and waits for all of them.
+ *
+ * @author grahamb5
+ */
+class ParallelXfer {
+	// Runs the ranges; its threads are created as needed and reused
+	private static final ExecutorService POOL = Executors.newCachedThreadPool(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "ParallelXfer");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	/**
+	 * Fetches one range of a transfer.
+	 */
+	interface Range {
+		void fetch(long offset, long length) throws Exception;
+	}
+
+	/**
+	 * Fetches xferLength bytes as nStreams ranges of (nearly) equal size, each by its own call of
+	 * range.fetch(), all at once.  Returns once they've all finished.
+	 * @throws IOException If any range fails (the first failure is rethrown, or becomes the cause)
+	 */
+	static void fetch(long xferLength, int nStreams, final Range range) throws IOException {
+		nStreams = (int)Math.max(1, Math.min(nStreams, xferLength));
+		long rangeLength = (xferLength + nStreams - 1) / nStreams;
+		List<Future<?>> futures = new ArrayList<Future<?>>(nStreams);
+		for ( long offset = 0; offset < xferLength; offset += rangeLength ) {
+			final long start = offset;
+			final long length = Math.min(rangeLength, xferLength - offset);
+			futures.add(POOL.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					range.fetch(start, length);
+					return null;
+				}
+			}));
+		}
+
+		Throwable failure = null;
+		for ( Future<?> future : futures ) {
+			try {
+				future.get();
+			} catch (ExecutionException e) {
+				if ( failure == null ) failure = e.getCause();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				if ( failure == null ) failure = e;
+			}
+		}
+		if ( failure instanceof IOException ) throw (IOException)failure;
+		if ( failure != null ) throw new IOException("Parallel transfer failed: " + failure.getMessage(), failure);
+	}
+}
@@ -0,0 +1,247 @@
+package edu.uw.cs.cse461.consoleapps.solution;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import edu.uw.cs.cse461.util.SampledStatistic.ElapsedTime;
+import edu.uw.cs.cse461.util.SampledStatistic.ElapsedTimeInterval;
+import edu.uw.cs.cse461.util.TokenBucket;
+
+/**
+ * Sends pings with many in flight at once, to measure latency under load (and to get through many
+ * targets quickly).  Each ping is a probe with a sequence number; the protocol-specific Prober sends
+ * it, and reports its reply by sequence number, so replies can come back in any order, on any thread.
+ * <p>
+ * At most concurrency probes are outstanding at a time, and probes are started no faster than rate
+ * per second (0 for no limit).  A probe's time is measured from when it's sent, so time spent waiting
+ * for its turn isn't counted.  A probe that isn't answered within the timeout counts as aborted;
+ * its reply is ignored if it turns up later.
+ * <p>
+ * With a concurrency of 1 and no rate limit this is an ordinary ping, one probe after another.
+ *
+ * @author grahamb5
+ */
+class PingEngine {
+	// How often (msec.) to look for probes that have timed out
+	private static final int SWEEP_INTERVAL = 50;
+
+	/**
+	 * Sends probes for one protocol.  The Prober is expected to reuse its connections (or socket)
+	 * for all the probes it sends.
+	 */
+	interface Prober {
+		/**
+		 * Sends probe seq.  Called by one thread at a time.  When the reply arrives, the Prober must
+		 * call replied(seq) (from whatever thread it likes); if it can tell the probe has failed it
+		 * may call failed(seq), and otherwise the probe times out.
+		 * @throws Exception If the probe couldn't be sent; it counts as aborted
+		 */
+		void send(int seq) throws Exception;
+
+		/**
+		 * Called once all the probes have been answered or have timed out.
+		 */
+		void close();
+	}
+
+	/**
+	 * One connection a ConnectionProber pipelines probes over.  The replies must come back in the
+	 * order the probes were sent, as they do from an echo service.
+	 */
+	interface Connection {
+		void send(int seq) throws IOException;
+
+		/**
+		 * Waits for the next reply, and returns the sequence number it carries.
+		 * @throws IOException If the connection fails, or is closed
+		 */
+		int readReply() throws IOException;
+
+		void close();
+	}
+
+	/**
+	 * A Prober that sends each target's probes over one connection to it, pipelined: it doesn't wait
+	 * for a reply before sending the next probe.  A connection is opened when it's first needed, and
+	 * reopened if it fails.  A thread per connection reads the replies.
+	 */
+	static abstract class ConnectionProber implements Prober {
+		private final PingEngine mEngine;
+		private final List<InetSocketAddress> mTargets;
+		private final Reader[] mReaders;
+
+		ConnectionProber(PingEngine engine, List<InetSocketAddress> targets) {
+			mEngine = engine;
+			mTargets = targets;
+			mReaders = new Reader[targets.size()];
+		}
+
+		/**
+		 * Opens a connection to target, ready to carry probes.
+		 */
+		protected abstract Connection open(InetSocketAddress target) throws IOException;
+
+		@Override
+		public void send(int seq) throws Exception {
+			int target = seq % mTargets.size();
+			Reader reader = mReaders[target];
+			if ( reader == null || reader.mFailed ) {
+				if ( reader != null ) reader.shutdown();
+				reader = mReaders[target] = new Reader(open(mTargets.get(target)));
+				reader.start();
+			}
+			reader.send(seq);
+		}
+
+		@Override
+		public void close() {
+			for ( Reader reader : mReaders ) {
+				if ( reader != null ) reader.shutdown();
+			}
+		}
+
+		// Reads one connection's replies, and fails the probes waiting on it if it fails
+		private class Reader extends Thread {
+			private final Connection mConnection;
+			// probes sent on the connection and not yet answered, in the order sent
+			private final Queue<Integer> mPending = new ConcurrentLinkedQueue<Integer>();
+			private volatile boolean mFailed;
+			private volatile boolean mShutdown;
+
+			Reader(Connection connection) {
+				mConnection = connection;
+				setDaemon(true);
+			}
+
+			void send(int seq) throws IOException {
+				mPending.add(seq);
+				try {
+					mConnection.send(seq);
+				} catch (IOException e) {
+					mPending.remove(seq);
+					mFailed = true;
+					throw e;
+				}
+			}
+
+			@Override
+			public void run() {
+				try {
+					while ( true ) {
+						int seq = mConnection.readReply();
+						Integer expected = mPending.poll();
+						if ( expected == null || expected != seq )
+							throw new IOException("Reply to probe " + seq + " arrived when " + expected + " was expected");
+						mEngine.replied(seq);
+					}
+				} catch (IOException e) {
+					if ( !mShutdown ) System.out.println("Ping connection failed: " + e.getMessage());
+				} finally {
+					mFailed = true;
+					mConnection.close();
+					Integer seq;
+					while ( (seq = mPending.poll()) != null ) mEngine.failed(seq);
+				}
+			}
+
+			void shutdown() {
+				mShutdown = true;
+				mConnection.close();
+			}
+		}
+	}
+
+	private final String mKey;
+	private final int mConcurrency;
+	private final double mRate;
+	private final int mTimeout;
+
+	// probes in flight, and when they were sent (System.nanoTime())
+	private final Map<Integer, Long> mOutstanding = new ConcurrentHashMap<Integer, Long>();
+	// created here, not in run(), since a prober's receiver thread may call replied() before run() starts
+	private final Semaphore mPermits;
+
+	/**
+	 * @param key ElapsedTime key under which the probe times are recorded
+	 * @param concurrency Most probes outstanding at once
+	 * @param rate Most probes started per second; 0 for no limit
+	 * @param timeout Msec. to wait for a probe's reply
+	 */
+	PingEngine(String key, int concurrency, double rate, int timeout) {
+		mKey = key;
+		mConcurrency = Math.max(1, concurrency);
+		mRate = rate;
+		mTimeout = timeout;
+		mPermits = new Semaphore(mConcurrency);
+	}
+
+	/**
+	 * Sends nProbes probes, numbered 0 to nProbes-1, through prober, and waits until each has been
+	 * answered or has timed out.  Closes prober before returning.
+	 * @return The probe times (under this engine's key)
+	 */
+	ElapsedTimeInterval run(Prober prober, int nProbes) throws InterruptedException {
+		// a few probes' worth of burst lets the pacer catch up after oversleeping
+		TokenBucket pacer = new TokenBucket(mRate, Math.max(1, (long)(mRate / 100)));
+		try {
+			for ( int seq=0; seq<nProbes; seq++ ) {
+				while ( !mPermits.tryAcquire(SWEEP_INTERVAL, TimeUnit.MILLISECONDS) ) sweep();
+				pacer.acquire(1);
+				mOutstanding.put(seq, System.nanoTime());
+				try {
+					prober.send(seq);
+				} catch (Exception e) {
+					System.out.println("Probe " + seq + " failed: " + e.getMessage());
+					failed(seq);
+				}
+			}
+			// wait for the stragglers
+			while ( !mPermits.tryAcquire(mConcurrency, SWEEP_INTERVAL, TimeUnit.MILLISECONDS) ) sweep();
+		} finally {
+			prober.close();
+			// anything still outstanding (we were interrupted) is abandoned
+			for ( Integer seq : mOutstanding.keySet() ) failed(seq);
+		}
+		return ElapsedTime.get(mKey);
+	}
+
+	/**
+	 * Reports the reply to probe seq.  Replies to probes that have already been answered or have timed
+	 * out (or were never sent) are ignored.
+	 */
+	void replied(int seq) {
+		Long sent = mOutstanding.remove(seq);
+		if ( sent == null ) return;
+		double msec = (System.nanoTime() - sent) / 1000000.0;
+		synchronized (this) {
+			ElapsedTime.record(mKey, msec);
+		}
+		mPermits.release();
+	}
+
+	/**
+	 * Reports that probe seq has failed.  Ignored if it has already been answered or has timed out.
+	 */
+	void failed(int seq) {
+		if ( mOutstanding.remove(seq) == null ) return;
+		synchronized (this) {
+			ElapsedTime.recordAbort(mKey);
+		}
+		mPermits.release();
+	}
+
+	// Fails the probes that have waited longer than the timeout
+	private void sweep() {
+		long cutoff = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(mTimeout);
+		for ( Map.Entry<Integer, Long> probe : mOutstanding.entrySet() ) {
+			if ( probe.getValue() - cutoff < 0 ) failed(probe.getKey());
+		}
+	}
+}
@@ -1,10 +1,11 @@
 package edu.uw.cs.cse461.consoleapps.solution;
 
 import java.io.BufferedReader;
-import java.io.IOException;
 import java.io.InputStreamReader;
-import java.net.Socket;
-import java.net.SocketTimeoutException;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.BiConsumer;
 
 import org.json.JSONObject;
 
@@ -12,7 +13,6 @@ import edu.uw.cs.cse461.consoleapps.PingInterface.PingRPCInterface;
 import edu.uw.cs.cse461.net.base.NetBase;
 import edu.uw.cs.cse461.net.base.NetLoadable.NetLoadableConsoleApp;
 import edu.uw.cs.cse461.net.rpc.RPCCall;
-import edu.uw.cs.cse461.net.tcpmessagehandler.TCPMessageHandler;
 import edu.uw.cs.cse461.service.EchoRPCService;
 import edu.uw.cs.cse461.service.EchoServiceBase;
 import edu.uw.cs.cse461.util.ConfigManager;
@@ -51,20 +51,31 @@ public class PingRPC extends NetLoadableConsoleApp implements PingRPCInterface{
 			int nTrials = Integer.parseInt(trialStr);
 
 			int socketTimeout = config.getAsInt("net.timeout.socket", 2000);
+			// pings kept in flight at once, and most started per second (0 for no limit)
+			int concurrency = config.getAsInt("pingrpc.concurrency", 1, 1);
+			int rate = config.getAsInt("pingrpc.rate", 0, 0);
 
 			System.out.println("Host: " + targetIP);
 			System.out.println("tcp port: " + targetTCPPort);
 			System.out.println("trials: " + nTrials);
+			System.out.println("concurrency: " + concurrency + (rate > 0 ? ", at most " + rate + " pings/sec." : ""));
 
 			ElapsedTimeInterval pingResult = null;
+			double pingRate = 0.0;
 			
 			if ( targetTCPPort != 0 ) {
 				ElapsedTime.clear();
 				JSONObject header = new JSONObject().put(EchoRPCService.HEADER_TAG_KEY, EchoRPCService.HEADER_STR);
-				pingResult = ping(header, targetIP, targetTCPPort, socketTimeout, nTrials);
+				long start = System.nanoTime();
+				pingResult = ping(header, Collections.singletonList(new InetSocketAddress(targetIP, targetTCPPort)),
+						socketTimeout, nTrials, concurrency, rate);
+				pingRate = nTrials / ((System.nanoTime() - start) / 1e9);
 			}
 
-			if ( pingResult != null ) System.out.println("PING: " + String.format("%.2f msec (%d failures)", pingResult.mean(), pingResult.nAborted()));
+			if ( pingResult != null ) {
+				System.out.println("PING: " + String.format("%.2f msec (%d failures), %.0f pings/sec.", pingResult.mean(), pingResult.nAborted(), pingRate));
+				System.out.println("PING: latency " + pingResult.histogram() + " msec.");
+			}
 
 
 		} catch (Exception e) {
@@ -74,38 +85,58 @@ public class PingRPC extends NetLoadableConsoleApp implements PingRPCInterface{
 	
 	
 	public ElapsedTimeInterval ping(JSONObject header, String hostIP, int port, int timeout, int nTrials) throws Exception {
+		return ping(header, Collections.singletonList(new InetSocketAddress(hostIP, port)), timeout, nTrials, 1, 0);
+	}
 
-		String msg = "";
-		for(int i = 0 ; i < nTrials ; i++) {
-			try {
-				ElapsedTime.start("PingRPC_PingTotalDelay");
-
-				// send message
-				
-				JSONObject args = new JSONObject().put(EchoRPCService.HEADER_KEY, header)
+	/**
+	 * Sends nTrials pings, spread evenly over the targets, keeping up to concurrency of them outstanding
+	 * and starting no more than rate per second (0 for no limit); see PingEngine.
+	 * <p>
+	 * Each ping is an asynchronous call (RPCCall.invokeAsync()), so RPCCall's persistent (and, unless
+	 * configured otherwise, multiplexed) connections carry them, and the RPC call ids match replies to
+	 * calls.  Each ping's payload is its trial number, which is checked in the reply.
+	 */
+	public ElapsedTimeInterval ping(JSONObject header, final List<InetSocketAddress> targets, final int timeout, int nTrials, int concurrency, double rate) throws Exception {
+		final JSONObject pingHeader = header;
+		final PingEngine engine = new PingEngine("PingRPC_PingTotalDelay", concurrency, rate, timeout);
+		engine.run(new PingEngine.Prober() {
+			@Override
+			public void send(final int trial) throws Exception {
+				InetSocketAddress target = targets.get(trial % targets.size());
+				final String msg = Integer.toString(trial);
+				JSONObject args = new JSONObject().put(EchoRPCService.HEADER_KEY, pingHeader)
 						.put(EchoRPCService.PAYLOAD_KEY, msg);
-				JSONObject response = RPCCall.invoke(hostIP, port, "echorpc", "echo", args, timeout );
-				if ( response == null ) throw new IOException("RPC failed; response is null");
-
-				// examine response
-				/*
-				JSONObject rcvdHeader = response.optJSONObject(EchoRPCService.HEADER_KEY);
-				if ( rcvdHeader == null || !rcvdHeader.has(EchoRPCService.HEADER_TAG_KEY)||
-						!rcvdHeader.getString(EchoRPCService.HEADER_TAG_KEY).equalsIgnoreCase(EchoServiceBase.RESPONSE_OKAY_STR))
-					throw new IOException("Bad response header: got '" + rcvdHeader.toString() +
-							"' but wanted a JSONOBject with key '" + EchoRPCService.HEADER_TAG_KEY + "' and string value '" +
-							EchoServiceBase.RESPONSE_OKAY_STR + "'");
-							*/
-				
-				ElapsedTime.stop("PingRPC_PingTotalDelay");
-			} catch (Exception e) {
-				System.out.println("Exception: " + e.getMessage());
-				ElapsedTime.abort("PingRPC_PingTotalDelay");
+				RPCCall.invokeAsync(target.getHostString(), target.getPort(), "echorpc", "echo", args, timeout)
+					.whenComplete(new BiConsumer<JSONObject, Throwable>() {
+						@Override
+						public void accept(JSONObject response, Throwable t) {
+							// examine response
+							if ( t == null && isResponseOkay(response, msg) ) {
+								engine.replied(trial);
+							} else {
+								if ( t != null ) System.out.println("Exception: " + t.getMessage());
+								else System.out.println("Bad response: " + response);
+								engine.failed(trial);
+							}
+						}
+					});
 			}
-		}
-		
+
+			@Override
+			public void close() {
+				// RPCCall keeps its connections for the next caller
+			}
+		}, nTrials);
 		return ElapsedTime.get("PingRPC_PingTotalDelay");
 	}
 
-}
+	// Checks that response has the okay header and echoes msg
+	private static boolean isResponseOkay(JSONObject response, String msg) {
+		if ( response == null ) return false;
+		JSONObject rcvdHeader = response.optJSONObject(EchoRPCService.HEADER_KEY);
+		return rcvdHeader != null &&
+				EchoServiceBase.RESPONSE_OKAY_STR.equalsIgnoreCase(rcvdHeader.optString(EchoRPCService.HEADER_TAG_KEY)) &&
+				msg.equals(response.optString(EchoRPCService.PAYLOAD_KEY));
+	}
 
+}
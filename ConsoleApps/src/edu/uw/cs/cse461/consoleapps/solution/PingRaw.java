@@ -1,19 +1,23 @@
 package edu.uw.cs.cse461.consoleapps.solution;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
-import java.io.InputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+
 import edu.uw.cs.cse461.consoleapps.PingInterface.PingRawInterface;
 import edu.uw.cs.cse461.net.base.NetBase;
 import edu.uw.cs.cse461.net.base.NetLoadable.NetLoadableConsoleApp;
 import edu.uw.cs.cse461.service.EchoServiceBase;
 import edu.uw.cs.cse461.util.ConfigManager;
+import edu.uw.cs.cse461.util.DatagramRing;
 import edu.uw.cs.cse461.util.SampledStatistic.ElapsedTime;
 import edu.uw.cs.cse461.util.SampledStatistic.ElapsedTimeInterval;
 
@@ -24,6 +28,13 @@ import edu.uw.cs.cse461.util.SampledStatistic.ElapsedTimeInterval;
  */
 public class PingRaw extends NetLoadableConsoleApp implements PingRawInterface {
 	private static final String TAG="PingRaw";
+
+	// Bytes of trial number sent with each ping
+	private static final int TRIAL_LEN = 4;
+	// Most UDP replies taken per wakeup
+	private static final int RING_SLOTS = 32;
+	// How often (msec.) the UDP receiving thread checks whether it's done
+	private static final int RECEIVE_WAKEUP = 100;
 	
 	// ConsoleApp's must have a constructor taking no arguments
 	public PingRaw() {
@@ -67,29 +78,47 @@ public class PingRaw extends NetLoadableConsoleApp implements PingRawInterface {
 				int nTrials = Integer.parseInt(trialStr);
 
 				int socketTimeout = config.getAsInt("net.timeout.socket", 5000);
+				// pings kept in flight at once, and most started per second (0 for no limit)
+				int concurrency = config.getAsInt("pingraw.concurrency", 1, 1);
+				int rate = config.getAsInt("pingraw.rate", 0, 0);
 				
 				System.out.println("Host: " + targetIP);
 				System.out.println("udp port: " + targetUDPPort);
 				System.out.println("tcp port: " + targetTCPPort);
 				System.out.println("trials: " + nTrials);
+				System.out.println("concurrency: " + concurrency + (rate > 0 ? ", at most " + rate + " pings/sec." : ""));
 				
 				ElapsedTimeInterval udpResult = null;
 				ElapsedTimeInterval tcpResult = null;
+				double udpRate = 0.0;
+				double tcpRate = 0.0;
 
 				if ( targetUDPPort != 0  ) {
 					ElapsedTime.clear();
 					// we rely on knowing the implementation of udpPing here -- we throw
 					// away the return value because we'll print the ElaspedTime stats
-					udpResult = udpPing(EchoServiceBase.HEADER_BYTES, targetIP, targetUDPPort, socketTimeout, nTrials);
+					long start = System.nanoTime();
+					udpResult = udpPing(EchoServiceBase.HEADER_BYTES, Collections.singletonList(new InetSocketAddress(targetIP, targetUDPPort)),
+							socketTimeout, nTrials, concurrency, rate);
+					udpRate = nTrials / ((System.nanoTime() - start) / 1e9);
 				}
 
 				if ( targetTCPPort != 0 ) {
 					ElapsedTime.clear();
-					tcpResult = tcpPing(EchoServiceBase.HEADER_BYTES, targetIP, targetTCPPort, socketTimeout, nTrials);
+					long start = System.nanoTime();
+					tcpResult = tcpPing(EchoServiceBase.HEADER_BYTES, Collections.singletonList(new InetSocketAddress(targetIP, targetTCPPort)),
+							socketTimeout, nTrials, concurrency, rate);
+					tcpRate = nTrials / ((System.nanoTime() - start) / 1e9);
 				}
 
-				if ( udpResult != null ) System.out.println("UDP: " + String.format("%.2f msec (%d failures)", udpResult.mean(), udpResult.nAborted()));
-				if ( tcpResult != null ) System.out.println("TCP: " + String.format("%.2f msec (%d failures)", tcpResult.mean(), tcpResult.nAborted()));
+				if ( udpResult != null ) {
+					System.out.println("UDP: " + String.format("%.2f msec (%d failures), %.0f pings/sec.", udpResult.mean(), udpResult.nAborted(), udpRate));
+					System.out.println("UDP: latency " + udpResult.histogram() + " msec.");
+				}
+				if ( tcpResult != null ) {
+					System.out.println("TCP: " + String.format("%.2f msec (%d failures), %.0f pings/sec.", tcpResult.mean(), tcpResult.nAborted(), tcpRate));
+					System.out.println("TCP: latency " + tcpResult.histogram() + " msec.");
+				}
 
 			} catch (Exception e) {
 				System.out.println("Exception: " + e.getMessage());
@@ -106,78 +135,192 @@ public class PingRaw extends NetLoadableConsoleApp implements PingRawInterface {
 	 */
 	@Override
 	public ElapsedTimeInterval udpPing(byte[] header, String hostIP, int udpPort, int socketTimeout, int nTrials) {
+		return udpPing(header, Collections.singletonList(new InetSocketAddress(hostIP, udpPort)), socketTimeout, nTrials, 1, 0);
+	}
+
+	/**
+	 * Sends nTrials UDP pings, spread evenly over the targets, keeping up to concurrency of them
+	 * outstanding and starting no more than rate per second (0 for no limit); see PingEngine.
+	 * <p>
+	 * All the pings are sent from one socket.  Each request carries its trial number after the header,
+	 * which the echo service sends back, so replies are matched to their requests whatever order they
+	 * arrive in, and a reply that arrives after its trial has timed out is discarded.
+	 */
+	public ElapsedTimeInterval udpPing(byte[] header, List<InetSocketAddress> targets, int socketTimeout, int nTrials, int concurrency, double rate) {
 		
 		//TODO: implement this method
 		
+		PingEngine engine = new PingEngine("PingRaw_UDPTotalDelay", concurrency, rate, socketTimeout);
 		try {
-			for(int i = 0 ; i < nTrials ; i++) {
-				ElapsedTime.start("PingRaw_UDPTotalDelay");
-				DatagramSocket socket = new DatagramSocket();
-				socket.setSoTimeout(socketTimeout); // wait at most a bounded time when receiving on this socket
-
-				DatagramPacket packet = new DatagramPacket(header, header.length, new InetSocketAddress(hostIP, udpPort));
-				socket.send(packet);  // tell the server we're here.  The server will get our IP and port from the received packet.
-
-				// we're supposed to get back what we sent (but with header contents changed),
-				// so the amount of buffer we need is equal to size of what we sent.
-				byte[] receiveBuf = new byte[EchoServiceBase.RESPONSE_LEN];
-				DatagramPacket receivePacket = new DatagramPacket(receiveBuf, receiveBuf.length);
-				try { 
-					socket.receive(receivePacket);
-					if ( receivePacket.getLength() != EchoServiceBase.RESPONSE_LEN )
-						throw new Exception("Bad response: expected " + EchoServiceBase.RESPONSE_LEN + " bytes but got back " + receivePacket.getLength());
-					String rcvdHeader = new String(receiveBuf,0,4);
-					if ( !rcvdHeader.equalsIgnoreCase(EchoServiceBase.RESPONSE_OKAY_STR) ) 
-						throw new Exception("Bad returned header: got '" + rcvdHeader + "' but wanted '" + EchoServiceBase.RESPONSE_OKAY_STR);
-				} catch (SocketTimeoutException e) {
-					// This exception is thrown if we wait on receive() longer than the timeout
-					System.out.println("UDP socket timeout");
-					ElapsedTime.abort("PingRaw_UDPTotalDelay");
-				}
-				ElapsedTime.stop("PingRaw_UDPTotalDelay");
-				socket.close();
-			}
+			engine.run(new UdpProber(engine, header, targets), nTrials);
 		} catch (Exception e) {
 			System.out.println("Exception: " + e.getMessage());
-			ElapsedTime.abort("PingRaw_UDPTotalDelay");
 		}
 		return ElapsedTime.get("PingRaw_UDPTotalDelay");
 	}
+
+	/**
+	 * Sends UDP pings from one socket, with a thread receiving the replies.
+	 */
+	private static class UdpProber implements PingEngine.Prober {
+		private final PingEngine mEngine;
+		private final List<InetSocketAddress> mTargets;
+		private final int mHeaderLen;
+		// the socket, with a ring of buffers replies are received into
+		private final DatagramRing mRing;
+		// every request is built here
+		private final ByteBuffer mRequest;
+		private final Thread mReceiver;
+		private volatile boolean mClosed;
+
+		UdpProber(PingEngine engine, byte[] header, List<InetSocketAddress> targets) throws IOException {
+			mEngine = engine;
+			mTargets = targets;
+			mHeaderLen = header.length;
+			// we're supposed to get back what we sent (but with header contents changed),
+			// so each slot needs room for what we send.
+			mRing = DatagramRing.open(RING_SLOTS, mHeaderLen + TRIAL_LEN);
+			mRequest = ByteBuffer.allocateDirect(mHeaderLen + TRIAL_LEN);
+			mRequest.put(header);
+			mReceiver = new Thread() {
+				public void run() {
+					receiveReplies();
+				}
+			};
+			mReceiver.setDaemon(true);
+			mReceiver.start();
+		}
+
+		@Override
+		public void send(int trial) throws IOException {
+			mRequest.putInt(mHeaderLen, trial).rewind();
+			if ( mRing.channel().send(mRequest, mTargets.get(trial % mTargets.size())) == 0 )
+				throw new IOException("UDP send buffer is full");
+		}
+
+		private void receiveReplies() {
+			try {
+				while ( !mClosed ) {
+					int n = mRing.receive(RECEIVE_WAKEUP);
+					for ( int i = 0; i < n; i++ ) {
+						ByteBuffer reply = mRing.get(i);
+						if ( reply.remaining() != mHeaderLen + TRIAL_LEN ) continue;
+						if ( !isResponseOkay(reply) ) {
+							byte[] rcvdHeader = new byte[EchoServiceBase.RESPONSE_LEN];
+							reply.get(rcvdHeader);
+							System.out.println("Bad returned header: got '" + new String(rcvdHeader) + "' but wanted '" + EchoServiceBase.RESPONSE_OKAY_STR);
+							mEngine.failed(reply.getInt(mHeaderLen));
+							continue;
+						}
+						mEngine.replied(reply.getInt(mHeaderLen));
+					}
+				}
+			} catch (IOException e) {
+				if ( !mClosed ) System.out.println("UDP receive failed: " + e.getMessage());
+			}
+		}
+
+		@Override
+		public void close() {
+			mClosed = true;
+			try {
+				mReceiver.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			mRing.close();
+		}
+	}
+
+	// True if reply starts with the okay response (in any case)
+	private static boolean isResponseOkay(ByteBuffer reply) {
+		for ( int i = 0; i < EchoServiceBase.RESPONSE_LEN; i++ )
+			if ( Character.toLowerCase((char)reply.get(i)) != Character.toLowerCase((char)EchoServiceBase.RESPONSE_OKAY_BYTES[i]) ) return false;
+		return true;
+	}
 	
 	@Override
 	public ElapsedTimeInterval tcpPing(byte[] header, String hostIP, int tcpPort, int socketTimeout, int nTrials) {
+		return tcpPing(header, Collections.singletonList(new InetSocketAddress(hostIP, tcpPort)), socketTimeout, nTrials, 1, 0);
+	}
+
+	/**
+	 * Sends nTrials TCP pings, spread evenly over the targets, as udpPing() does.  Each target's pings
+	 * share one connection: the header is sent once, when it's opened, and each ping is then its
+	 * trial number, which the echo service sends straight back.
+	 * <p>
+	 * So a sample is the round trip of one echo on an open connection.  Connection setup (the TCP
+	 * handshake and the header exchange) is not part of any sample, as it was when each trial opened
+	 * its own connection; that cost now shows only in the total run time.
+	 */
+	public ElapsedTimeInterval tcpPing(final byte[] header, List<InetSocketAddress> targets, final int socketTimeout, int nTrials, int concurrency, double rate) {
 		
 		//TODO: implement this method
 
+		PingEngine engine = new PingEngine("PingRaw_TCPTotal", concurrency, rate, socketTimeout);
 		try {
-			for (int i = 0; i < nTrials; i++) {
-				ElapsedTime.start("PingRaw_TCPTotal");
-				Socket tcpSocket = new Socket(hostIP, tcpPort);
-				tcpSocket.setSoTimeout(socketTimeout);
-				InputStream is = tcpSocket.getInputStream();
-				OutputStream os = tcpSocket.getOutputStream();
-	
-				// send header
-				os.write(header);
-				tcpSocket.shutdownOutput();
+			engine.run(new PingEngine.ConnectionProber(engine, targets) {
+				@Override
+				protected PingEngine.Connection open(InetSocketAddress target) throws IOException {
+					return new TcpConnection(header, target, socketTimeout);
+				}
+			}, nTrials);
+		} catch (Exception e) {
+			System.out.println("Exception: " + e.getMessage());
+		}
+		return ElapsedTime.get("PingRaw_TCPTotal");
+	}
+
+	/**
+	 * A connection to a raw echo service, carrying pings.
+	 */
+	private static class TcpConnection implements PingEngine.Connection {
+		private final Socket mSocket;
+		private final DataInputStream mIn;
+		private final OutputStream mOut;
+		private final byte[] mTrialBuf = new byte[TRIAL_LEN];
+
+		TcpConnection(byte[] header, InetSocketAddress target, int socketTimeout) throws IOException {
+			mSocket = new Socket();
+			try {
+				mSocket.connect(target, socketTimeout);
+				mSocket.setTcpNoDelay(true);
+				mSocket.setSoTimeout(socketTimeout);
+				mIn = new DataInputStream(new BufferedInputStream(mSocket.getInputStream()));
+				mOut = mSocket.getOutputStream();
 	
-				// read the header.  Either the entire header arrives in one chunk, or we
-				// (mistakenly) reject it.
+				// send header, and read the response header
+				mOut.write(header);
 				byte[] headerBuf = new byte[EchoServiceBase.RESPONSE_LEN];
-				int len = is.read(headerBuf);
-				if ( len != EchoServiceBase.RESPONSE_LEN )
-					throw new Exception("Bad response header length: got " + len + " but expected " + EchoServiceBase.RESPONSE_LEN);
+				mIn.readFully(headerBuf);
 				String headerStr = new String(headerBuf);
 				if ( !headerStr.equalsIgnoreCase(EchoServiceBase.RESPONSE_OKAY_STR))
-					throw new Exception("Bad response header: got '" + headerStr + "' but expected '" + EchoServiceBase.RESPONSE_OKAY_STR + "'");
-	
-				ElapsedTime.stop("PingRaw_TCPTotal");
-				tcpSocket.close();
+					throw new IOException("Bad response header: got '" + headerStr + "' but expected '" + EchoServiceBase.RESPONSE_OKAY_STR + "'");
+				// from now on replies are waited for indefinitely; the ping engine times them out
+				mSocket.setSoTimeout(0);
+			} catch (IOException e) {
+				mSocket.close();
+				throw e;
 			}
-		} catch (Exception e) {
-			System.out.println("Exception: " + e.getMessage());
-			ElapsedTime.abort("PingRaw_UDPTotalDelay");
 		}
-		return ElapsedTime.get("PingRaw_TCPTotal");
+
+		@Override
+		public void send(int trial) throws IOException {
+			mTrialBuf[0] = (byte)(trial >>> 24);
+			mTrialBuf[1] = (byte)(trial >>> 16);
+			mTrialBuf[2] = (byte)(trial >>> 8);
+			mTrialBuf[3] = (byte)trial;
+			mOut.write(mTrialBuf);
+		}
+
+		@Override
+		public int readReply() throws IOException {
+			return mIn.readInt();
+		}
+
+		@Override
+		public void close() {
+			try { mSocket.close(); } catch (IOException e) {}
+		}
 	}
 }
@@ -1,11 +1,12 @@
 package edu.uw.cs.cse461.consoleapps.solution;
 
 import java.io.BufferedReader;
-import java.io.InputStream;
+import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.net.SocketTimeoutException;
+import java.util.Collections;
+import java.util.List;
 
 import edu.uw.cs.cse461.consoleapps.PingInterface.PingTCPMessageHandlerInterface;
 import edu.uw.cs.cse461.net.base.NetBase;
@@ -50,19 +51,30 @@ public class PingTCPMessageHandler extends NetLoadableConsoleApp implements Ping
 			int nTrials = Integer.parseInt(trialStr);
 
 			int socketTimeout = config.getAsInt("net.timeout.socket", 2000);
+			// pings kept in flight at once, and most started per second (0 for no limit)
+			int concurrency = config.getAsInt("pingtcpmessagehandler.concurrency", 1, 1);
+			int rate = config.getAsInt("pingtcpmessagehandler.rate", 0, 0);
 
 			System.out.println("Host: " + targetIP);
 			System.out.println("tcp port: " + targetTCPPort);
 			System.out.println("trials: " + nTrials);
+			System.out.println("concurrency: " + concurrency + (rate > 0 ? ", at most " + rate + " pings/sec." : ""));
 
 			ElapsedTimeInterval pingResult = null;
+			double pingRate = 0.0;
 
 			if ( targetTCPPort != 0 ) {
 				ElapsedTime.clear();
-				pingResult = ping("ping", targetIP, targetTCPPort, socketTimeout, nTrials);
+				long start = System.nanoTime();
+				pingResult = ping(EchoServiceBase.HEADER_STR, Collections.singletonList(new InetSocketAddress(targetIP, targetTCPPort)),
+						socketTimeout, nTrials, concurrency, rate);
+				pingRate = nTrials / ((System.nanoTime() - start) / 1e9);
 			}
 
-			if ( pingResult != null ) System.out.println("PING: " + String.format("%.2f msec (%d failures)", pingResult.mean(), pingResult.nAborted()));
+			if ( pingResult != null ) {
+				System.out.println("PING: " + String.format("%.2f msec (%d failures), %.0f pings/sec.", pingResult.mean(), pingResult.nAborted(), pingRate));
+				System.out.println("PING: latency " + pingResult.histogram() + " msec.");
+			}
 
 		} catch (Exception e) {
 			System.out.println("PingTCPMessageHandler.run() caught exception: " + e.getMessage());
@@ -72,60 +84,79 @@ public class PingTCPMessageHandler extends NetLoadableConsoleApp implements Ping
 	
 	@Override
 	public ElapsedTimeInterval ping(String header, String hostIP, int port, int timeout, int nTrials) throws Exception {
+		return ping(header, Collections.singletonList(new InetSocketAddress(hostIP, port)), timeout, nTrials, 1, 0);
+	}
+
+	/**
+	 * Sends nTrials pings, spread evenly over the targets, keeping up to concurrency of them outstanding
+	 * and starting no more than rate per second (0 for no limit); see PingEngine.
+	 * <p>
+	 * Each target's pings share one connection, since the echo service answers any number of
+	 * header/message pairs on one.  Each ping's message is its trial number, which comes back in the
+	 * reply.
+	 */
+	public ElapsedTimeInterval ping(final String header, List<InetSocketAddress> targets, final int timeout, int nTrials, int concurrency, double rate) throws Exception {
 		
 		//TODO: implement this method
 		
-		try {
+		PingEngine engine = new PingEngine("PingTCPMessageHandler_PingTotalDelay", concurrency, rate, timeout);
+		engine.run(new PingEngine.ConnectionProber(engine, targets) {
+			@Override
+			protected PingEngine.Connection open(InetSocketAddress target) throws IOException {
+				return new MessageConnection(header, target, timeout);
+			}
+		}, nTrials);
+		return ElapsedTime.get("PingTCPMessageHandler_PingTotalDelay");
+	}
+
+	/**
+	 * A connection to a TCPMessageHandler echo service, carrying pings.
+	 */
+	private static class MessageConnection implements PingEngine.Connection {
+		private final String mHeader;
+		private final TCPMessageHandler mHandler;
+
+		MessageConnection(String header, InetSocketAddress target, int timeout) throws IOException {
+			mHeader = header;
+			Socket tcpSocket = new Socket();
+			try {
+				tcpSocket.connect(target, timeout);
+			} catch (IOException e) {
+				tcpSocket.close();
+				throw e;
+			}
+			mHandler = new TCPMessageHandler(tcpSocket);
+			// replies are waited for indefinitely; the ping engine times them out
+			mHandler.setTimeout(0);
+			mHandler.setNoDelay(true);
+		}
+
+		@Override
+		public void send(int trial) throws IOException {
+			// send the header and message
+			mHandler.sendMessage(mHeader);
+			mHandler.sendMessage(Integer.toString(trial));
+		}
 
-			Socket tcpSocket = null;
-			TCPMessageHandler tcpMessageHandlerSocket = null;
-			String msg = "";
-			for(int i = 0 ; i < nTrials ; i++) {
-				try {
-					ElapsedTime.start("PingTCPMessageHandler_PingTotalDelay");
-					
-					// set up the Message Handler
-					tcpSocket = new Socket(hostIP, port);
-					tcpMessageHandlerSocket = new TCPMessageHandler(tcpSocket);
-					tcpMessageHandlerSocket.setTimeout(timeout);
-					tcpMessageHandlerSocket.setNoDelay(true);
-					
-					// send the header and message
-					tcpMessageHandlerSocket.sendMessage(header);
-					tcpMessageHandlerSocket.sendMessage(msg);
-
-					// read response header
-					String headerStr = tcpMessageHandlerSocket.readMessageAsString();
-					if ( ! headerStr.equalsIgnoreCase(EchoServiceBase.RESPONSE_OKAY_STR) )
-						throw new Exception("Bad response header: '" + headerStr + "'");
-
-					// read response payload (which should be empty)
-					String response = tcpMessageHandlerSocket.readMessageAsString();
-					if ( !  response.equals(msg))
-						throw new Exception("Bad response payload: sent '" + msg + "' got back '" + response + "'");
-				} catch (SocketTimeoutException e) {
-					System.out.println("Timed out");
-					ElapsedTime.abort("PingTCPMessageHandler_PingTotalDelay");
-				} catch (Exception e) {
-					System.out.println("TCPMessageHandler read failed: " + e.getMessage());
-					ElapsedTime.abort("PingTCPMessageHandler_PingTotalDelay");
-				} finally {
-					if ( tcpMessageHandlerSocket != null ) {
-						try {
-							tcpMessageHandlerSocket.close();
-							ElapsedTime.stop("PingTCPMessageHandler_PingTotalDelay");
-						} catch (Exception e) {
-							ElapsedTime.abort("PingTCPMessageHandler_PingTotalDelay");
-						}
-					}
-				}
+		@Override
+		public int readReply() throws IOException {
+			// read response header
+			String headerStr = mHandler.readMessageAsString();
+			if ( ! headerStr.equalsIgnoreCase(EchoServiceBase.RESPONSE_OKAY_STR) )
+				throw new IOException("Bad response header: '" + headerStr + "'");
+
+			// read response payload (which should be the trial number we sent)
+			String response = mHandler.readMessageAsString();
+			try {
+				return Integer.parseInt(response);
+			} catch (NumberFormatException e) {
+				throw new IOException("Bad response payload: '" + response + "'");
 			}
-		} catch (Exception e) {
-			System.out.println("Exception: " + e.getMessage());
-			ElapsedTime.abort("PingTCPMessageHandler_PingTotalDelay");
 		}
 
-		return ElapsedTime.get("PingTCPMessageHandler_PingTotalDelay");
+		@Override
+		public void close() {
+			mHandler.close();
+		}
 	}
-
 }
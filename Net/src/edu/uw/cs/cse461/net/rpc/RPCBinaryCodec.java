@@ -0,0 +1,400 @@
+package edu.uw.cs.cse461.net.rpc;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONString;
+import org.json.JSONTokener;
+
+/**
+ * Compact binary RPC encoding.  It carries exactly what the JSON encoding does, but numbers
+ * and strings are length-prefixed binary rather than text that must be formatted, escaped and scanned.
+ * <p>
+ * A message is a kind byte (1 control, 2 invoke, 3 OK, 4 ERROR, 5 batch, 6 chunk), the id and host, the fields
+ * of that kind in a fixed order, and finally an object holding any other fields (or null):
+ * <pre>
+ *   control: action:string options:value
+ *   invoke:  app:string method:string args:value
+ *   batch:   calls:value
+ *   OK:      callid:int value:value
+ *   ERROR:   callid:int message:string callargs:value
+ *   chunk:   callid:int value:value
+ * </pre>
+ * A value is a tag byte followed by its data: null, false, true, int (zigzag varint), double
+ * (8 bytes), string (varint length then UTF-8), object (varint count then key string/value pairs),
+ * array (varint count then values), or bytes (varint length then the bytes).  An absent field is sent as null.
+ * <p>
+ * Byte arrays are sent inline as bytes values unless the connection sends them as attachments (see RPCCodec).
+ * <p>
+ * JSON messages always begin with '{', which is never a kind byte, so decode() also accepts JSON.
+ *
+ * @author grahamb5
+ */
+class RPCBinaryCodec extends RPCCodec {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	// message kinds
+	private static final int KIND_CONTROL = 1;
+	private static final int KIND_INVOKE = 2;
+	private static final int KIND_OK = 3;
+	private static final int KIND_ERROR = 4;
+	private static final int KIND_BATCH = 5;
+	private static final int KIND_CHUNK = 6;
+
+	// value tags
+	private static final int TAG_NULL = 0;
+	private static final int TAG_FALSE = 1;
+	private static final int TAG_TRUE = 2;
+	private static final int TAG_INT = 3;
+	private static final int TAG_DOUBLE = 4;
+	private static final int TAG_STRING = 5;
+	private static final int TAG_OBJECT = 6;
+	private static final int TAG_ARRAY = 7;
+	private static final int TAG_BYTES = 8;
+
+	// for each kind, the fields that have a fixed position, and so aren't repeated in the trailing object
+	private static final String[][] KIND_FIELDS = {
+		null,
+		{ "type", "id", "host", "action", "options" },
+		{ "type", "id", "host", "app", "method", "args" },
+		{ "type", "id", "host", "callid", "value" },
+		{ "type", "id", "host", "callid", "message", "callargs" },
+		{ "type", "id", "host", "calls" },
+		{ "type", "id", "host", "callid", "value" },
+	};
+
+	RPCBinaryCodec(boolean attachments) {
+		super(attachments);
+	}
+
+	@Override
+	String name() {
+		return BINARY;
+	}
+
+	//--------------------------------------------------------------------------------------
+	// encoding
+	//--------------------------------------------------------------------------------------
+
+	@Override
+	void encode(RPCMessage msg, MessageBuffer out) throws IOException {
+		JSONObject obj = msg.marshall();
+		try {
+			String type = obj.getString("type");
+			int kind;
+			if ( type.equalsIgnoreCase("control") ) kind = KIND_CONTROL;
+			else if ( type.equalsIgnoreCase("invoke") ) kind = KIND_INVOKE;
+			else if ( type.equalsIgnoreCase("OK") ) kind = KIND_OK;
+			else if ( type.equalsIgnoreCase("ERROR") ) kind = KIND_ERROR;
+			else if ( type.equalsIgnoreCase("batch") ) kind = KIND_BATCH;
+			else if ( type.equalsIgnoreCase("chunk") ) kind = KIND_CHUNK;
+			else throw new IOException("Can't encode message of type " + type);
+
+			out.write(kind);
+			writeVarLong(out, zigzag(obj.getInt("id")));
+			writeString(out, obj.getString("host"));
+			switch ( kind ) {
+			case KIND_CONTROL:
+				writeString(out, obj.getString("action"));
+				writeValue(out, obj.opt("options"));
+				break;
+			case KIND_INVOKE:
+				writeString(out, obj.getString("app"));
+				writeString(out, obj.getString("method"));
+				writeValue(out, obj.opt("args"));
+				break;
+			case KIND_OK:
+			case KIND_CHUNK:
+				writeVarLong(out, zigzag(obj.getInt("callid")));
+				writeValue(out, obj.opt("value"));
+				break;
+			case KIND_ERROR:
+				writeVarLong(out, zigzag(obj.getInt("callid")));
+				writeString(out, obj.getString("message"));
+				writeValue(out, obj.opt("callargs"));
+				break;
+			case KIND_BATCH:
+				writeValue(out, obj.opt("calls"));
+				break;
+			}
+			writeExtraFields(out, obj, KIND_FIELDS[kind]);
+		} catch (JSONException e) {
+			throw new IOException("Can't encode message: " + e.getMessage());
+		}
+	}
+
+	// Writes an object holding whatever fields obj has beyond the ones already written, or null if there are none.
+	private void writeExtraFields(MessageBuffer out, JSONObject obj, String[] fixedFields) throws JSONException {
+		int nExtra = obj.length();
+		for ( String field : fixedFields ) if ( obj.has(field) ) nExtra--;
+		if ( nExtra <= 0 ) {
+			out.write(TAG_NULL);
+			return;
+		}
+		out.write(TAG_OBJECT);
+		writeVarLong(out, nExtra);
+		Iterator<?> it = obj.keys();
+		while ( it.hasNext() ) {
+			String key = (String)it.next();
+			if ( isFixedField(key, fixedFields) ) continue;
+			writeString(out, wireKey(key));
+			writeValue(out, obj.get(key));
+		}
+	}
+
+	private static boolean isFixedField(String key, String[] fixedFields) {
+		for ( String field : fixedFields ) if ( field.equals(key) ) return true;
+		return false;
+	}
+
+	private void writeValue(MessageBuffer out, Object value) throws JSONException {
+		if ( value == null || value == JSONObject.NULL ) {
+			out.write(TAG_NULL);
+		} else if ( value instanceof String ) {
+			out.write(TAG_STRING);
+			writeString(out, (String)value);
+		} else if ( value instanceof Boolean ) {
+			out.write(((Boolean)value) ? TAG_TRUE : TAG_FALSE);
+		} else if ( value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte ) {
+			out.write(TAG_INT);
+			writeVarLong(out, zigzag(((Number)value).longValue()));
+		} else if ( value instanceof Number ) {
+			out.write(TAG_DOUBLE);
+			long bits = Double.doubleToLongBits(((Number)value).doubleValue());
+			for ( int shift=56; shift>=0; shift-=8 ) out.write((int)(bits >>> shift));
+		} else if ( value instanceof JSONObject ) {
+			JSONObject obj = (JSONObject)value;
+			out.write(TAG_OBJECT);
+			writeVarLong(out, obj.length());
+			Iterator<?> it = obj.keys();
+			while ( it.hasNext() ) {
+				String key = (String)it.next();
+				writeString(out, wireKey(key));
+				writeValue(out, obj.get(key));
+			}
+		} else if ( value instanceof JSONArray ) {
+			JSONArray array = (JSONArray)value;
+			out.write(TAG_ARRAY);
+			writeVarLong(out, array.length());
+			for ( int i=0; i<array.length(); i++ ) writeValue(out, array.get(i));
+		} else if ( value instanceof byte[] && mAttachments ) {
+			// the object sent in place of the attachment
+			out.write(TAG_OBJECT);
+			writeVarLong(out, 1);
+			writeString(out, ATTACHMENT_KEY);
+			out.write(TAG_INT);
+			writeVarLong(out, zigzag(out.attach((byte[])value)));
+		} else if ( value instanceof byte[] ) {
+			byte[] bytes = (byte[])value;
+			out.write(TAG_BYTES);
+			writeVarLong(out, bytes.length);
+			out.write(bytes, 0, bytes.length);
+		} else if ( value instanceof JSONString ) {
+			// the object supplies its own JSON text
+			writeValue(out, new JSONTokener(((JSONString)value).toJSONString()).nextValue());
+		} else if ( value instanceof Map || value instanceof Collection || value.getClass().isArray() ) {
+			writeValue(out, JSONObject.wrap(value));
+		} else {
+			out.write(TAG_STRING);
+			writeString(out, value.toString());
+		}
+	}
+
+	private static void writeString(MessageBuffer out, String str) {
+		int len = str.length();
+		boolean ascii = true;
+		for ( int i=0; i<len && ascii; i++ ) ascii = str.charAt(i) < 0x80;
+		if ( ascii ) {
+			writeVarLong(out, len);
+			out.ensure(len);
+			for ( int i=0; i<len; i++ ) out.write(str.charAt(i));
+		} else {
+			byte[] bytes = str.getBytes(UTF8);
+			writeVarLong(out, bytes.length);
+			out.write(bytes, 0, bytes.length);
+		}
+	}
+
+	private static void writeVarLong(MessageBuffer out, long v) {
+		while ( (v & ~0x7FL) != 0 ) {
+			out.write((int)((v & 0x7F) | 0x80));
+			v >>>= 7;
+		}
+		out.write((int)v);
+	}
+
+	private static long zigzag(long v) {
+		return (v << 1) ^ (v >> 63);
+	}
+
+	//--------------------------------------------------------------------------------------
+	// decoding
+	//--------------------------------------------------------------------------------------
+
+	@Override
+	RPCMessage decode(byte[] buf, int off, int len) throws IOException {
+		if ( len > 0 && buf[off] == '{' ) return JSON_CODEC.decode(buf, off, len);
+		Decoder in = new Decoder(buf, off, len);
+		try {
+			JSONObject obj = new JSONObject();
+			int kind = in.readByte();
+			obj.put("id", (int)unzigzag(in.readVarLong()));
+			obj.put("host", in.readString());
+			switch ( kind ) {
+			case KIND_CONTROL:
+				obj.put("type", "control");
+				obj.put("action", in.readString());
+				obj.putOpt("options", in.readValue());
+				break;
+			case KIND_INVOKE:
+				obj.put("type", "invoke");
+				obj.put("app", in.readString());
+				obj.put("method", in.readString());
+				obj.putOpt("args", in.readValue());
+				break;
+			case KIND_OK:
+				obj.put("type", "OK");
+				obj.put("callid", (int)unzigzag(in.readVarLong()));
+				obj.putOpt("value", in.readValue());
+				break;
+			case KIND_ERROR:
+				obj.put("type", "ERROR");
+				obj.put("callid", (int)unzigzag(in.readVarLong()));
+				obj.put("message", in.readString());
+				obj.putOpt("callargs", in.readValue());
+				break;
+			case KIND_BATCH:
+				obj.put("type", "batch");
+				obj.putOpt("calls", in.readValue());
+				break;
+			case KIND_CHUNK:
+				obj.put("type", "chunk");
+				obj.put("callid", (int)unzigzag(in.readVarLong()));
+				obj.putOpt("value", in.readValue());
+				break;
+			default:
+				throw new IOException("Unrecognized binary message kind " + kind);
+			}
+			Object extra = in.readValue();
+			if ( extra instanceof JSONObject ) {
+				JSONObject extraObj = (JSONObject)extra;
+				Iterator<?> it = extraObj.keys();
+				while ( it.hasNext() ) {
+					String key = (String)it.next();
+					if ( !obj.has(key) ) obj.put(key, extraObj.get(key));
+				}
+			}
+			if ( in.remaining() != 0 ) throw new IOException(in.remaining() + " unexpected bytes after binary message");
+			return RPCMessage.unmarshall(obj);
+		} catch (JSONException e) {
+			throw new IOException("Malformed binary message: " + e.getMessage());
+		} catch (ArrayIndexOutOfBoundsException e) {
+			throw new IOException("Truncated binary message");
+		}
+	}
+
+	private static long unzigzag(long v) {
+		return (v >>> 1) ^ -(v & 1);
+	}
+
+	// Cursor over the bytes of one message
+	private static class Decoder {
+		private final byte[] mBuf;
+		private int mPos;
+		private final int mEnd;
+
+		Decoder(byte[] buf, int off, int len) {
+			mBuf = buf;
+			mPos = off;
+			mEnd = off + len;
+		}
+
+		int remaining() {
+			return mEnd - mPos;
+		}
+
+		int readByte() {
+			if ( mPos >= mEnd ) throw new ArrayIndexOutOfBoundsException(mPos);
+			return mBuf[mPos++] & 0xff;
+		}
+
+		long readVarLong() throws IOException {
+			long result = 0;
+			for ( int shift=0; shift<64; shift+=7 ) {
+				int b = readByte();
+				result |= (long)(b & 0x7F) << shift;
+				if ( (b & 0x80) == 0 ) return result;
+			}
+			throw new IOException("Malformed varint");
+		}
+
+		private int readLength() throws IOException {
+			long len = readVarLong();
+			if ( len < 0 || len > remaining() ) throw new IOException("Bad length " + len + " in binary message");
+			return (int)len;
+		}
+
+		String readString() throws IOException {
+			int len = readLength();
+			String str = new String(mBuf, mPos, len, UTF8);
+			mPos += len;
+			return str;
+		}
+
+		Object readValue() throws IOException, JSONException {
+			int tag = readByte();
+			switch ( tag ) {
+			case TAG_NULL:
+				return null;
+			case TAG_FALSE:
+				return Boolean.FALSE;
+			case TAG_TRUE:
+				return Boolean.TRUE;
+			case TAG_INT:
+				long v = unzigzag(readVarLong());
+				if ( v == (int)v ) return Integer.valueOf((int)v);
+				return Long.valueOf(v);
+			case TAG_DOUBLE:
+				long bits = 0;
+				for ( int i=0; i<8; i++ ) bits = (bits << 8) | readByte();
+				return Double.valueOf(Double.longBitsToDouble(bits));
+			case TAG_STRING:
+				return readString();
+			case TAG_OBJECT: {
+				long n = readVarLong();
+				JSONObject obj = new JSONObject();
+				for ( long i=0; i<n; i++ ) {
+					String key = readString();
+					Object value = readValue();
+					obj.put(key, value == null ? JSONObject.NULL : value);
+				}
+				return obj;
+			}
+			case TAG_ARRAY: {
+				long n = readVarLong();
+				JSONArray array = new JSONArray();
+				for ( long i=0; i<n; i++ ) {
+					Object value = readValue();
+					array.put(value == null ? JSONObject.NULL : value);
+				}
+				return array;
+			}
+			case TAG_BYTES: {
+				int len = readLength();
+				byte[] bytes = new byte[len];
+				System.arraycopy(mBuf, mPos, bytes, 0, len);
+				mPos += len;
+				return bytes;
+			}
+			default:
+				throw new IOException("Unrecognized value tag " + tag + " in binary message");
+			}
+		}
+	}
+}
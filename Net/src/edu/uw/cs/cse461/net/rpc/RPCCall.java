@@ -1,25 +1,22 @@
 package edu.uw.cs.cse461.net.rpc;
 
 import java.io.IOException;
-import java.net.SocketException;
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.Map;
-import java.util.Set;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import edu.uw.cs.cse461.net.base.NetBase;
 import edu.uw.cs.cse461.net.base.NetLoadable.NetLoadableService;
-import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCCallMessage.RPCControlMessage;
+import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCCallMessage.RPCBatchMessage;
 import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCCallMessage.RPCInvokeMessage;
-import edu.uw.cs.cse461.net.tcpmessagehandler.TCPMessageHandler;
-import edu.uw.cs.cse461.util.Log;
+import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCResponseMessage;
 
 /**
  * Class implementing the caller side of RPC -- the RPCCall.invoke() method.
@@ -28,9 +25,29 @@ import edu.uw.cs.cse461.util.Log;
  * <p>
  * <p>
  * This class is responsible for implementing persistent connections. 
- * (What you might think of as the actual remote call code is in RCPCallerSocket.java.)
- * Implementing persistence requires keeping a cache that must be cleaned periodically.
- * We do that using a cleaner thread.
+ * (What you might think of as the actual remote call code is in RPCClientConnection.java.)
+ * Connections are pooled by the ip and port of the remote RPC service, so concurrent callers each get
+ * a connection of their own (or a share of a multiplexed one) rather than interleaving on a single socket.
+ * The pool is sized by config file entries rpc.pool.maxtotal, rpc.pool.maxidle and rpc.pool.maxshared
+ * (see RPCConnectionPool).  A reaper thread closes connections that have been idle for rpc.persistence.timeout
+ * msec., checking every rpc.pool.sweepinterval msec.
+ * <p>
+ * Each new connection asks for the encoding named by config file entry rpc.encoding (json or binary;
+ * binary by default).  If the remote service doesn't agree to it, the connection uses JSON.
+ * <p>
+ * Unless config file entry rpc.multiplex is false, connections also ask to be multiplexed, so that
+ * concurrent invoke()s on the same service share its connection rather than waiting for one another
+ * (see RPCClientConnection).
+ * <p>
+ * invokeAsync() is the non-blocking version of invoke(): it returns a future for the result, so a single
+ * thread can have any number of calls outstanding.
+ * <p>
+ * invokeBatch() sends several calls to one host in a single message, which the remote RPC service
+ * executes in parallel and answers with a single response.  A burst of small calls then costs one
+ * round trip rather than one each.
+ * <p>
+ * invokeStream() calls a streaming method (see RPCCallableMethod.StreamHandler), whose result arrives as a
+ * sequence of chunks that are passed to a ChunkHandler as they come, so neither end holds all of it at once.
  * 
  * @author zahorjan
  *
@@ -38,8 +55,8 @@ import edu.uw.cs.cse461.util.Log;
 public class RPCCall extends NetLoadableService {
 	private static final String TAG="RPCCall";
 	
-	// Map from service name to pair of message handler and keep alive boolean value
-	private static ServiceManager services;
+	// Open connections, by remote ip and port
+	private static RPCConnectionPool pool;
 
 	//-------------------------------------------------------------------------------------------
 	//-------------------------------------------------------------------------------------------
@@ -88,6 +105,185 @@ public class RPCCall extends NetLoadableService {
 		return invoke(ip, port, serviceName, method, userRequest, socketTimeout);
 	}
 
+	/**
+	 * Asynchronous version of invoke().  Returns at once; the future completes with whatever the remote
+	 * method returns, or fails with the exception invoke() would have thrown.
+	 * <p>
+	 * socketTimeout is a deadline for the whole call, including opening a connection if one is needed:
+	 * if it passes first, the future fails with a SocketTimeoutException.  Cancelling the future abandons
+	 * the call.  Either way the remote method may still run; its result is discarded.
+	 * @param socketTimeout Maximum time to wait for a response, in msec.
+	 */
+	public static CompletableFuture<JSONObject> invokeAsync(
+			String ip,				  // ip or dns name of remote host
+			int port,                 // port that RPC is listening on on the remote host
+			String serviceName,       // name of the remote service
+			String method,            // name of that service's method to invoke
+			JSONObject userRequest,   // arguments to send to remote method,
+			int socketTimeout         // deadline for this call, in msec.
+			) {
+		RPCCall rpcCallObj =  (RPCCall)NetBase.theNetBase().getService( "rpccall" );
+		if ( rpcCallObj == null ) {
+			CompletableFuture<JSONObject> failed = new CompletableFuture<JSONObject>();
+			failed.completeExceptionally(new IOException("RPCCall.invokeAsync() called but the RPCCall service isn't loaded"));
+			return failed;
+		}
+		return rpcCallObj.new AsyncInvocation(ip, port, serviceName, method, userRequest, socketTimeout).start();
+	}
+	
+	/**
+	 * A convenience implementation of invokeAsync() that uses the net.timeout.socket config file entry
+	 * (or 2 seconds) as the deadline.
+	 */
+	public static CompletableFuture<JSONObject> invokeAsync(
+			String ip,				  // ip or dns name of remote host
+			int port,                 // port that RPC is listening on on the remote host
+			String serviceName,       // name of the remote service
+			String method,            // name of that service's method to invoke
+			JSONObject userRequest    // arguments to send to remote method,
+			) {
+		int socketTimeout  = NetBase.theNetBase().config().getAsInt("net.timeout.socket", 2000);
+		return invokeAsync(ip, port, serviceName, method, userRequest, socketTimeout);
+	}
+
+	/**
+	 * Receives the chunks of a streamed response, in the order the remote method wrote them.
+	 */
+	public interface ChunkHandler {
+		/**
+		 * Called, on the thread that called invokeStream(), for each chunk.  An exception abandons the call.
+		 */
+		public void handleChunk(JSONObject chunk) throws Exception;
+	}
+	
+	/**
+	 * Invokes a streaming method, passing each chunk of its result to chunkHandler as it arrives.
+	 * Returns once the method has finished, with the value it returns after its chunks.
+	 * <p>
+	 * Like invoke(), a call that fails because its pooled connection had gone bad is tried again,
+	 * but only if no chunks had arrived.
+	 * @param socketTimeout Maximum time to wait for each chunk, and for the end of the call, in msec.
+	 * @return Whatever the remote method returns
+	 * @throws IOException If the call fails, or the remote RPC service doesn't stream responses
+	 */
+	public static JSONObject invokeStream(
+			String ip,				  // ip or dns name of remote host
+			int port,                 // port that RPC is listening on on the remote host
+			String serviceName,       // name of the remote service
+			String method,            // name of that service's method to invoke
+			JSONObject userRequest,   // arguments to send to remote method,
+			final ChunkHandler chunkHandler, // receives the chunks of the result
+			int socketTimeout         // timeout for each chunk, in msec.
+			) throws JSONException, IOException {
+		RPCCall rpcCallObj =  (RPCCall)NetBase.theNetBase().getService( "rpccall" );
+		if ( rpcCallObj == null ) throw new IOException("RPCCall.invokeStream() called but the RPCCall service isn't loaded");
+		
+		// counts the chunks, so we know whether trying again would repeat any
+		final int[] nChunks = new int[1];
+		final ChunkHandler counter = new ChunkHandler() {
+			@Override
+			public void handleChunk(JSONObject chunk) throws Exception {
+				nChunks[0]++;
+				chunkHandler.handleChunk(chunk);
+			}
+		};
+		RPCResponseMessage recMsg;
+		try {
+			recMsg = rpcCallObj.streamCall(ip, port, new RPCInvokeMessage(serviceName, method, userRequest), counter, socketTimeout);
+		} catch (SocketTimeoutException e) {
+			// the service is slow, not gone
+			throw e;
+		} catch (IOException e) {
+			if (nChunks[0] > 0) throw e;
+			// the connection may have gone bad while pooled; try another
+			recMsg = rpcCallObj.streamCall(ip, port, new RPCInvokeMessage(serviceName, method, userRequest), counter, socketTimeout);
+		}
+		// a streaming method's result is mostly in its chunks, so it may well return nothing after them
+		if (recMsg.type().equals("OK") && !recMsg.marshall().has("value")) return new JSONObject();
+		return resultOf(recMsg);
+	}
+	
+	/**
+	 * One call of a batch: the service and method to invoke and the arguments to send.
+	 */
+	public static class Invocation {
+		final String serviceName;
+		final String method;
+		final JSONObject userRequest;
+		
+		public Invocation(String serviceName, String method, JSONObject userRequest) {
+			this.serviceName = serviceName;
+			this.method = method;
+			this.userRequest = userRequest;
+		}
+	}
+	
+	/**
+	 * Invokes several methods on the RPC service at ip:port with a single message, returning what each returns.
+	 * The remote service executes them in parallel.  If any of them fails, this throws the exception
+	 * invoke() would have thrown for it (the first, if several fail); use invokeBatchAsync() to see
+	 * the other results anyway.
+	 * @param calls The calls to make
+	 * @param socketTimeout Maximum time to wait for the whole batch, in msec.
+	 * @return The value returned by each call, in the same order as calls
+	 */
+	public static List<JSONObject> invokeBatch(
+			String ip,				  // ip or dns name of remote host
+			int port,                 // port that RPC is listening on on the remote host
+			List<Invocation> calls,   // the calls to make
+			int socketTimeout         // timeout for the whole batch, in msec.
+			) throws JSONException, IOException {
+		List<CompletableFuture<JSONObject>> futures = invokeBatchAsync(ip, port, calls, socketTimeout);
+		List<JSONObject> results = new ArrayList<JSONObject>(futures.size());
+		for (CompletableFuture<JSONObject> future : futures) results.add(RPCClientConnection.await(future));
+		return results;
+	}
+	
+	/**
+	 * Asynchronous version of invokeBatch().  Returns at once, with a future for each call that completes
+	 * with what that call returns, or fails with the exception invoke() would have thrown for it.
+	 * <p>
+	 * As with invokeAsync(), socketTimeout is a deadline for the whole batch.  The futures all complete
+	 * when the batch's response arrives; cancelling one of them doesn't stop the others.
+	 * <p>
+	 * A remote service that doesn't accept batches is sent the calls one at a time instead.
+	 */
+	public static List<CompletableFuture<JSONObject>> invokeBatchAsync(
+			String ip,				  // ip or dns name of remote host
+			int port,                 // port that RPC is listening on on the remote host
+			List<Invocation> calls,   // the calls to make
+			int socketTimeout         // deadline for the whole batch, in msec.
+			) {
+		final List<CompletableFuture<JSONObject>> futures = new ArrayList<CompletableFuture<JSONObject>>(calls.size());
+		for (int i = 0; i < calls.size(); i++) futures.add(new CompletableFuture<JSONObject>());
+		if (calls.isEmpty()) return futures;
+		
+		RPCCall rpcCallObj =  (RPCCall)NetBase.theNetBase().getService( "rpccall" );
+		if ( rpcCallObj == null ) {
+			IOException e = new IOException("RPCCall.invokeBatchAsync() called but the RPCCall service isn't loaded");
+			for (CompletableFuture<JSONObject> future : futures) future.completeExceptionally(e);
+			return futures;
+		}
+		rpcCallObj.new BatchInvocation(ip, port, calls, socketTimeout).start().whenComplete(
+				new BiConsumer<List<RPCResponseMessage>, Throwable>() {
+			@Override
+			public void accept(List<RPCResponseMessage> responses, Throwable t) {
+				for (int i = 0; i < futures.size(); i++) {
+					if (t != null) {
+						futures.get(i).completeExceptionally(RPCClientConnection.unwrap(t));
+						continue;
+					}
+					try {
+						futures.get(i).complete(resultOf(responses.get(i)));
+					} catch (JSONException | IOException e) {
+						futures.get(i).completeExceptionally(e);
+					}
+				}
+			}
+		});
+		return futures;
+	}
+
 	//-------------------------------------------------------------------------------------------
 	//-------------------------------------------------------------------------------------------
 	
@@ -96,7 +292,14 @@ public class RPCCall extends NetLoadableService {
 	 */
 	public RPCCall() {
 		super("rpccall");
-		services = new ServiceManager();
+		pool = new RPCConnectionPool(
+				NetBase.theNetBase().config().getAsInt("rpc.pool.maxtotal", 8, 1),
+				NetBase.theNetBase().config().getAsInt("rpc.pool.maxidle", 2, 0),
+				NetBase.theNetBase().config().getAsInt("rpc.pool.maxshared", 32, 1),
+				NetBase.theNetBase().config().getAsInt("rpc.pool.validateafter", 1000, 0),
+				NetBase.theNetBase().config().getAsInt("rpc.persistence.timeout", 30000, 0),
+				NetBase.theNetBase().config().getAsInt("net.timeout.socket", 2000),
+				NetBase.theNetBase().config().getAsInt("rpc.pool.sweepinterval", 1000, 1));
 	}
 
 	/**
@@ -126,38 +329,55 @@ public class RPCCall extends NetLoadableService {
 			) throws JSONException, IOException {
 		
 		
-		// get the TCPMessageHandler associated with the service
-		TCPMessageHandler msgHandle = services.getService(serviceName, ip, port, socketTimeout);
-		
 		// we need to send the call now
 		// first construct the JSONObject that will get sent
-		RPCMessage sendMsg = new RPCInvokeMessage(serviceName, method, userRequest);
-		String msgString = sendMsg.toString();
+		RPCInvokeMessage sendMsg = new RPCInvokeMessage(serviceName, method, userRequest);
 		
+		RPCResponseMessage recMsg;
 		try {
-			// send the invoking call
-			msgHandle.sendMessage(sendMsg.marshall());
-		} catch (Exception e) {
+			recMsg = call(ip, port, sendMsg, socketTimeout);
+		} catch (SocketTimeoutException e) {
+			// the service is slow, not gone; calling again would only wait twice as long
+			throw e;
+		} catch (IOException e) {
 			// retry if we should
-			if (tryAgain) {
-				// get the service again incase it timed out
-				msgHandle = services.resetService(serviceName, ip, port, socketTimeout);
-				msgHandle.sendMessage(sendMsg.marshall());
-			}
+			if (!tryAgain) throw e;
+			// the connection we got may have gone bad while pooled; it's been dropped, so try another
+			recMsg = call(ip, port, sendMsg, socketTimeout);
 		}
-
-		// receive the response
-		RPCMessage recMsg = RPCMessage.unmarshall(msgHandle.readMessageAsString());
-		msgString = recMsg.toString();
 		
+		return resultOf(recMsg);
+	}
+	
+	// Borrows a connection to ip:port, sends the invocation on it, and waits for the response
+	private RPCResponseMessage call(String ip, int port, RPCInvokeMessage sendMsg, int socketTimeout) throws JSONException, IOException {
+		RPCConnectionPool.Lease lease = RPCClientConnection.await(pool.checkout(ip, port, socketTimeout));
+		try {
+			return lease.connection().call(sendMsg, socketTimeout);
+		} finally {
+			lease.release();
+		}
+	}
+	
+	// Borrows a connection to ip:port for itself and makes a streaming call on it.  While the caller is slow
+	// to take chunks the connection's reader waits for it, which would hold up any call sharing the connection.
+	private RPCResponseMessage streamCall(String ip, int port, RPCInvokeMessage sendMsg, ChunkHandler chunkHandler, int socketTimeout) throws JSONException, IOException {
+		RPCConnectionPool.Lease lease = RPCClientConnection.await(pool.checkoutExclusive(ip, port, socketTimeout));
+		try {
+			return lease.connection().streamCall(sendMsg, chunkHandler, socketTimeout);
+		} finally {
+			lease.release();
+		}
+	}
+	
+	// The value carried by a response, if it's a good one
+	private static JSONObject resultOf(RPCResponseMessage recMsg) throws JSONException, IOException {
 		// check if it is a good response
-		if (recMsg.type() == "ERROR" || recMsg.type() != "OK") {
-			throw new IOException("Invoke - Expected type 'OK' but got type " + recMsg.type());
+		if (!recMsg.type().equals("OK")) {
+			throw new IOException("Invoke - Expected type 'OK' but got type " + recMsg.type() + ": " +
+					recMsg.marshall().optString("message"));
 		}
 		
-		// remove the service if we don't keep it alive
-		services.removeService(serviceName);
-		
 		JSONObject value = recMsg.marshall().optJSONObject("value");
 		if (value == null) {
 			throw new IOException("Invoke - Expected value but got null");
@@ -166,150 +386,236 @@ public class RPCCall extends NetLoadableService {
 		return value;
 	}
 	
-	
-	
-	@Override
-	// clear all persistent connections
-	public void shutdown() {
-		services.shutdown();
-	}
-	
-	@Override
-	public String dumpState() {
-		String message = "Current persistent connections are ...\n";
-		for (String servName : services.keySet()) {
-			message = message.concat(servName + "\n");
+	/**
+	 * An asynchronous call: a checkout of a connection followed by a call on it.  Like _invoke(), it tries
+	 * a second time if the first attempt fails on a connection that has gone bad, but not if it just timed out.
+	 * Subclasses say what to send and what to make of the response.
+	 */
+	private abstract class AsyncCall<R, T> {
+		private final String ip;
+		private final int port;
+		private final int socketTimeout;
+		private final long deadline;
+		private final CompletableFuture<T> result = new CompletableFuture<T>();
+		// the checkout or call currently outstanding, if any, which is abandoned if the result completes first
+		private volatile CompletableFuture<?> outstanding = null;
+		
+		AsyncCall(String ip, int port, int socketTimeout) {
+			this.ip = ip;
+			this.port = port;
+			this.socketTimeout = socketTimeout;
+			this.deadline = System.currentTimeMillis() + socketTimeout;
 		}
-		return message;
-	}
-	
-	// class to manage persistent services
-	private class ServiceManager {
-		private Map<String, ServiceState<TCPMessageHandler, Boolean, TimerTask>> services;
-		private Timer timer;
 		
-		public ServiceManager() {
-			services = new HashMap<String, ServiceState<TCPMessageHandler, Boolean, TimerTask>>();
-			timer = new Timer();
+		/**
+		 * Sends the call on connection, returning a future for the response(s).
+		 * @param timeout Time left before the deadline, in msec.
+		 */
+		abstract CompletableFuture<R> send(RPCClientConnection connection, int timeout);
+		
+		/**
+		 * The result of the call, given the response(s) to it.
+		 */
+		abstract T finish(R response) throws JSONException, IOException;
+		
+		CompletableFuture<T> start() {
+			RPCClientConnection.expireAfter(result, socketTimeout, "No response in " + socketTimeout + " msec.");
+			result.whenComplete(new BiConsumer<T, Throwable>() {
+				@Override
+				public void accept(T value, Throwable t) {
+					// timed out or cancelled
+					CompletableFuture<?> step = outstanding;
+					if (step != null) step.cancel(false);
+				}
+			});
+			attempt(true);
+			return result;
 		}
 		
-		public Set<String> keySet() {
-			return services.keySet();
+		// Time left before the deadline, for the next step of the call
+		private int remaining() {
+			if (socketTimeout <= 0) return 0;
+			return (int)Math.max(1, deadline - System.currentTimeMillis());
 		}
 		
-		// resets a service if there was an error
-		public TCPMessageHandler resetService(String serviceName, String ip, int port, int socketTimeout) throws JSONException, IOException {
-			// try and send some data
-			try {
-				if (services.containsKey(serviceName)) {
-					services.get(serviceName).handler.sendMessage(0);
+		private void attempt(final boolean tryAgain) {
+			final CompletableFuture<RPCConnectionPool.Lease> checkout = pool.checkout(ip, port, remaining());
+			outstanding = checkout;
+			if (result.isDone()) checkout.cancel(false);
+			checkout.whenComplete(new BiConsumer<RPCConnectionPool.Lease, Throwable>() {
+				@Override
+				public void accept(final RPCConnectionPool.Lease lease, Throwable t) {
+					if (t != null) {
+						result.completeExceptionally(RPCClientConnection.unwrap(t));
+						return;
+					}
+					if (result.isDone()) {
+						lease.release();
+						return;
+					}
+					CompletableFuture<R> call = send(lease.connection(), remaining());
+					outstanding = call;
+					if (result.isDone()) call.cancel(false);
+					call.whenComplete(new BiConsumer<R, Throwable>() {
+						@Override
+						public void accept(R response, Throwable t) {
+							lease.release();
+							if (t == null) {
+								try {
+									result.complete(finish(response));
+								} catch (JSONException | IOException e) {
+									result.completeExceptionally(e);
+								}
+								return;
+							}
+							Throwable cause = RPCClientConnection.unwrap(t);
+							if (tryAgain && !result.isDone() && cause instanceof IOException && !(cause instanceof SocketTimeoutException)) {
+								// the connection may have gone bad while pooled; try another
+								attempt(false);
+								return;
+							}
+							result.completeExceptionally(cause);
+						}
+					});
 				}
-			} catch (IOException e) {
-				// persistence dropped at the other end, reset
-				services.remove(serviceName);
-				return getService(serviceName, ip, port, socketTimeout);
-			}
-			return getService(serviceName, ip, port, socketTimeout);
+			});
 		}
+	}
+	
+	/**
+	 * One call made by invokeAsync().
+	 */
+	private class AsyncInvocation extends AsyncCall<RPCResponseMessage, JSONObject> {
+		private final String serviceName;
+		private final String method;
+		private final JSONObject userRequest;
 		
-		// gets a service by establishing it or returning an active one
-		public TCPMessageHandler getService(String serviceName, String ip, int port, int socketTimeout) throws JSONException, IOException {
+		AsyncInvocation(String ip, int port, String serviceName, String method, JSONObject userRequest, int socketTimeout) {
+			super(ip, port, socketTimeout);
+			this.serviceName = serviceName;
+			this.method = method;
+			this.userRequest = userRequest;
+		}
 		
-			// return the service if there is already one active
-			if (services.containsKey(serviceName)) {
-				// reset the persistence timeout
-				ServiceState<TCPMessageHandler, Boolean, TimerTask> state = services.get(serviceName);
-				state.timertask.cancel();
-				state.timertask = new PersistenceTask(serviceName);
-				timer.schedule(state.timertask, NetBase.theNetBase().config().getAsInt("rpc.persistence.timeout", 30000));
-				timer.purge();
-				return state.handler;
-			}
-			// otherwise make a new service, add it to the services map and return it
-			// create a socket and message handler for sending messages
-			// also setup the service with a handshake
-			RPCCallerSocket callSocket = new RPCCallerSocket(ip, port, false);
-			TCPMessageHandler msgHandle = new TCPMessageHandler(callSocket);
-			msgHandle.setTimeout(socketTimeout);
-			msgHandle.setMaxReadLength(Integer.MAX_VALUE);
-			
-			// handshake
-			JSONObject options = new JSONObject().put("connection", "keep-alive");
-			RPCMessage sendMsg = new RPCControlMessage("connect", options);
-			String msgString = sendMsg.toString();
-			msgHandle.sendMessage(sendMsg.marshall());
-			RPCMessage recMsg = RPCMessage.unmarshall(msgHandle.readMessageAsString());
-			msgString = recMsg.toString();
-			// check good handshake
-			if (recMsg.type() == "ERROR" || recMsg.type() != "OK") {
-				throw new IOException("Handshake - Expected type 'OK' but got type " + recMsg.type());
+		@Override
+		CompletableFuture<RPCResponseMessage> send(RPCClientConnection connection, int timeout) {
+			try {
+				return connection.callAsync(new RPCInvokeMessage(serviceName, method, userRequest), timeout);
+			} catch (JSONException e) {
+				CompletableFuture<RPCResponseMessage> failed = new CompletableFuture<RPCResponseMessage>();
+				failed.completeExceptionally(e);
+				return failed;
 			}
-			
-			// should we keep this connection alive or not
-			
-			boolean keepAlive = recMsg.marshall().getJSONObject("value").getString("connection").equals("keep-alive");
-			
-			services.put(serviceName, new ServiceState<TCPMessageHandler, Boolean, TimerTask>(msgHandle, keepAlive, new PersistenceTask(serviceName)));
-			timer.schedule(services.get(serviceName).timertask, NetBase.theNetBase().config().getAsInt("rpc.persistence.timeout", 30000));
-			return msgHandle;
 		}
 		
-		// removes a service if it is not persistent
-		public ServiceState<TCPMessageHandler, Boolean, TimerTask> removeService(String serviceName) {
-			// remove the service if it exists and is not persistent 
-			if (services.containsKey(serviceName)) {
-				if (!services.get(serviceName).persistence)
-					return services.remove(serviceName);
-			}
-			return null;
+		@Override
+		JSONObject finish(RPCResponseMessage recMsg) throws JSONException, IOException {
+			return resultOf(recMsg);
 		}
+	}
+	
+	/**
+	 * The calls made by invokeBatchAsync(), yielding the response to each.  If the connection's service
+	 * doesn't accept batches, the calls are sent on it one at a time.
+	 */
+	private class BatchInvocation extends AsyncCall<List<RPCResponseMessage>, List<RPCResponseMessage>> {
+		private final List<Invocation> calls;
 		
-		// shutdown the services
-		public void shutdown() {
-			// close each connection
-			for (ServiceState<TCPMessageHandler, Boolean, TimerTask> serv : services.values()) {
-				serv.handler.close();
-				serv.timertask.cancel();
-			}
-			
-			// clear the map
-			for (String servName : services.keySet()) {
-				services.remove(servName);
-			}
-			timer.purge();
-			timer.cancel();
+		BatchInvocation(String ip, int port, List<Invocation> calls, int socketTimeout) {
+			super(ip, port, socketTimeout);
+			this.calls = calls;
 		}
 		
-		// timer task to be executed on persistence timeout
-		private class PersistenceTask extends TimerTask {
-			private String serviceName;
-			
-			PersistenceTask(String serviceName) {
-				super();
-				this.serviceName = serviceName;
+		@Override
+		CompletableFuture<List<RPCResponseMessage>> send(RPCClientConnection connection, int timeout) {
+			final CompletableFuture<List<RPCResponseMessage>> responses = new CompletableFuture<List<RPCResponseMessage>>();
+			try {
+				List<RPCInvokeMessage> invokeMsgs = new ArrayList<RPCInvokeMessage>(calls.size());
+				for (Invocation call : calls) invokeMsgs.add(new RPCInvokeMessage(call.serviceName, call.method, call.userRequest));
+				
+				if (connection.acceptsBatches()) {
+					final int nCalls = invokeMsgs.size();
+					final CompletableFuture<RPCResponseMessage> call = connection.callAsync(new RPCBatchMessage(invokeMsgs), timeout);
+					call.whenComplete(new BiConsumer<RPCResponseMessage, Throwable>() {
+						@Override
+						public void accept(RPCResponseMessage recMsg, Throwable t) {
+							if (t != null) {
+								responses.completeExceptionally(RPCClientConnection.unwrap(t));
+								return;
+							}
+							try {
+								responses.complete(unpack(resultOf(recMsg), nCalls));
+							} catch (JSONException | IOException e) {
+								responses.completeExceptionally(e);
+							}
+						}
+					});
+					cancelWith(responses, Collections.<CompletableFuture<?>>singletonList(call));
+					return responses;
+				}
+				
+				final List<CompletableFuture<RPCResponseMessage>> parts = new ArrayList<CompletableFuture<RPCResponseMessage>>(invokeMsgs.size());
+				for (RPCInvokeMessage invokeMsg : invokeMsgs) parts.add(connection.callAsync(invokeMsg, timeout));
+				CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[parts.size()])).whenComplete(new BiConsumer<Void, Throwable>() {
+					@Override
+					public void accept(Void ignored, Throwable t) {
+						if (t != null) {
+							responses.completeExceptionally(RPCClientConnection.unwrap(t));
+							return;
+						}
+						List<RPCResponseMessage> list = new ArrayList<RPCResponseMessage>(parts.size());
+						for (CompletableFuture<RPCResponseMessage> part : parts) list.add(part.join());
+						responses.complete(list);
+					}
+				});
+				cancelWith(responses, new ArrayList<CompletableFuture<?>>(parts));
+			} catch (JSONException e) {
+				responses.completeExceptionally(e);
 			}
-
-			@Override
-			public void run() {
-				services.remove(serviceName);
+			return responses;
+		}
+		
+		@Override
+		List<RPCResponseMessage> finish(List<RPCResponseMessage> responses) {
+			return responses;
+		}
+		
+		// The responses carried by the value of a batch's response
+		private List<RPCResponseMessage> unpack(JSONObject value, int nCalls) throws JSONException, IOException {
+			JSONArray array = value.getJSONArray("responses");
+			if (array.length() != nCalls)
+				throw new IOException("Batch - Expected " + nCalls + " responses but got " + array.length());
+			List<RPCResponseMessage> responses = new ArrayList<RPCResponseMessage>(nCalls);
+			for (int i = 0; i < nCalls; i++) {
+				JSONObject response = array.optJSONObject(i);
+				RPCMessage msg = response == null ? null : RPCMessage.unmarshall(response);
+				if (!(msg instanceof RPCResponseMessage)) throw new IOException("Batch - No response for call " + i);
+				responses.add((RPCResponseMessage)msg);
 			}
-			
+			return responses;
 		}
 		
+		// Abandons the calls behind future if it's cancelled (or times out)
+		private void cancelWith(CompletableFuture<?> future, final List<CompletableFuture<?>> calls) {
+			future.whenComplete(new BiConsumer<Object, Throwable>() {
+				@Override
+				public void accept(Object value, Throwable t) {
+					if (t != null) for (CompletableFuture<?> call : calls) call.cancel(false);
+				}
+			});
+		}
 	}
 	
-	// holds the state for a service
-	private class ServiceState<H, P, T> {
-	    private H handler;
-	    private P persistence;
-	    private T timertask;
-
-	    public ServiceState(H handler, P persistence, T timertask) {
-	        this.handler = handler;
-	        this.persistence = persistence;
-	        this.timertask = timertask;
-	    }
-
-	    
+	
+	
+	@Override
+	// clear all persistent connections
+	public void shutdown() {
+		pool.shutdown();
+	}
+	
+	@Override
+	public String dumpState() {
+		return "Current persistent connections are ...\n" + pool;
 	}
 }
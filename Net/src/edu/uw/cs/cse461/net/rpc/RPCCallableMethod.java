@@ -1,9 +1,11 @@
 package edu.uw.cs.cse461.net.rpc;
 
-import java.io.PrintWriter;
-import java.io.StringWriter;
-import java.io.Writer;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
 
 import org.json.JSONObject;
 
@@ -13,29 +15,136 @@ import edu.uw.cs.cse461.util.Log;
  * An object of this type represents an RPC callable method.  You'll have one
  * object of this type for each method you expose by RPC.
  * <p>
- * The parameterized type, T, is the class exposing the method.
+ * There are two ways to make one.  The original names a public method of the service object, which
+ * is looked up by reflection once, when the RPCCallableMethod is created, and bound to the object as a
+ * MethodHandle; calls then go straight to it, without Method.invoke()'s per-call checks and boxing.
+ * Or the service can supply a Handler, which is called directly.
+ * <p>
+ * A StreamHandler makes a streaming method: rather than building its whole result before returning it,
+ * the method writes it as a sequence of chunks, which go to the caller as they're written (see
+ * RPCCall.invokeStream()).  It can only be called by callers that asked for streaming.
  * <p>
  * See the source in EchoRPCService.java for an example of its use.
  * @author zahorjan
  *
- * @param <T>
  */
 public class RPCCallableMethod {
 	private static final String TAG="RPCCallableMethod";
-	
-	Object service;
-	Method method;
+
+	/**
+	 * The code that handles calls of an RPC method.  Services can implement it (often as an anonymous
+	 * class) instead of naming a method for RPCCallableMethod to find by reflection.
+	 */
+	public interface Handler {
+		/**
+		 * Handles one call.
+		 * @param args The arguments sent by the caller
+		 * @return The value to return to the caller (may be null)
+		 * @throws Exception Reported to the caller as an error response
+		 */
+		public JSONObject handleCall(JSONObject args) throws Exception;
+	}
+
+	/**
+	 * Where a streaming method writes its chunks.
+	 */
+	public interface Stream {
+		/**
+		 * Sends chunk to the caller.  Blocks while the connection has as much unsent data
+		 * queued as it's allowed, so a method producing faster than the network can carry doesn't
+		 * pile up chunks in memory.  A chunk can't be changed once it has been written.
+		 * @throws IOException If the connection has failed, or the call has returned
+		 */
+		public void write(JSONObject chunk) throws IOException;
+	}
+
+	/**
+	 * The code that handles calls of a streaming RPC method.
+	 */
+	public interface StreamHandler {
+		/**
+		 * Handles one call, writing its result to stream.
+		 * @param args The arguments sent by the caller
+		 * @param stream Where to write the chunks of the result
+		 * @return The value to return to the caller once the chunks have been sent (may be null)
+		 * @throws Exception Reported to the caller as an error response
+		 */
+		public JSONObject handleCall(JSONObject args, Stream stream) throws Exception;
+	}
+
+	private final Handler handler;
+	private final StreamHandler streamHandler;
+	// for log messages
+	private final String name;
+
 	/**
 	 * Constructor.
 	 * @param serviceObject The Java instance of the object that will field the RPC
-	 * @param methodName The name of the Java method to invoke on that object, as a String
+	 * @param methodName The name of the Java method to invoke on that object, as a String.  It must be public,
+	 *  take a single JSONObject argument, and return a JSONObject.
 	 * @throws NoSuchMethodException
 	 */
-	public RPCCallableMethod(Object serviceObject, String methodName) throws NoSuchMethodException { 
-		service = serviceObject; 
-		Class<? extends Object> serviceClass = (Class<? extends Object>)service.getClass();
-		method = serviceClass.getMethod(methodName, JSONObject.class);
+	public RPCCallableMethod(Object serviceObject, String methodName) throws NoSuchMethodException {
+		Class<? extends Object> serviceClass = serviceObject.getClass();
+		Method method = serviceClass.getMethod(methodName, JSONObject.class);
+		if ( !JSONObject.class.isAssignableFrom(method.getReturnType()) )
+			throw new NoSuchMethodException(serviceClass.getName() + "." + methodName + " doesn't return a JSONObject");
+		// a public method of a class that isn't public can't be called from here without this
+		if ( !Modifier.isPublic(serviceClass.getModifiers()) ) method.setAccessible(true);
+
+		final MethodHandle bound;
+		try {
+			bound = MethodHandles.lookup().unreflect(method).bindTo(serviceObject)
+					.asType(MethodType.methodType(JSONObject.class, JSONObject.class));
+		} catch (IllegalAccessException e) {
+			throw new NoSuchMethodException("Can't call " + serviceClass.getName() + "." + methodName + ": " + e.getMessage());
+		}
+		handler = new Handler() {
+			@Override
+			public JSONObject handleCall(JSONObject args) throws Exception {
+				try {
+					return (JSONObject)bound.invokeExact(args);
+				} catch (Exception e) {
+					throw e;
+				} catch (Throwable t) {
+					// as Method.invoke() did, an Error becomes an exception the caller hears about
+					throw new Exception(t);
+				}
+			}
+		};
+		streamHandler = null;
+		name = serviceClass.getSimpleName() + "." + methodName;
 	}
+
+	/**
+	 * Constructor for a method whose calls go to handler.
+	 * @param handler Handles the calls
+	 */
+	public RPCCallableMethod(Handler handler) {
+		if ( handler == null ) throw new IllegalArgumentException("handler must be non-null");
+		this.handler = handler;
+		streamHandler = null;
+		name = handler.getClass().getName();
+	}
+
+	/**
+	 * Constructor for a streaming method whose calls go to streamHandler.
+	 * @param streamHandler Handles the calls
+	 */
+	public RPCCallableMethod(StreamHandler streamHandler) {
+		if ( streamHandler == null ) throw new IllegalArgumentException("streamHandler must be non-null");
+		handler = null;
+		this.streamHandler = streamHandler;
+		name = streamHandler.getClass().getName();
+	}
+
+	/**
+	 * True if this is a streaming method.
+	 */
+	public boolean isStreaming() {
+		return streamHandler != null;
+	}
+
 	/**
 	 * This method is called to actually invoke the method that handles the RPC.
 	 * @param args  The arguments to pass on this call
@@ -43,16 +152,29 @@ public class RPCCallableMethod {
 	 * @throws Exception
 	 */
 	public JSONObject handleCall(JSONObject args) throws Exception {
+		return handleCall(args, null);
+	}
+
+	/**
+	 * Invokes the method, giving it stream to write to if it's a streaming method.
+	 * @param stream Where a streaming method writes its chunks; null if the call can't be streamed
+	 * @throws Exception If the method does, or it's a streaming method and stream is null.  An Error thrown
+	 *  by the method is wrapped in an Exception, so that the caller gets an error response.
+	 */
+	public JSONObject handleCall(JSONObject args, Stream stream) throws Exception {
 		try {
-			return (JSONObject)method.invoke(service, args);
+			if ( streamHandler == null ) return handler.handleCall(args);
+			if ( stream == null ) throw new Exception(name + " streams its result, which this call can't receive");
+			return streamHandler.handleCall(args, stream);
 		} catch (Exception e) {
-			final Writer trace = new StringWriter();
-			final PrintWriter printWriter = new PrintWriter(trace);
-			e.printStackTrace(printWriter);
-			Log.e(TAG, "Caught Exception: " + e.getMessage() + "\n" + trace.toString());
-			printWriter.close();
-			trace.close();
+			// The caller hears about it in the error response; a line here is enough.
+			StackTraceElement[] trace = e.getStackTrace();
+			Log.e(TAG, name + " threw " + e + (trace.length > 0 ? " at " + trace[0] : ""));
 			throw e;
+		} catch (Error e) {
+			StackTraceElement[] trace = e.getStackTrace();
+			Log.e(TAG, name + " threw " + e + (trace.length > 0 ? " at " + trace[0] : ""));
+			throw new Exception(e);
 		}
 	}
 }
@@ -0,0 +1,563 @@
+package edu.uw.cs.cse461.net.rpc;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import edu.uw.cs.cse461.net.base.NetBase;
+import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCCallMessage;
+import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCCallMessage.RPCControlMessage;
+import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCCallMessage.RPCInvokeMessage;
+import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCResponseMessage;
+import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCResponseMessage.RPCChunkMessage;
+import edu.uw.cs.cse461.net.tcpmessagehandler.TCPMessageHandler;
+import edu.uw.cs.cse461.util.Log;
+
+/**
+ * The caller's end of one RPC connection, from the handshake on.
+ * <p>
+ * If the service agrees to multiplexing during the handshake, any number of threads may have calls
+ * outstanding on the connection at once.  A reader thread takes each response off the connection and
+ * hands it to whichever call it answers, matching the response's callid against the id of the invocation.
+ * Otherwise (an older service, or one that didn't agree) calls take turns: each holds the connection
+ * from sending its invocation until its response arrives.
+ * <p>
+ * callAsync() and connectAsync() don't block the caller.  On a multiplexed connection an asynchronous
+ * call costs no thread at all while it waits: its future is completed by the reader thread, or by a
+ * shared timer thread when its deadline passes.  Calls on other connections, and connecting, do block,
+ * so they're run on a shared pool.
+ * <p>
+ * streamCall() makes a call whose response is streamed: the chunks the remote method writes are
+ * handed to a RPCCall.ChunkHandler, on the calling thread, as they arrive.  On a multiplexed connection
+ * the reader queues at most STREAM_WINDOW chunks for the caller, and then stops reading until the caller
+ * catches up, so a slow consumer holds back the service rather than filling memory.  That holds back every
+ * other call on the connection too, so streaming calls should have the connection to themselves (see
+ * RPCConnectionPool.checkoutExclusive()).
+ *
+ * @author grahamb5
+ */
+class RPCClientConnection {
+	private static final String TAG="RPCClientConnection";
+	// Chunks of a streamed response the reader of a multiplexed connection queues before waiting for the caller
+	private static final int STREAM_WINDOW = 16;
+	// Queued for a streaming call when the connection closes
+	private static final Object CLOSED = new Object();
+
+	// Runs the blocking parts of asynchronous operations
+	private static final ExecutorService BLOCKING_POOL = Executors.newCachedThreadPool(daemonThreads(TAG + "-io"));
+	// Enforces the deadlines of asynchronous operations
+	private static final ScheduledThreadPoolExecutor TIMER = new ScheduledThreadPoolExecutor(1, daemonThreads(TAG + "-timer"));
+	static {
+		// most deadlines are cancelled, because the call finished in time; don't let them pile up
+		TIMER.setRemoveOnCancelPolicy(true);
+	}
+
+	private final String mIp;
+	private final int mPort;
+	private final Socket mSocket;
+	private final TCPMessageHandler mHandler;
+	private final RPCCodec mCodec;
+	private final boolean mKeepAlive;
+	private final boolean mMultiplexed;
+	private final boolean mAcceptsBatches;
+	private final boolean mStreaming;
+
+	// Taken while writing a message (multiplexed), or for a whole call (not multiplexed)
+	private final Object mWriteLock = new Object();
+	private final RPCCodec.Buffers mWriteBuffers = new RPCCodec.Buffers();
+	private final RPCCodec.Buffers mReadBuffers = new RPCCodec.Buffers();
+
+	// Calls waiting for responses, by invocation id.  Multiplexed connections only.
+	private final Map<Integer, CompletableFuture<RPCResponseMessage>> mPending = new ConcurrentHashMap<Integer, CompletableFuture<RPCResponseMessage>>();
+	// Streaming calls waiting for chunks and responses, by invocation id.  Multiplexed connections only.
+	private final Map<Integer, StreamReceiver> mStreams = new ConcurrentHashMap<Integer, StreamReceiver>();
+	private volatile boolean mClosed = false;
+	// Why the connection failed, once it has
+	private volatile IOException mFailure = null;
+
+	/**
+	 * Opens a connection to the RPC service at ip:port and performs the handshake, asking for a persistent
+	 * connection, the encoding named by rpc.encoding, (if rpc.multiplex allows) multiplexing, attachments and
+	 * streamed responses, and offering batches.
+	 * @param timeout Socket timeout for the handshake, in msec.
+	 */
+	static RPCClientConnection connect(String ip, int port, int timeout) throws IOException, JSONException {
+		Socket socket = new RPCCallerSocket(ip, port, true);
+		TCPMessageHandler handler = new TCPMessageHandler(socket);
+		try {
+			handler.setTimeout(timeout);
+			handler.setNoDelay(true);
+			handler.setMaxReadLength(Integer.MAX_VALUE);
+
+			// the handshake is always in JSON
+			RPCCodec wanted = RPCCodec.accept(NetBase.theNetBase().config().getProperty("rpc.encoding", RPCCodec.BINARY));
+			JSONObject options = RPCCodec.request(new JSONObject().put("connection", "keep-alive"), wanted);
+			if ( NetBase.theNetBase().config().getProperty("rpc.multiplex", "true").equalsIgnoreCase("true") )
+				options.put(RPCService.MULTIPLEX_OPTION, "yes");
+			options.put(RPCService.BATCH_OPTION, "yes");
+			options.put(RPCCodec.ATTACHMENTS_OPTION, "yes");
+			options.put(RPCService.STREAM_OPTION, "yes");
+			RPCMessage sendMsg = new RPCControlMessage("connect", options);
+			RPCCodec.JSON_CODEC.write(handler, sendMsg);
+			RPCMessage recMsg = RPCCodec.JSON_CODEC.read(handler);
+			if ( !recMsg.type().equals("OK") ) {
+				throw new IOException("Handshake - Expected type 'OK' but got type " + recMsg.type());
+			}
+
+			JSONObject value = recMsg.marshall().optJSONObject("value");
+			return new RPCClientConnection(ip, port, socket, handler, RPCCodec.negotiated(value),
+					RPCService.isKeepAlive(value), RPCService.isMultiplexed(value), RPCService.acceptsBatches(value),
+					RPCService.isStreaming(value));
+		} catch (IOException | JSONException | RuntimeException e) {
+			handler.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Asynchronous version of connect(), run on a shared pool.
+	 */
+	static CompletableFuture<RPCClientConnection> connectAsync(final String ip, final int port, final int timeout) {
+		final CompletableFuture<RPCClientConnection> future = new CompletableFuture<RPCClientConnection>();
+		try {
+			BLOCKING_POOL.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						future.complete(connect(ip, port, timeout));
+					} catch (IOException | JSONException | RuntimeException e) {
+						future.completeExceptionally(e);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			future.completeExceptionally(e);
+		}
+		return future;
+	}
+
+	private RPCClientConnection(String ip, int port, Socket socket, TCPMessageHandler handler, RPCCodec codec,
+			boolean keepAlive, boolean multiplexed, boolean acceptsBatches, boolean streaming) throws IOException {
+		mIp = ip;
+		mPort = port;
+		mSocket = socket;
+		mHandler = handler;
+		mCodec = codec;
+		mKeepAlive = keepAlive;
+		mMultiplexed = multiplexed;
+		mAcceptsBatches = acceptsBatches;
+		mStreaming = streaming;
+		if ( mMultiplexed ) {
+			// The reader waits as long as it has to; individual calls have their own timeouts.
+			mHandler.setTimeout(0);
+			Thread reader = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					readResponses();
+				}
+			}, TAG + "-" + ip + ":" + port);
+			reader.setDaemon(true);
+			reader.start();
+		}
+	}
+
+	boolean keepAlive() {
+		return mKeepAlive;
+	}
+
+	boolean multiplexed() {
+		return mMultiplexed;
+	}
+
+	/**
+	 * True if the service agreed to receive batch messages on this connection.
+	 */
+	boolean acceptsBatches() {
+		return mAcceptsBatches;
+	}
+
+	/**
+	 * True if the service agreed to stream responses on this connection.
+	 */
+	boolean streaming() {
+		return mStreaming;
+	}
+
+	boolean isOpen() {
+		return !mClosed;
+	}
+
+	/**
+	 * Checks that an idle connection is still usable, closing it if not.
+	 * <p>
+	 * A multiplexed connection's reader notices as soon as the service closes it, so there's nothing to check.
+	 * Otherwise a service that has closed the connection (say, because it sat idle too long) has left an end of
+	 * stream waiting on the socket, which we look for; stray bytes mean the connection is unusable too.
+	 * This can take a msec.
+	 */
+	boolean healthy() {
+		if ( mClosed ) return false;
+		if ( mMultiplexed ) return true;
+		synchronized (mWriteLock) {
+			try {
+				// the next call sets its own timeout
+				mSocket.setSoTimeout(1);
+				int b = mSocket.getInputStream().read();
+				close(new IOException(b < 0 ? "Closed by the service" : "Unexpected data from the service"));
+				return false;
+			} catch (SocketTimeoutException e) {
+				return true;
+			} catch (IOException e) {
+				close(e);
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * Number of calls currently waiting for a response.
+	 */
+	int inFlight() {
+		return mPending.size();
+	}
+
+	/**
+	 * Sends an invocation (or a batch of them) and waits for its response.
+	 * @param timeout Maximum time to wait for the response, in msec.
+	 * @return The response (OK or ERROR)
+	 * @throws SocketTimeoutException If no response arrived in time.  The connection remains usable
+	 *  if it is multiplexed; otherwise it's closed, since a late response would be taken as the answer to the next call.
+	 * @throws IOException If the connection has failed
+	 */
+	RPCResponseMessage call(RPCCallMessage invokeMsg, int timeout) throws IOException, JSONException {
+		if ( mClosed ) throw closedException();
+		if ( !mMultiplexed ) return serialCall(invokeMsg, timeout);
+		return await(callAsync(invokeMsg, timeout));
+	}
+
+	/**
+	 * Sends an invocation, returning a future for its response.
+	 * <p>
+	 * The future fails with a SocketTimeoutException if no response arrives within timeout msec.
+	 * Cancelling it abandons the call: the response, if one comes, is dropped.  (The remote method
+	 * runs anyway.)  On a connection that isn't multiplexed a call can only be abandoned before it's sent.
+	 * @param timeout Maximum time to wait for the response, in msec.  0 means no limit.
+	 */
+	CompletableFuture<RPCResponseMessage> callAsync(final RPCCallMessage invokeMsg, final int timeout) {
+		final CompletableFuture<RPCResponseMessage> future = new CompletableFuture<RPCResponseMessage>();
+		if ( mClosed ) {
+			future.completeExceptionally(closedException());
+			return future;
+		}
+
+		if ( !mMultiplexed ) {
+			try {
+				BLOCKING_POOL.execute(new Runnable() {
+					@Override
+					public void run() {
+						if ( future.isDone() ) return;
+						try {
+							future.complete(serialCall(invokeMsg, timeout));
+						} catch (IOException | JSONException | RuntimeException e) {
+							future.completeExceptionally(e);
+						}
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				future.completeExceptionally(e);
+			}
+			return future;
+		}
+
+		final int id;
+		try {
+			id = invokeMsg.id();
+		} catch (JSONException e) {
+			future.completeExceptionally(e);
+			return future;
+		}
+		mPending.put(id, future);
+		// however the call ends -- response, failure, timeout, cancellation -- it's no longer pending
+		future.whenComplete(new BiConsumer<RPCResponseMessage, Throwable>() {
+			@Override
+			public void accept(RPCResponseMessage response, Throwable t) {
+				mPending.remove(id, future);
+			}
+		});
+		expireAfter(future, timeout, "No response in " + timeout + " msec.");
+
+		try {
+			synchronized (mWriteLock) {
+				mCodec.write(mHandler, invokeMsg, mWriteBuffers);
+			}
+		} catch (IOException e) {
+			close(e);
+			future.completeExceptionally(e);
+		}
+		// the reader may have failed before our entry went in
+		if ( mClosed ) future.completeExceptionally(closedException());
+		return future;
+	}
+
+	/**
+	 * Makes a call whose response may be streamed, passing each chunk to chunkHandler as it arrives.
+	 * Blocks until the call ends.
+	 * @param timeout Maximum time to wait for each chunk, and for the response after the last one, in msec.
+	 * @return The response that ends the call (OK or ERROR)
+	 * @throws IOException If the connection fails, or the service doesn't stream responses.  If chunkHandler
+	 *  throws an exception the call is abandoned, and the exception rethrown (wrapped in an IOException
+	 *  if it isn't one); the connection is closed unless it's multiplexed.  There's no way to tell the
+	 *  service to stop, so on a multiplexed connection the rest of an abandoned stream still arrives, and
+	 *  is dropped by the reader.
+	 */
+	RPCResponseMessage streamCall(RPCInvokeMessage invokeMsg, RPCCall.ChunkHandler chunkHandler, int timeout) throws IOException, JSONException {
+		if ( mClosed ) throw closedException();
+		if ( !mStreaming ) throw new IOException("The RPC service at " + mIp + ":" + mPort + " doesn't stream responses");
+		invokeMsg.streamed();
+		if ( !mMultiplexed ) {
+			synchronized (mWriteLock) {
+				try {
+					mHandler.setTimeout(timeout);
+					mCodec.write(mHandler, invokeMsg, mWriteBuffers);
+					while ( true ) {
+						RPCMessage recMsg = mCodec.read(mHandler, mReadBuffers);
+						if ( !(recMsg instanceof RPCResponseMessage) ) throw new IOException("Expected a response but got " + recMsg.type());
+						if ( !(recMsg instanceof RPCChunkMessage) ) return (RPCResponseMessage)recMsg;
+						handleChunk(chunkHandler, (RPCChunkMessage)recMsg);
+					}
+				} catch (IOException e) {
+					// the rest of the stream is still coming, so the connection can't be used again
+					close(e);
+					throw e;
+				}
+			}
+		}
+
+		int id = invokeMsg.id();
+		StreamReceiver stream = new StreamReceiver();
+		mStreams.put(id, stream);
+		try {
+			synchronized (mWriteLock) {
+				mCodec.write(mHandler, invokeMsg, mWriteBuffers);
+			}
+		} catch (IOException e) {
+			mStreams.remove(id);
+			close(e);
+			throw e;
+		}
+		try {
+			// the reader may have failed before our entry went in
+			if ( mClosed ) throw closedException();
+			while ( true ) {
+				RPCResponseMessage recMsg = stream.take(timeout);
+				if ( !(recMsg instanceof RPCChunkMessage) ) return recMsg;
+				handleChunk(chunkHandler, (RPCChunkMessage)recMsg);
+			}
+		} finally {
+			// whatever arrives from now on is dropped
+			mStreams.remove(id, stream);
+			stream.abandon();
+		}
+	}
+
+	private static void handleChunk(RPCCall.ChunkHandler chunkHandler, RPCChunkMessage chunk) throws IOException {
+		try {
+			chunkHandler.handleChunk(chunk.value());
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException("Chunk handler failed: " + e, e);
+		}
+	}
+
+	/**
+	 * The messages of one streaming call on a multiplexed connection, passed from the reader to the caller.
+	 * Chunks take a permit, which the caller returns when it takes them, so the reader can't get more than
+	 * STREAM_WINDOW chunks ahead; the response that ends the call doesn't.
+	 */
+	private class StreamReceiver {
+		// chunks and the response, or CLOSED
+		private final BlockingQueue<Object> mMessages = new LinkedBlockingQueue<Object>();
+		private final Semaphore mWindow = new Semaphore(STREAM_WINDOW);
+		private volatile boolean mAbandoned = false;
+
+		// Called by the reader.  Waits while the window is full, unless the caller gives up or the connection closes.
+		void deliver(RPCResponseMessage msg) throws InterruptedException {
+			if ( msg instanceof RPCChunkMessage ) {
+				while ( !mWindow.tryAcquire(100, TimeUnit.MILLISECONDS) ) {
+					if ( mAbandoned || mClosed ) return;
+				}
+			}
+			mMessages.add(msg);
+		}
+
+		RPCResponseMessage take(int timeout) throws IOException {
+			Object msg;
+			try {
+				msg = timeout > 0 ? mMessages.poll(timeout, TimeUnit.MILLISECONDS) : mMessages.take();
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException("Interrupted waiting for response");
+			}
+			if ( msg == null ) throw mClosed ? closedException() : new SocketTimeoutException("No response in " + timeout + " msec.");
+			if ( msg == CLOSED ) throw closedException();
+			if ( msg instanceof RPCChunkMessage ) mWindow.release();
+			return (RPCResponseMessage)msg;
+		}
+
+		void abandon() {
+			mAbandoned = true;
+		}
+
+		// Wakes the caller when the connection closes
+		void fail() {
+			mMessages.add(CLOSED);
+		}
+	}
+
+	private RPCResponseMessage serialCall(RPCCallMessage invokeMsg, int timeout) throws IOException, JSONException {
+		synchronized (mWriteLock) {
+			try {
+				mHandler.setTimeout(timeout);
+				mCodec.write(mHandler, invokeMsg, mWriteBuffers);
+				RPCMessage recMsg = mCodec.read(mHandler, mReadBuffers);
+				if ( !(recMsg instanceof RPCResponseMessage) ) throw new IOException("Expected a response but got " + recMsg.type());
+				return (RPCResponseMessage)recMsg;
+			} catch (IOException e) {
+				close(e);
+				throw e;
+			}
+		}
+	}
+
+	// Body of the reader thread of a multiplexed connection.
+	private void readResponses() {
+		try {
+			while ( !mClosed ) {
+				RPCMessage msg = mCodec.read(mHandler, mReadBuffers);
+				if ( !(msg instanceof RPCResponseMessage) ) throw new IOException("Expected a response but got " + msg.type());
+				RPCResponseMessage response = (RPCResponseMessage)msg;
+				StreamReceiver stream = mStreams.get(response.callid());
+				if ( stream != null ) {
+					stream.deliver(response);
+					continue;
+				}
+				// a chunk no one is waiting for belongs to a streaming call that gave up
+				if ( response instanceof RPCChunkMessage ) continue;
+				CompletableFuture<RPCResponseMessage> pending = mPending.remove(response.callid());
+				// no one waiting means the call gave up; drop the response
+				if ( pending != null ) pending.complete(response);
+			}
+		} catch (IOException | JSONException e) {
+			if ( !mClosed ) Log.d(TAG, "Connection to " + mIp + ":" + mPort + " failed: " + e.getMessage());
+			close(e instanceof IOException ? (IOException)e : new IOException(e.getMessage()));
+		} catch (InterruptedException e) {
+			close(new InterruptedIOException("Reader interrupted"));
+		}
+	}
+
+	/**
+	 * Closes the connection.  Calls still waiting for responses fail.
+	 */
+	void close() {
+		close(null);
+	}
+
+	private void close(IOException cause) {
+		if ( mClosed ) return;
+		if ( mFailure == null ) mFailure = cause;
+		mClosed = true;
+		mHandler.close();
+		for ( CompletableFuture<RPCResponseMessage> pending : mPending.values() ) pending.completeExceptionally(closedException());
+		for ( StreamReceiver stream : mStreams.values() ) stream.fail();
+	}
+
+	private IOException closedException() {
+		return new IOException("Connection to " + mIp + ":" + mPort + " is closed" +
+				(mFailure == null ? "" : ": " + mFailure.getMessage()));
+	}
+
+	@Override
+	public String toString() {
+		return mIp + ":" + mPort + " (" + mCodec.name() + (mCodec.attachments() ? ", attachments" : "") + (mKeepAlive ? ", keep-alive" : "") +
+				(mMultiplexed ? ", multiplexed, " + inFlight() + " in flight" : "") + ")";
+	}
+
+	/**
+	 * Fails future with a SocketTimeoutException if it hasn't completed within timeout msec.
+	 * @param timeout 0 means no limit
+	 */
+	static void expireAfter(final CompletableFuture<?> future, int timeout, final String message) {
+		if ( timeout <= 0 || future.isDone() ) return;
+		final ScheduledFuture<?> expiry = TIMER.schedule(new Runnable() {
+			@Override
+			public void run() {
+				future.completeExceptionally(new SocketTimeoutException(message));
+			}
+		}, timeout, TimeUnit.MILLISECONDS);
+		future.whenComplete(new BiConsumer<Object, Throwable>() {
+			@Override
+			public void accept(Object value, Throwable t) {
+				expiry.cancel(false);
+			}
+		});
+	}
+
+	/**
+	 * Waits for a future, turning its failure back into the exception that caused it.
+	 */
+	static <T> T await(CompletableFuture<T> future) throws IOException, JSONException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			future.cancel(false);
+			throw new InterruptedIOException("Interrupted waiting for response");
+		} catch (ExecutionException e) {
+			Throwable cause = unwrap(e);
+			if ( cause instanceof IOException ) throw (IOException)cause;
+			if ( cause instanceof JSONException ) throw (JSONException)cause;
+			if ( cause instanceof RuntimeException ) throw (RuntimeException)cause;
+			throw new IOException(cause);
+		}
+	}
+
+	/**
+	 * The exception underneath the wrappers CompletableFuture adds.
+	 */
+	static Throwable unwrap(Throwable t) {
+		while ( (t instanceof CompletionException || t instanceof ExecutionException) && t.getCause() != null ) t = t.getCause();
+		return t;
+	}
+
+	private static ThreadFactory daemonThreads(final String name) {
+		return new ThreadFactory() {
+			private final AtomicInteger mCount = new AtomicInteger();
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, name + "-" + mCount.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		};
+	}
+}
@@ -0,0 +1,364 @@
+package edu.uw.cs.cse461.net.rpc;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import edu.uw.cs.cse461.net.tcpmessagehandler.TCPMessageHandler;
+
+/**
+ * Converts RPCMessages to and from the bytes carried by a TCPMessageHandler message.
+ * <p>
+ * Every connection starts out speaking JSON, so that any peer can understand the connect
+ * handshake.  A caller that would like another encoding names it in the handshake's options
+ * ("encoding":"binary"); a service that supports it echoes it in the OK response's value, and both
+ * sides switch after the handshake.  A peer that doesn't know about encodings ignores the option
+ * and doesn't echo it, so the connection stays on JSON.
+ * <p>
+ * Codecs decode straight from the bytes of a message and encode straight into the buffer that is sent,
+ * without going through an intermediate String.  They hold no per-connection state and may be shared
+ * by any number of threads; a connection that wants to reuse its message buffers passes in a Buffers object.
+ * <p>
+ * Byte arrays (byte[] values anywhere in a message) can travel as attachments, if the handshake agreed
+ * to them ("attachments":"yes"): each is sent as a raw message of its own, following the message
+ * that refers to it, and the message carries {"$attachment":<i>i</i>} in its place, i counting attachments
+ * from 0 in the order they're sent.  The receiver reads them straight into the byte[] it hands on, so
+ * bulk data isn't copied through the encoder, or inflated by a third as Base64.  Without attachments
+ * the binary encoding carries byte arrays inline, and JSON carries them as Base64 strings.
+ * <p>
+ * So that user data can't be mistaken for a reference, a connection using attachments escapes object
+ * keys that are one or more '$' followed by "attachment" by sending them with one more '$', and the
+ * receiver removes it again.  Only a reference ever arrives with the key "$attachment".
+ *
+ * @author grahamb5
+ */
+abstract class RPCCodec {
+	static final String ENCODING_OPTION = "encoding";
+	static final String JSON = "json";
+	static final String BINARY = "binary";
+	static final String ATTACHMENTS_OPTION = "attachments";
+	// the key of the object that stands in for an attachment
+	static final String ATTACHMENT_KEY = "$attachment";
+
+	static final RPCCodec JSON_CODEC = new RPCJSONCodec(false);
+	static final RPCCodec BINARY_CODEC = new RPCBinaryCodec(false);
+	private static final RPCCodec JSON_ATTACHING_CODEC = new RPCJSONCodec(true);
+	private static final RPCCodec BINARY_ATTACHING_CODEC = new RPCBinaryCodec(true);
+
+	// whether byte arrays are sent as attachments
+	protected final boolean mAttachments;
+
+	RPCCodec(boolean attachments) {
+		mAttachments = attachments;
+	}
+
+	/**
+	 * The name used for this encoding in the handshake.
+	 */
+	abstract String name();
+
+	/**
+	 * Decodes a message from len bytes of buf, starting at off.
+	 * @throws IOException If the bytes aren't a well formed message
+	 */
+	abstract RPCMessage decode(byte[] buf, int off, int len) throws IOException;
+
+	/**
+	 * Appends the encoding of msg to out.  If this codec sends attachments, the byte arrays in msg are
+	 * added to out's attachments rather than encoded.
+	 */
+	abstract void encode(RPCMessage msg, MessageBuffer out) throws IOException;
+
+	/**
+	 * Reads and decodes the next message on handler.
+	 */
+	RPCMessage read(TCPMessageHandler handler) throws IOException {
+		return read(handler, new Buffers());
+	}
+
+	/**
+	 * Reads and decodes the next message on handler, reading it into the connection's input buffer.
+	 */
+	RPCMessage read(TCPMessageHandler handler, Buffers buffers) throws IOException {
+		ByteBuffer in = handler.readMessage(buffers.mIn);
+		RPCMessage msg;
+		try {
+			msg = decode(in.array(), in.arrayOffset(), in.limit());
+		} finally {
+			buffers.mIn = in.capacity() <= Buffers.MAX_RETAINED ? in : null;
+		}
+		if ( mAttachments ) {
+			AttachmentRefs refs = new AttachmentRefs(msg);
+			if ( refs.count() > 0 ) {
+				byte[][] attachments = new byte[refs.count()][];
+				for ( int i=0; i<attachments.length; i++ ) attachments[i] = handler.readMessageAsBytes();
+				refs.resolve(attachments);
+			}
+		}
+		return msg;
+	}
+
+	/**
+	 * Encodes msg and sends it as a single message on handler.
+	 */
+	void write(TCPMessageHandler handler, RPCMessage msg) throws IOException {
+		write(handler, msg, new Buffers());
+	}
+
+	/**
+	 * Encodes msg into the connection's output buffer and sends it as a single message on handler,
+	 * followed by its attachments, if any.
+	 */
+	void write(TCPMessageHandler handler, RPCMessage msg, Buffers buffers) throws IOException {
+		MessageBuffer out = buffers.mOut;
+		out.reset();
+		try {
+			encode(msg, out);
+			handler.sendMessage(out.array(), 0, out.size());
+			for ( byte[] attachment : out.attachments() ) handler.sendMessage(attachment);
+		} finally {
+			out.trim(Buffers.MAX_RETAINED);
+		}
+	}
+
+	/**
+	 * Returns the codec with the given name, or null if there isn't one.
+	 */
+	static RPCCodec forName(String name) {
+		if ( name == null ) return null;
+		if ( name.equalsIgnoreCase(JSON) ) return JSON_CODEC;
+		if ( name.equalsIgnoreCase(BINARY) ) return BINARY_CODEC;
+		return null;
+	}
+
+	/**
+	 * Service side of the negotiation: the codec to use after answering a handshake that asked
+	 * for the named encoding.  Unknown encodings get JSON.
+	 */
+	static RPCCodec accept(String requested) {
+		RPCCodec codec = forName(requested);
+		return codec == null ? JSON_CODEC : codec;
+	}
+
+	/**
+	 * The codec to use after the handshake, given the value of its OK response (by the service, once
+	 * it has built the response, and by the caller once it has received it).
+	 * @param handshakeValue The value field of the response, possibly null
+	 */
+	static RPCCodec negotiated(JSONObject handshakeValue) {
+		if ( handshakeValue == null ) return JSON_CODEC;
+		RPCCodec codec = accept(handshakeValue.optString(ENCODING_OPTION, JSON));
+		if ( !"yes".equalsIgnoreCase(handshakeValue.optString(ATTACHMENTS_OPTION)) ) return codec;
+		return codec == BINARY_CODEC ? BINARY_ATTACHING_CODEC : JSON_ATTACHING_CODEC;
+	}
+
+	/**
+	 * True if this codec sends byte arrays as attachments.
+	 */
+	boolean attachments() {
+		return mAttachments;
+	}
+
+	/**
+	 * The key to send for the object key key: key itself, unless this codec sends attachments and
+	 * key needs escaping (see the class comment).
+	 */
+	String wireKey(String key) {
+		return mAttachments && isAttachmentKey(key) ? "$" + key : key;
+	}
+
+	// True if key is one or more '$' followed by "attachment"
+	private static boolean isAttachmentKey(String key) {
+		int n = key.length() - (ATTACHMENT_KEY.length() - 1);
+		if ( n < 1 || !key.endsWith(ATTACHMENT_KEY.substring(1)) ) return false;
+		for ( int i=0; i<n; i++ ) if ( key.charAt(i) != '$' ) return false;
+		return true;
+	}
+
+	/**
+	 * Adds an encoding request for codec to a set of handshake options.  Nothing is added for JSON,
+	 * which needs no negotiation.
+	 */
+	static JSONObject request(JSONObject options, RPCCodec codec) throws JSONException {
+		if ( codec != JSON_CODEC ) options.put(ENCODING_OPTION, codec.name());
+		return options;
+	}
+
+	/**
+	 * Message buffers belonging to one connection, reused for every message it sends or receives.
+	 * A buffer that had to grow beyond MAX_RETAINED for some very large message isn't kept, so an
+	 * idle connection doesn't pin that much memory.  Not thread safe.
+	 */
+	static class Buffers {
+		static final int MAX_RETAINED = 1 << 20;
+
+		private ByteBuffer mIn = null;
+		private final MessageBuffer mOut = new MessageBuffer();
+	}
+
+	/**
+	 * The places in a decoded message that refer to attachments, found by walking it.  The walk also
+	 * unescapes keys that were escaped by wireKey().  Once the attachments have been read, resolve()
+	 * puts each in place of its reference.
+	 */
+	static class AttachmentRefs {
+		// each reference's container (JSONObject or JSONArray), key in it (String or Integer), and attachment number
+		private final List<Object> mContainers = new ArrayList<Object>();
+		private final List<Object> mKeys = new ArrayList<Object>();
+		private final List<Integer> mIndexes = new ArrayList<Integer>();
+
+		AttachmentRefs(RPCMessage msg) throws IOException {
+			try {
+				find(msg.marshall());
+			} catch (JSONException e) {
+				throw new IOException("Can't unescape message: " + e.getMessage());
+			}
+		}
+
+		/**
+		 * Number of attachments that follow the message.
+		 */
+		int count() {
+			return mIndexes.size();
+		}
+
+		private void find(Object value) throws JSONException {
+			if ( value instanceof JSONObject ) {
+				JSONObject obj = (JSONObject)value;
+				List<String> escaped = null;
+				Iterator<?> it = obj.keys();
+				while ( it.hasNext() ) {
+					String key = (String)it.next();
+					Object child = obj.opt(key);
+					String name = key;
+					if ( key.length() > ATTACHMENT_KEY.length() && isAttachmentKey(key) ) {
+						// renamed once the walk of obj is done, since obj can't change under its iterator
+						if ( escaped == null ) escaped = new ArrayList<String>();
+						escaped.add(key);
+						name = key.substring(1);
+					}
+					if ( !check(obj, name, child) ) find(child);
+				}
+				if ( escaped != null ) for ( String key : escaped ) obj.put(key.substring(1), obj.remove(key));
+			} else if ( value instanceof JSONArray ) {
+				JSONArray array = (JSONArray)value;
+				for ( int i=0; i<array.length(); i++ ) {
+					Object child = array.opt(i);
+					if ( !check(array, i, child) ) find(child);
+				}
+			}
+		}
+
+		// Records value if it's an attachment reference
+		private boolean check(Object container, Object key, Object value) {
+			if ( !(value instanceof JSONObject) ) return false;
+			JSONObject obj = (JSONObject)value;
+			if ( obj.length() != 1 || !(obj.opt(ATTACHMENT_KEY) instanceof Integer) ) return false;
+			mContainers.add(container);
+			mKeys.add(key);
+			mIndexes.add((Integer)obj.opt(ATTACHMENT_KEY));
+			return true;
+		}
+
+		/**
+		 * Replaces the references with the attachments they refer to.
+		 * @param attachments The count() attachments, in the order they arrived
+		 */
+		void resolve(byte[][] attachments) throws IOException {
+			boolean[] used = new boolean[attachments.length];
+			try {
+				for ( int i=0; i<mIndexes.size(); i++ ) {
+					int index = mIndexes.get(i);
+					if ( index < 0 || index >= attachments.length || used[index] ) throw new IOException("Bad attachment reference " + index);
+					used[index] = true;
+					Object container = mContainers.get(i);
+					if ( container instanceof JSONObject ) ((JSONObject)container).put((String)mKeys.get(i), attachments[index]);
+					else ((JSONArray)container).put((Integer)mKeys.get(i), attachments[index]);
+				}
+			} catch (JSONException e) {
+				throw new IOException("Can't place attachment: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * A growable byte array that encoders write into.  Unlike ByteArrayOutputStream, it isn't synchronized
+	 * and gives direct access to its array, so an encoded message can be sent without copying it again.
+	 */
+	static class MessageBuffer extends OutputStream {
+		private byte[] mBuf;
+		private int mCount = 0;
+		// byte arrays to be sent after the message
+		private final List<byte[]> mAttachments = new ArrayList<byte[]>();
+
+		MessageBuffer() {
+			this(256);
+		}
+
+		MessageBuffer(int initialSize) {
+			mBuf = new byte[Math.max(16, initialSize)];
+		}
+
+		byte[] array() {
+			return mBuf;
+		}
+
+		int size() {
+			return mCount;
+		}
+
+		/**
+		 * Adds an attachment, returning its number.
+		 */
+		int attach(byte[] attachment) {
+			mAttachments.add(attachment);
+			return mAttachments.size() - 1;
+		}
+
+		List<byte[]> attachments() {
+			return mAttachments;
+		}
+
+		void reset() {
+			mCount = 0;
+			mAttachments.clear();
+		}
+
+		/**
+		 * Empties the buffer and, if it has grown larger than maxSize, releases its storage.
+		 */
+		void trim(int maxSize) {
+			mCount = 0;
+			mAttachments.clear();
+			if ( mBuf.length > maxSize ) mBuf = new byte[256];
+		}
+
+		/**
+		 * Makes room for n more bytes.
+		 */
+		void ensure(int n) {
+			if ( mCount + n > mBuf.length ) mBuf = Arrays.copyOf(mBuf, Math.max(mBuf.length * 2, mCount + n));
+		}
+
+		@Override
+		public void write(int b) {
+			ensure(1);
+			mBuf[mCount++] = (byte)b;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			ensure(len);
+			System.arraycopy(b, off, mBuf, mCount, len);
+			mCount += len;
+		}
+	}
+}
@@ -0,0 +1,516 @@
+package edu.uw.cs.cse461.net.rpc;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+import edu.uw.cs.cse461.util.Log;
+
+/**
+ * The connections RPCCall has open, pooled by the endpoint (ip and port) of the RPC service at the other end.
+ * Any of a service's connections can carry calls to any of its apps, so the app doesn't matter.
+ * <p>
+ * A caller checks a connection out for the duration of one call, and releases it when the call is over.
+ * A connection that isn't multiplexed is lent to one caller at a time; a multiplexed one to as many as
+ * maxShared at once.  When every connection to an endpoint is fully lent, another is opened, up to maxTotal;
+ * beyond that callers wait their turn.  At most maxIdle connections with no calls are kept per endpoint, and
+ * those only for idleTimeout msec.
+ * <p>
+ * A caller can instead check a connection out exclusively (checkoutExclusive()), so that no other call shares
+ * it until it's released.  Streaming calls do, since a caller slow to take its chunks holds up the connection's
+ * reader, and with it every other call the connection carries.
+ * <p>
+ * Idle connections are closed by a reaper thread that sweeps the pool every sweepInterval msec.  The call
+ * path only records when each connection went idle, so a connection may outlive idleTimeout by up to
+ * one sweep interval.
+ * <p>
+ * Before lending a connection that has been idle longer than validateAfter msec, the pool checks
+ * that it's still healthy (see RPCClientConnection.healthy()), since the service may have closed it meanwhile.
+ * Connections that fail while lent are dropped when they're released.
+ * <p>
+ * If opening a connection fails while callers are waiting, the next attempt waits MIN_BACKOFF msec., doubling
+ * with each further failure up to MAX_BACKOFF, so that callers waiting on connections already open don't keep
+ * the pool retrying a dead endpoint as fast as it can fail.  (If there are no connections to wait on, the waiting
+ * callers fail instead.)  An endpoint's pool is itself dropped once it has no connections and no one waiting.
+ *
+ * @author grahamb5
+ */
+class RPCConnectionPool {
+	private static final String TAG="RPCConnectionPool";
+	// Wait after a failed connect before trying again, and the most it backs off to (msec.)
+	private static final int MIN_BACKOFF = 50;
+	private static final int MAX_BACKOFF = 2000;
+
+	private final int mMaxTotal;
+	private final int mMaxIdle;
+	private final int mMaxShared;
+	private final int mValidateAfter;
+	private final int mIdleTimeout;
+	private final int mConnectTimeout;
+
+	private final ConcurrentHashMap<Endpoint, EndpointPool> mPools = new ConcurrentHashMap<Endpoint, EndpointPool>();
+	private final ScheduledExecutorService mReaper;
+	private volatile boolean mShutdown = false;
+
+	/**
+	 * @param maxTotal Most connections open to one endpoint
+	 * @param maxIdle Most connections with no calls kept open to one endpoint
+	 * @param maxShared Most calls lent a single multiplexed connection at once
+	 * @param validateAfter Idle time (msec.) after which a connection is checked before it's lent
+	 * @param idleTimeout Idle time (msec.) after which a connection is closed
+	 * @param connectTimeout Socket timeout (msec.) for opening a connection
+	 * @param sweepInterval How often (msec.) to look for connections that have been idle too long
+	 */
+	RPCConnectionPool(int maxTotal, int maxIdle, int maxShared, int validateAfter, int idleTimeout, int connectTimeout, int sweepInterval) {
+		mMaxTotal = maxTotal;
+		mMaxIdle = maxIdle;
+		mMaxShared = maxShared;
+		mValidateAfter = validateAfter;
+		mIdleTimeout = idleTimeout;
+		mConnectTimeout = connectTimeout;
+		mReaper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, TAG + "-reaper");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		mReaper.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				reapIdle();
+			}
+		}, sweepInterval, sweepInterval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Borrows a connection to the RPC service at ip:port, opening one if need be.
+	 * The future fails with a SocketTimeoutException if no connection becomes available within timeout msec.
+	 * Cancelling it gives up waiting.
+	 * @param timeout Time to wait for a connection, in msec.  0 means no limit.
+	 */
+	CompletableFuture<Lease> checkout(String ip, int port, int timeout) {
+		return checkout(ip, port, timeout, false);
+	}
+
+	/**
+	 * Like checkout(), but the connection is lent to this caller alone until it's released.
+	 */
+	CompletableFuture<Lease> checkoutExclusive(String ip, int port, int timeout) {
+		return checkout(ip, port, timeout, true);
+	}
+
+	private CompletableFuture<Lease> checkout(String ip, int port, int timeout, boolean exclusive) {
+		Endpoint key = new Endpoint(ip, port);
+		while ( true ) {
+			EndpointPool pool = mPools.get(key);
+			if ( pool == null ) {
+				EndpointPool fresh = new EndpointPool(key);
+				pool = mPools.putIfAbsent(key, fresh);
+				if ( pool == null ) pool = fresh;
+			}
+			CompletableFuture<Lease> future = pool.checkout(timeout, exclusive);
+			// null if the reaper dropped the pool meanwhile; a new one replaces it
+			if ( future != null ) return future;
+		}
+	}
+
+	/**
+	 * Closes every connection.  Callers waiting for one fail.
+	 */
+	void shutdown() {
+		mShutdown = true;
+		for ( EndpointPool pool : mPools.values() ) pool.shutdown();
+		mPools.clear();
+		mReaper.shutdownNow();
+	}
+
+	// Closes connections that have been idle longer than the idle timeout
+	private void reapIdle() {
+		long now = System.currentTimeMillis();
+		try {
+			for ( EndpointPool pool : mPools.values() ) {
+				pool.reapIdle(now - mIdleTimeout);
+				if ( pool.retireIfUnused() ) mPools.remove(pool.mEndpoint, pool);
+			}
+		} catch (RuntimeException e) {
+			// don't let one bad sweep stop the reaper
+			Log.w(TAG, "Idle connection sweep failed: " + e);
+		}
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for ( EndpointPool pool : mPools.values() ) sb.append(pool).append('\n');
+		return sb.toString();
+	}
+
+	/**
+	 * One borrowing of a connection.  Release it exactly once, when the call is over.
+	 */
+	static class Lease {
+		private final EndpointPool mPool;
+		private final Pooled mPooled;
+		private boolean mReleased = false;
+
+		private Lease(EndpointPool pool, Pooled pooled) {
+			mPool = pool;
+			mPooled = pooled;
+		}
+
+		RPCClientConnection connection() {
+			return mPooled.mConnection;
+		}
+
+		/**
+		 * Returns the connection to the pool.  If it has failed it's dropped instead.
+		 */
+		void release() {
+			synchronized (this) {
+				if ( mReleased ) return;
+				mReleased = true;
+			}
+			mPool.release(mPooled);
+		}
+	}
+
+	// A pooled connection
+	private static class Pooled {
+		private final RPCClientConnection mConnection;
+		private int mLeases = 0;
+		// a connection that isn't kept alive is lent once only
+		private boolean mUsed = false;
+		// lent to one caller alone
+		private boolean mExclusive = false;
+		private long mIdleSince = System.currentTimeMillis();
+
+		Pooled(RPCClientConnection connection) {
+			mConnection = connection;
+		}
+	}
+
+	// A caller waiting for a connection
+	private static class Waiter {
+		private final CompletableFuture<Lease> mFuture = new CompletableFuture<Lease>();
+		private final boolean mExclusive;
+
+		Waiter(boolean exclusive) {
+			mExclusive = exclusive;
+		}
+	}
+
+	// A connection lent to a waiting caller
+	private static class Handoff {
+		private final CompletableFuture<Lease> mWaiter;
+		private final Lease mLease;
+
+		Handoff(CompletableFuture<Lease> waiter, Lease lease) {
+			mWaiter = waiter;
+			mLease = lease;
+		}
+	}
+
+	//--------------------------------------------------------------------------------------
+	// Connections to one endpoint
+	//--------------------------------------------------------------------------------------
+
+	private class EndpointPool {
+		private final Endpoint mEndpoint;
+		private final List<Pooled> mConnections = new ArrayList<Pooled>();
+		private final Queue<Waiter> mWaiters = new ArrayDeque<Waiter>();
+		private boolean mConnecting = false;
+		// backing off after failed connects: the current wait, when the next attempt may be made, and
+		// whether one has been scheduled
+		private int mBackoff = 0;
+		private long mRetryAt = 0;
+		private boolean mRetryScheduled = false;
+		// dropped from the pool map; checkouts must go to its replacement
+		private boolean mRetired = false;
+
+		EndpointPool(Endpoint endpoint) {
+			mEndpoint = endpoint;
+		}
+
+		// Returns null if the pool has been retired
+		CompletableFuture<Lease> checkout(int timeout, boolean exclusive) {
+			final Waiter waiter = new Waiter(exclusive);
+			final CompletableFuture<Lease> future = waiter.mFuture;
+			while ( true ) {
+				Pooled pooled;
+				boolean validate;
+				synchronized (this) {
+					if ( mRetired ) return null;
+					if ( mShutdown ) {
+						future.completeExceptionally(new IOException("RPCCall has shut down"));
+						return future;
+					}
+					pooled = available(exclusive);
+					if ( pooled == null ) {
+						mWaiters.add(waiter);
+						connectIfNeeded();
+						break;
+					}
+					validate = pooled.mLeases == 0 && System.currentTimeMillis() - pooled.mIdleSince > mValidateAfter;
+					lend(pooled, exclusive);
+				}
+				// the check may block briefly, so isn't made while holding the pool
+				if ( !validate || pooled.mConnection.healthy() ) {
+					future.complete(new Lease(this, pooled));
+					return future;
+				}
+				release(pooled);
+			}
+
+			RPCClientConnection.expireAfter(future, timeout, "No connection to " + mEndpoint + " available in " + timeout + " msec.");
+			future.whenComplete(new BiConsumer<Lease, Throwable>() {
+				@Override
+				public void accept(Lease lease, Throwable t) {
+					// timed out or cancelled before a connection came free
+					if ( t != null ) {
+						synchronized (EndpointPool.this) {
+							mWaiters.remove(waiter);
+						}
+					}
+				}
+			});
+			return future;
+		}
+
+		// A connection that can take another call (one with no calls at all, if exclusive), or null.
+		// Drops connections that have closed.
+		private Pooled available(boolean exclusive) {
+			Iterator<Pooled> it = mConnections.iterator();
+			while ( it.hasNext() ) {
+				Pooled pooled = it.next();
+				if ( !pooled.mConnection.isOpen() ) {
+					if ( pooled.mLeases == 0 ) it.remove();
+					continue;
+				}
+				if ( exclusive ? pooled.mLeases == 0 && capacity(pooled) > 0 : pooled.mLeases < capacity(pooled) ) return pooled;
+			}
+			return null;
+		}
+
+		private int capacity(Pooled pooled) {
+			if ( pooled.mExclusive ) return 1;
+			if ( !pooled.mConnection.keepAlive() ) return pooled.mUsed ? 0 : 1;
+			return pooled.mConnection.multiplexed() ? mMaxShared : 1;
+		}
+
+		private void lend(Pooled pooled, boolean exclusive) {
+			pooled.mLeases++;
+			pooled.mUsed = true;
+			pooled.mExclusive = exclusive;
+		}
+
+		// Opens another connection if callers are waiting and the limit allows.  One at a time, so that a
+		// burst of callers doesn't open a connection each when one multiplexed connection would do.
+		private void connectIfNeeded() {
+			if ( mConnecting || mWaiters.isEmpty() ) return;
+			if ( mConnections.size() >= mMaxTotal ) return;
+			long wait = mRetryAt - System.currentTimeMillis();
+			if ( wait > 0 ) {
+				scheduleRetry(wait);
+				return;
+			}
+			mConnecting = true;
+			RPCClientConnection.connectAsync(mEndpoint.mIp, mEndpoint.mPort, mConnectTimeout).whenComplete(
+					new BiConsumer<RPCClientConnection, Throwable>() {
+						@Override
+						public void accept(RPCClientConnection connection, Throwable t) {
+							onConnected(connection, t);
+						}
+					});
+		}
+
+		// Calls connectIfNeeded() again in wait msec., unless that's already arranged
+		private void scheduleRetry(long wait) {
+			if ( mRetryScheduled ) return;
+			mRetryScheduled = true;
+			try {
+				mReaper.schedule(new Runnable() {
+					@Override
+					public void run() {
+						List<Handoff> handoffs;
+						synchronized (EndpointPool.this) {
+							mRetryScheduled = false;
+							handoffs = dispatch();
+						}
+						complete(handoffs);
+					}
+				}, wait, TimeUnit.MILLISECONDS);
+			} catch (RejectedExecutionException e) {
+				// shutting down
+				mRetryScheduled = false;
+			}
+		}
+
+		private void onConnected(RPCClientConnection connection, Throwable t) {
+			List<Handoff> handoffs;
+			List<Waiter> failed = null;
+			synchronized (this) {
+				mConnecting = false;
+				if ( connection != null ) {
+					mBackoff = 0;
+					mRetryAt = 0;
+				} else {
+					mBackoff = mBackoff == 0 ? MIN_BACKOFF : Math.min(MAX_BACKOFF, 2 * mBackoff);
+					mRetryAt = System.currentTimeMillis() + mBackoff;
+				}
+				if ( connection != null && mShutdown ) connection.close();
+				if ( connection != null && !mShutdown ) {
+					Pooled pooled = new Pooled(connection);
+					mConnections.add(pooled);
+				} else if ( mConnections.isEmpty() ) {
+					// nothing to wait for; tell everyone why
+					failed = new ArrayList<Waiter>(mWaiters);
+					mWaiters.clear();
+				}
+				handoffs = dispatch();
+			}
+			complete(handoffs);
+			if ( failed != null ) {
+				Throwable cause = t != null ? RPCClientConnection.unwrap(t) : new IOException("RPCCall has shut down");
+				for ( Waiter waiter : failed ) waiter.mFuture.completeExceptionally(cause);
+			}
+		}
+
+		void release(Pooled pooled) {
+			List<Handoff> handoffs;
+			synchronized (this) {
+				pooled.mLeases--;
+				if ( pooled.mLeases == 0 ) pooled.mExclusive = false;
+				if ( !pooled.mConnection.isOpen() || !pooled.mConnection.keepAlive() ) {
+					if ( pooled.mLeases == 0 ) drop(pooled);
+				} else if ( pooled.mLeases == 0 ) {
+					pooled.mIdleSince = System.currentTimeMillis();
+					if ( idleCount() > mMaxIdle ) drop(pooled);
+				}
+				handoffs = dispatch();
+			}
+			complete(handoffs);
+		}
+
+		// Lends connections to waiting callers, in order, for as long as there are both.  A caller waiting
+		// for a connection of its own doesn't hold up the callers behind it that can share one.  The futures
+		// are completed by the caller, outside the pool's lock, since that runs whatever the waiters do next.
+		private List<Handoff> dispatch() {
+			List<Handoff> handoffs = new ArrayList<Handoff>();
+			Iterator<Waiter> it = mWaiters.iterator();
+			while ( it.hasNext() ) {
+				Waiter waiter = it.next();
+				Pooled pooled = available(waiter.mExclusive);
+				if ( pooled == null ) continue;
+				it.remove();
+				lend(pooled, waiter.mExclusive);
+				handoffs.add(new Handoff(waiter.mFuture, new Lease(this, pooled)));
+			}
+			connectIfNeeded();
+			return handoffs;
+		}
+
+		private void complete(List<Handoff> handoffs) {
+			for ( Handoff handoff : handoffs ) {
+				// the caller may have given up in the meantime
+				if ( !handoff.mWaiter.complete(handoff.mLease) ) handoff.mLease.release();
+			}
+		}
+
+		private int idleCount() {
+			int count = 0;
+			for ( Pooled pooled : mConnections ) if ( pooled.mLeases == 0 ) count++;
+			return count;
+		}
+
+		// Closes connections that have had no calls since before idleBefore
+		void reapIdle(long idleBefore) {
+			List<Pooled> idle = new ArrayList<Pooled>();
+			synchronized (this) {
+				for ( Pooled pooled : mConnections ) {
+					if ( pooled.mLeases == 0 && pooled.mIdleSince < idleBefore ) idle.add(pooled);
+				}
+				mConnections.removeAll(idle);
+			}
+			// closing may block, so isn't done while holding the pool
+			for ( Pooled pooled : idle ) {
+				Log.d(TAG, "Closing idle connection " + pooled.mConnection);
+				pooled.mConnection.close();
+			}
+		}
+
+		// Retires the pool if it has no connections and no one waiting or connecting
+		synchronized boolean retireIfUnused() {
+			if ( !mConnections.isEmpty() || !mWaiters.isEmpty() || mConnecting ) return false;
+			mRetired = true;
+			return true;
+		}
+
+		private void drop(Pooled pooled) {
+			mConnections.remove(pooled);
+			pooled.mConnection.close();
+		}
+
+		void shutdown() {
+			List<Waiter> waiters;
+			synchronized (this) {
+				for ( Pooled pooled : new ArrayList<Pooled>(mConnections) ) drop(pooled);
+				waiters = new ArrayList<Waiter>(mWaiters);
+				mWaiters.clear();
+			}
+			for ( Waiter waiter : waiters ) waiter.mFuture.completeExceptionally(new IOException("RPCCall has shut down"));
+			Log.d(TAG, "Closed connections to " + mEndpoint);
+		}
+
+		@Override
+		public synchronized String toString() {
+			StringBuilder sb = new StringBuilder();
+			sb.append(mEndpoint).append(": ").append(mConnections.size()).append(" connection(s), ")
+				.append(mWaiters.size()).append(" waiting");
+			for ( Pooled pooled : mConnections ) {
+				sb.append("\n  ").append(pooled.mConnection).append(", ").append(pooled.mLeases).append(pooled.mExclusive ? " lent exclusively" : " lent");
+			}
+			return sb.toString();
+		}
+	}
+
+	// Where a connection goes
+	private static class Endpoint {
+		private final String mIp;
+		private final int mPort;
+
+		Endpoint(String ip, int port) {
+			mIp = ip;
+			mPort = port;
+		}
+
+		@Override
+		public int hashCode() {
+			return mIp.hashCode() * 31 + mPort;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if ( !(other instanceof Endpoint) ) return false;
+			Endpoint e = (Endpoint)other;
+			return mPort == e.mPort && mIp.equals(e.mIp);
+		}
+
+		@Override
+		public String toString() {
+			return mIp + ":" + mPort;
+		}
+	}
+}
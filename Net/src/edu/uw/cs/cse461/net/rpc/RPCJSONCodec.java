@@ -0,0 +1,351 @@
+package edu.uw.cs.cse461.net.rpc;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONString;
+
+import edu.uw.cs.cse461.util.Base64;
+
+/**
+ * The original RPC encoding: the message's JSONObject, as (UTF-8) JSON text.
+ * <p>
+ * Rather than going through JSONObject.toString() and new JSONObject(String), which between them
+ * make several String and StringBuffer copies of every message, messages are parsed directly from
+ * the frame bytes and serialized directly into the output buffer.  A string without escapes
+ * is turned into a Java String straight from the frame, so a large payload exists once as bytes
+ * and once as the resulting String, and no more.
+ * <p>
+ * Byte arrays are sent as Base64 strings, unless the connection sends them as attachments (see RPCCodec).
+ * <p>
+ * The parser accepts standard JSON.  Anything it can't handle is passed to org.json's more forgiving
+ * parser, so peers whose JSON isn't quite standard still work, just more slowly.
+ *
+ * @author grahamb5
+ */
+class RPCJSONCodec extends RPCCodec {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final byte[] HEX = "0123456789abcdef".getBytes(UTF8);
+
+	RPCJSONCodec(boolean attachments) {
+		super(attachments);
+	}
+
+	@Override
+	String name() {
+		return JSON;
+	}
+
+	//--------------------------------------------------------------------------------------
+	// decoding
+	//--------------------------------------------------------------------------------------
+
+	@Override
+	RPCMessage decode(byte[] buf, int off, int len) throws IOException {
+		JSONObject obj;
+		try {
+			Parser parser = new Parser(buf, off, len);
+			obj = parser.parseMessage();
+		} catch (JSONException | IOException | RuntimeException e) {
+			// not JSON we understand; let org.json have a try
+			return RPCMessage.unmarshall(new String(buf, off, len, UTF8));
+		}
+		return RPCMessage.unmarshall(obj);
+	}
+
+	// Recursive descent parser over the bytes of one message
+	private static class Parser {
+		private final byte[] mBuf;
+		private int mPos;
+		private final int mEnd;
+
+		Parser(byte[] buf, int off, int len) {
+			mBuf = buf;
+			mPos = off;
+			mEnd = off + len;
+		}
+
+		JSONObject parseMessage() throws IOException, JSONException {
+			skipWhitespace();
+			JSONObject obj = parseObject();
+			skipWhitespace();
+			if ( mPos != mEnd ) throw error("Unexpected text after message");
+			return obj;
+		}
+
+		private void skipWhitespace() {
+			while ( mPos < mEnd ) {
+				byte b = mBuf[mPos];
+				if ( b != ' ' && b != '\n' && b != '\r' && b != '\t' ) return;
+				mPos++;
+			}
+		}
+
+		private byte next() throws IOException {
+			if ( mPos >= mEnd ) throw error("Unexpected end of message");
+			return mBuf[mPos++];
+		}
+
+		private void expect(char c) throws IOException {
+			if ( next() != c ) throw error("Expected '" + c + "'");
+		}
+
+		private Object parseValue() throws IOException, JSONException {
+			skipWhitespace();
+			if ( mPos >= mEnd ) throw error("Unexpected end of message");
+			byte b = mBuf[mPos];
+			switch ( b ) {
+			case '{': return parseObject();
+			case '[': return parseArray();
+			case '"': return parseString();
+			case 't': literal("true"); return Boolean.TRUE;
+			case 'f': literal("false"); return Boolean.FALSE;
+			case 'n': literal("null"); return JSONObject.NULL;
+			default:
+				if ( b == '-' || (b >= '0' && b <= '9') ) return parseNumber();
+				throw error("Unexpected character '" + (char)b + "'");
+			}
+		}
+
+		private void literal(String word) throws IOException {
+			for ( int i=0; i<word.length(); i++ ) {
+				if ( next() != word.charAt(i) ) throw error("Expected " + word);
+			}
+		}
+
+		private JSONObject parseObject() throws IOException, JSONException {
+			expect('{');
+			JSONObject obj = new JSONObject();
+			skipWhitespace();
+			if ( mPos < mEnd && mBuf[mPos] == '}' ) {
+				mPos++;
+				return obj;
+			}
+			while ( true ) {
+				skipWhitespace();
+				if ( mPos >= mEnd || mBuf[mPos] != '"' ) throw error("Expected a key");
+				String key = parseString();
+				skipWhitespace();
+				expect(':');
+				obj.put(key, parseValue());
+				skipWhitespace();
+				byte b = next();
+				if ( b == '}' ) return obj;
+				if ( b != ',' ) throw error("Expected ',' or '}'");
+			}
+		}
+
+		private JSONArray parseArray() throws IOException, JSONException {
+			expect('[');
+			JSONArray array = new JSONArray();
+			skipWhitespace();
+			if ( mPos < mEnd && mBuf[mPos] == ']' ) {
+				mPos++;
+				return array;
+			}
+			while ( true ) {
+				array.put(parseValue());
+				skipWhitespace();
+				byte b = next();
+				if ( b == ']' ) return array;
+				if ( b != ',' ) throw error("Expected ',' or ']'");
+			}
+		}
+
+		private String parseString() throws IOException {
+			expect('"');
+			int start = mPos;
+			// common case: no escapes, so the String comes straight from the bytes
+			while ( mPos < mEnd ) {
+				byte b = mBuf[mPos];
+				if ( b == '"' ) {
+					String str = new String(mBuf, start, mPos - start, UTF8);
+					mPos++;
+					return str;
+				}
+				if ( b == '\\' ) break;
+				mPos++;
+			}
+			if ( mPos >= mEnd ) throw error("Unterminated string");
+
+			StringBuilder sb = new StringBuilder(mPos - start + 16);
+			sb.append(new String(mBuf, start, mPos - start, UTF8));
+			while ( true ) {
+				int segStart = mPos;
+				while ( mPos < mEnd && mBuf[mPos] != '"' && mBuf[mPos] != '\\' ) mPos++;
+				if ( mPos > segStart ) sb.append(new String(mBuf, segStart, mPos - segStart, UTF8));
+				byte b = next();
+				if ( b == '"' ) return sb.toString();
+				byte c = next();
+				switch ( c ) {
+				case 'b': sb.append('\b'); break;
+				case 't': sb.append('\t'); break;
+				case 'n': sb.append('\n'); break;
+				case 'f': sb.append('\f'); break;
+				case 'r': sb.append('\r'); break;
+				case 'u':
+					if ( mEnd - mPos < 4 ) throw error("Bad \\u escape");
+					sb.append((char)Integer.parseInt(new String(mBuf, mPos, 4, UTF8), 16));
+					mPos += 4;
+					break;
+				case '"': case '\\': case '/': case '\'':
+					sb.append((char)c);
+					break;
+				default:
+					throw error("Bad escape \\" + (char)c);
+				}
+			}
+		}
+
+		// Numbers are typed the way org.json types them: Double if there's a fraction or exponent,
+		// otherwise Integer if it fits, Long if not.
+		private Object parseNumber() throws IOException {
+			int start = mPos;
+			boolean integral = true;
+			while ( mPos < mEnd ) {
+				byte b = mBuf[mPos];
+				if ( b == '.' || b == 'e' || b == 'E' ) integral = false;
+				else if ( !(b == '-' || b == '+' || (b >= '0' && b <= '9')) ) break;
+				mPos++;
+			}
+			String text = new String(mBuf, start, mPos - start, UTF8);
+			try {
+				if ( !integral ) return Double.valueOf(text);
+				long v = Long.parseLong(text);
+				if ( v == (int)v ) return Integer.valueOf((int)v);
+				return Long.valueOf(v);
+			} catch (NumberFormatException e) {
+				throw error("Bad number " + text);
+			}
+		}
+
+		private IOException error(String msg) {
+			return new IOException(msg + " at offset " + mPos);
+		}
+	}
+
+	//--------------------------------------------------------------------------------------
+	// encoding
+	//--------------------------------------------------------------------------------------
+
+	@Override
+	void encode(RPCMessage msg, MessageBuffer out) throws IOException {
+		try {
+			writeValue(out, msg.marshall());
+		} catch (JSONException e) {
+			throw new IOException("Can't encode message: " + e.getMessage());
+		}
+	}
+
+	private void writeValue(MessageBuffer out, Object value) throws JSONException {
+		if ( value == null || value.equals(null) ) {
+			writeAscii(out, "null");
+		} else if ( value instanceof String ) {
+			writeString(out, (String)value);
+		} else if ( value instanceof JSONObject ) {
+			JSONObject obj = (JSONObject)value;
+			out.write('{');
+			boolean first = true;
+			Iterator<?> it = obj.keys();
+			while ( it.hasNext() ) {
+				String key = it.next().toString();
+				if ( !first ) out.write(',');
+				first = false;
+				writeString(out, wireKey(key));
+				out.write(':');
+				writeValue(out, obj.opt(key));
+			}
+			out.write('}');
+		} else if ( value instanceof JSONArray ) {
+			JSONArray array = (JSONArray)value;
+			out.write('[');
+			for ( int i=0; i<array.length(); i++ ) {
+				if ( i > 0 ) out.write(',');
+				writeValue(out, array.opt(i));
+			}
+			out.write(']');
+		} else if ( value instanceof Number ) {
+			writeAscii(out, JSONObject.numberToString((Number)value));
+		} else if ( value instanceof Boolean ) {
+			writeAscii(out, value.toString());
+		} else if ( value instanceof byte[] ) {
+			if ( mAttachments ) writeAttachmentRef(out, out.attach((byte[])value));
+			else writeString(out, Base64.encodeBytes((byte[])value));
+		} else if ( value instanceof JSONString ) {
+			// JSON text supplied by the object itself
+			byte[] bytes = JSONObject.valueToString(value).getBytes(UTF8);
+			out.write(bytes, 0, bytes.length);
+		} else if ( value instanceof Map || value instanceof Collection || value.getClass().isArray() ) {
+			writeValue(out, JSONObject.wrap(value));
+		} else {
+			writeString(out, value.toString());
+		}
+	}
+
+	// Writes the object sent in place of attachment number index
+	private static void writeAttachmentRef(MessageBuffer out, int index) {
+		out.write('{');
+		writeString(out, ATTACHMENT_KEY);
+		out.write(':');
+		writeAscii(out, Integer.toString(index));
+		out.write('}');
+	}
+
+	private static void writeAscii(MessageBuffer out, String str) {
+		int len = str.length();
+		out.ensure(len);
+		for ( int i=0; i<len; i++ ) out.write(str.charAt(i));
+	}
+
+	// Writes str as a quoted, escaped JSON string, encoded as UTF-8.
+	private static void writeString(MessageBuffer out, String str) {
+		int len = str.length();
+		out.ensure(len + 2);
+		out.write('"');
+		for ( int i=0; i<len; i++ ) {
+			char c = str.charAt(i);
+			if ( c >= 0x20 && c < 0x80 ) {
+				if ( c == '"' || c == '\\' ) out.write('\\');
+				out.write(c);
+			} else if ( c < 0x20 ) {
+				out.write('\\');
+				switch ( c ) {
+				case '\b': out.write('b'); break;
+				case '\t': out.write('t'); break;
+				case '\n': out.write('n'); break;
+				case '\f': out.write('f'); break;
+				case '\r': out.write('r'); break;
+				default:
+					out.write('u');
+					out.write('0');
+					out.write('0');
+					out.write(HEX[c >> 4]);
+					out.write(HEX[c & 0xF]);
+				}
+			} else if ( c < 0x800 ) {
+				out.write(0xC0 | (c >> 6));
+				out.write(0x80 | (c & 0x3F));
+			} else if ( Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(str.charAt(i+1)) ) {
+				int cp = Character.toCodePoint(c, str.charAt(++i));
+				out.write(0xF0 | (cp >> 18));
+				out.write(0x80 | ((cp >> 12) & 0x3F));
+				out.write(0x80 | ((cp >> 6) & 0x3F));
+				out.write(0x80 | (cp & 0x3F));
+			} else if ( Character.isSurrogate(c) ) {
+				// unpaired surrogate; not representable in UTF-8
+				out.write('?');
+			} else {
+				out.write(0xE0 | (c >> 12));
+				out.write(0x80 | ((c >> 6) & 0x3F));
+				out.write(0x80 | (c & 0x3F));
+			}
+		}
+		out.write('"');
+	}
+}
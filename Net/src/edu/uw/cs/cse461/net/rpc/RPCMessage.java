@@ -1,13 +1,18 @@
 package edu.uw.cs.cse461.net.rpc;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import edu.uw.cs.cse461.net.base.NetBase;
+import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCCallMessage.RPCBatchMessage;
 import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCCallMessage.RPCControlMessage;
 import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCCallMessage.RPCInvokeMessage;
+import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCResponseMessage.RPCChunkMessage;
 import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCResponseMessage.RPCErrorResponseMessage;
 import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCResponseMessage.RPCNormalResponseMessage;
 import edu.uw.cs.cse461.util.Log;
@@ -16,6 +21,11 @@ import edu.uw.cs.cse461.util.Log;
  * The message class hierarchy facilitates marshalling (encoding into the on-the-wire format)
  * and unmarshalling (decoding from the on-the-wire back to a Java object).  (This is also
  * called serialization, and is related to Java's specific notion of serialization.)
+ * <p>
+ * A message is represented by a JSONObject.  How that object is put on the wire is up to
+ * an RPCCodec: JSON text by default, or a binary encoding if both ends agree to it during the handshake.
+ * The constructors that take a JSONObject adopt it, after checking that the required fields are present,
+ * rather than copying it; the caller must not modify it afterwards.
  * @author zahorjan
  *
  */
@@ -35,8 +45,9 @@ class RPCMessage {
 	}
 	
 	protected RPCMessage(JSONObject obj) throws JSONException {
-		mObject = new JSONObject().put("host", obj.getString("host"))
-                                  .put("id", obj.getInt("id"));
+		obj.getString("host");
+		obj.getInt("id");
+		mObject = obj;
 	}
 
 	int id() throws JSONException {
@@ -64,21 +75,32 @@ class RPCMessage {
 		if ( jsonFormatString == null ) throw new IOException("RPCMessage.stringToMessage was passed null");
 
 		try {
-			JSONObject jsonObj = new JSONObject(jsonFormatString);
-			
+			return unmarshall(new JSONObject(jsonFormatString));
+		} catch (JSONException je) {
+			throw new IOException("Unparsable message: '" + jsonFormatString + "'");
+		}
+	}
+	
+	/**
+	 * Builds the message object corresponding to an already decoded message, adopting jsonObj.
+	 * @throws IOException If the type is unrecognized or required fields are missing
+	 */
+	static RPCMessage unmarshall(JSONObject jsonObj) throws IOException {
+		try {
 			String type = jsonObj.getString("type"); 
 			if ( type.equalsIgnoreCase("control") ) return new RPCControlMessage(jsonObj);
 			if ( type.equalsIgnoreCase("invoke") )  return new RPCInvokeMessage(jsonObj);
+			if ( type.equalsIgnoreCase("batch") )   return new RPCBatchMessage(jsonObj);
 			if ( type.equalsIgnoreCase("OK") )      return new RPCNormalResponseMessage(jsonObj);
 			if ( type.equalsIgnoreCase("ERROR") )   return new RPCErrorResponseMessage(jsonObj);
-			String msg = "Got unrecognized type in message: " + type + " [" + jsonFormatString + "]"; 
+			if ( type.equalsIgnoreCase("chunk") )   return new RPCChunkMessage(jsonObj);
+			String msg = "Got unrecognized type in message: " + type + " [" + jsonObj + "]"; 
 			Log.e(TAG, msg );
 			throw new IOException(msg);
 
 		} catch (JSONException je) {
-			throw new IOException("Unparsable message: '" + jsonFormatString + "'");
+			throw new IOException("Malformed message: '" + jsonObj + "': " + je.getMessage());
 		}
-		
 	}
 	
 	//---------------------------------------------------------
@@ -118,8 +140,8 @@ class RPCMessage {
 			RPCControlMessage(JSONObject jsonObject) throws JSONException {
 				super(jsonObject);
 				mObject.put("type", "control");
-				mObject.put("action", jsonObject.get("action"));
-				if ( jsonObject.has("options") ) mObject.put("options", jsonObject.getJSONObject("options"));
+				mObject.get("action");
+				if ( mObject.has("options") ) mObject.getJSONObject("options");
 			}
 			
 			public String action() throws JSONException {
@@ -148,10 +170,10 @@ class RPCMessage {
 			
 			RPCInvokeMessage(JSONObject jsonObject) throws JSONException {
 				super(jsonObject);
-				mObject.put("type", "invoke")
-				       .put("app", jsonObject.getString("app"))
-				       .put("method", jsonObject.getString("method"));
-				if ( jsonObject.has("args") ) mObject.put("args", jsonObject.getJSONObject("args"));
+				mObject.put("type", "invoke");
+				mObject.getString("app");
+				mObject.getString("method");
+				if ( mObject.has("args") ) mObject.getJSONObject("args");
 			}
 			
 			String app() throws JSONException {
@@ -161,6 +183,45 @@ class RPCMessage {
 			String method() throws JSONException {
 				return mObject.getString("method");
 			}
+
+			/**
+			 * Marks the call as one whose caller can receive a streamed result as chunks.
+			 */
+			RPCInvokeMessage streamed() throws JSONException {
+				mObject.put("stream", true);
+				return this;
+			}
+
+			boolean acceptsStream() {
+				return mObject.optBoolean("stream", false);
+			}
+		}
+
+		/**
+		 * Carries several invocations in one message.  The service executes them in parallel and
+		 * answers with a single OK response whose value holds a "responses" array: the response to
+		 * each invocation, in the same order.  Only sent to services that agreed to batches in the handshake.
+		 */
+		static public class RPCBatchMessage extends RPCCallMessage {
+			RPCBatchMessage(List<RPCInvokeMessage> calls) throws JSONException {
+				JSONArray callArray = new JSONArray();
+				for ( RPCInvokeMessage call : calls ) callArray.put(call.marshall());
+				mObject.put("type", "batch")
+					   .put("calls", callArray);
+			}
+
+			RPCBatchMessage(JSONObject jsonObject) throws JSONException {
+				super(jsonObject);
+				mObject.put("type", "batch");
+				mObject.getJSONArray("calls");
+			}
+
+			List<RPCInvokeMessage> calls() throws JSONException {
+				JSONArray callArray = mObject.getJSONArray("calls");
+				List<RPCInvokeMessage> calls = new ArrayList<RPCInvokeMessage>(callArray.length());
+				for ( int i=0; i<callArray.length(); i++ ) calls.add(new RPCInvokeMessage(callArray.getJSONObject(i)));
+				return calls;
+			}
 		}
 	}
 	
@@ -178,7 +239,7 @@ class RPCMessage {
 		
 		RPCResponseMessage(JSONObject jsonObj) throws JSONException {
 			super(jsonObj);
-			mObject.put("callid", jsonObj.getInt("callid") );
+			mObject.getInt("callid");
 		}
 		
 		int callid() throws JSONException {
@@ -196,7 +257,7 @@ class RPCMessage {
 				super(jsonObj);
 				mObject.put("type", "OK");
 				// JSONObject throws an exception for almost every kind of read if the key exists but the value is null
-				if ( jsonObj.has("value") && jsonObj.get("value") != null ) mObject.put("value", jsonObj.getJSONObject("value"));
+				if ( mObject.has("value") ) mObject.getJSONObject("value");
 			}
 			
 			public JSONObject value() throws JSONException {
@@ -221,8 +282,31 @@ class RPCMessage {
 			RPCErrorResponseMessage(JSONObject jsonObj) throws JSONException {
 				super(jsonObj);
 				mObject.put("type", "ERROR");
-				mObject.put("message", jsonObj.getString("message") );
-				if ( jsonObj.has("callargs") ) mObject.put("callargs", jsonObj.getJSONObject("callargs"));
+				mObject.getString("message");
+				// callargs is the failed call message, or the string 'unrecognizable', so isn't checked
+			}
+		}
+
+		/**
+		 * One piece of a streamed response.  A streaming method sends any number of these, all with
+		 * the callid of the invocation, before the OK or ERROR response that ends the call.  Only sent
+		 * on connections whose handshake agreed to streaming.
+		 */
+		static public class RPCChunkMessage extends RPCResponseMessage {
+			RPCChunkMessage(int callid, JSONObject chunk) throws JSONException {
+				super(callid);
+				mObject.put("type", "chunk");
+				mObject.put("value", chunk);
+			}
+
+			RPCChunkMessage(JSONObject jsonObj) throws JSONException {
+				super(jsonObj);
+				mObject.put("type", "chunk");
+				mObject.getJSONObject("value");
+			}
+
+			public JSONObject value() throws JSONException {
+				return mObject.getJSONObject("value");
 			}
 		}
 	}
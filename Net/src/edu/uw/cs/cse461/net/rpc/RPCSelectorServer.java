@@ -0,0 +1,547 @@
+package edu.uw.cs.cse461.net.rpc;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONObject;
+
+import edu.uw.cs.cse461.net.base.NetBase;
+import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCCallMessage.RPCInvokeMessage;
+import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCResponseMessage.RPCErrorResponseMessage;
+import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCResponseMessage.RPCNormalResponseMessage;
+import edu.uw.cs.cse461.util.Log;
+
+/**
+ * Non-blocking front end for RPCService.  One or more selector loops multiplex all
+ * RPC connections, so an idle persistent connection costs a SelectionKey rather than a thread.
+ * <p>
+ * The wire format is the one TCPMessageHandler speaks: a 4-byte little endian length followed by
+ * that many bytes of encoded message (JSON, or whatever RPCCodec the handshake selected).  The handshake is answered on the selector thread; invocations are
+ * handed to the RPCService's thread pool, and the reply is queued back to the owning loop for writing.
+ * A connection stops reading while one of its calls is executing, so replies go out in request order,
+ * unless the handshake made it multiplexed; then it keeps reading until it has RPCService.maxInFlight()
+ * calls executing, and each reply goes out as soon as its call finishes.
+ * <p>
+ * If the handshake agreed to attachments, an invocation isn't started until the attachment frames
+ * that follow it have arrived; each is read into an array of its own, which is handed on as is.
+ * <p>
+ * The chunks of a streamed response are encoded by the worker running the call and queued to the loop
+ * like replies.  A worker blocks while its connection has more than rpc.stream.window bytes queued,
+ * so a fast producer can't fill memory with chunks the network hasn't taken yet.  Since a slow reader
+ * can keep it blocked indefinitely, calls whose response may be streamed run on a pool of their own,
+ * so they can't tie up the workers every other call needs.
+ *
+ * @author grahamb5
+ */
+class RPCSelectorServer {
+	private static final String TAG="RPCSelectorServer";
+
+	private final RPCService mService;
+	private final ServerSocketChannel mServerChannel;
+	private final ExecutorService mWorkers;
+	private final ExecutorService mStreamWorkers;
+	private final SelectorLoop[] mLoops;
+	private final AtomicInteger mNextLoop = new AtomicInteger();
+
+	private final int mGranularity;
+	private final int mSocketTimeout;
+	private final int mPersistenceTimeout;
+	private final int mStreamWindow;
+
+	/**
+	 * Constructor.  Creates the selectors but doesn't start any threads; call start() for that.
+	 * @param service The RPCService whose methods are being served
+	 * @param serverChannel An open, bound, server socket channel
+	 * @param nLoops Number of selector threads to run
+	 * @param workers Executes the (possibly blocking) RPC methods themselves
+	 * @param streamWorkers Executes the calls whose responses may be streamed
+	 * @throws IOException
+	 */
+	RPCSelectorServer(RPCService service, ServerSocketChannel serverChannel, int nLoops, ExecutorService workers,
+			ExecutorService streamWorkers) throws IOException {
+		mService = service;
+		mServerChannel = serverChannel;
+		mWorkers = workers;
+		mStreamWorkers = streamWorkers;
+
+		mGranularity = NetBase.theNetBase().config().getAsInt("net.timeout.granularity", 500);
+		mSocketTimeout = NetBase.theNetBase().config().getAsInt("net.timeout.socket", 10000);
+		mPersistenceTimeout = NetBase.theNetBase().config().getAsInt("rpc.persistence.timeout", 25000);
+		mStreamWindow = NetBase.theNetBase().config().getAsInt("rpc.stream.window", 1 << 20, 1);
+
+		mServerChannel.configureBlocking(false);
+		mLoops = new SelectorLoop[Math.max(1, nLoops)];
+		for ( int i=0; i<mLoops.length; i++ ) mLoops[i] = new SelectorLoop(i);
+		// The first loop also does the accepting.
+		mServerChannel.register(mLoops[0].mSelector, SelectionKey.OP_ACCEPT);
+	}
+
+	/**
+	 * Starts one thread per selector loop.
+	 */
+	void start() {
+		for ( SelectorLoop loop : mLoops ) {
+			Thread t = new Thread(loop, TAG + "-" + loop.mIndex);
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+
+	/**
+	 * Total number of open RPC connections, over all loops.
+	 */
+	int connectionCount() {
+		int count = 0;
+		for ( SelectorLoop loop : mLoops ) count += loop.mConnectionCount;
+		return count;
+	}
+
+	int loopCount() {
+		return mLoops.length;
+	}
+
+	//--------------------------------------------------------------------------------------
+	// Selector loop
+	//--------------------------------------------------------------------------------------
+
+	private class SelectorLoop implements Runnable {
+		private final int mIndex;
+		private final Selector mSelector;
+		// Work posted by other threads (newly accepted channels, finished replies).  Drained by the loop thread.
+		private final Queue<Runnable> mTasks = new ConcurrentLinkedQueue<Runnable>();
+		private volatile int mConnectionCount = 0;
+		// when reapIdle() last ran
+		private long mLastReap = System.currentTimeMillis();
+
+		SelectorLoop(int index) throws IOException {
+			mIndex = index;
+			mSelector = Selector.open();
+		}
+
+		void post(Runnable task) {
+			mTasks.add(task);
+			mSelector.wakeup();
+		}
+
+		@Override
+		public void run() {
+			try {
+				while ( !mService.isShutdown() ) {
+					mSelector.select(mGranularity);
+
+					Runnable task;
+					while ( (task = mTasks.poll()) != null ) {
+						try {
+							task.run();
+						} catch (Throwable t) {
+							// one connection's bad luck mustn't stop the loop serving the rest
+							Log.e(TAG, "Selector loop " + mIndex + " task failed: " + t);
+						}
+					}
+
+					Iterator<SelectionKey> it = mSelector.selectedKeys().iterator();
+					while ( it.hasNext() ) {
+						SelectionKey key = it.next();
+						it.remove();
+						if ( !key.isValid() ) continue;
+						if ( key.isAcceptable() ) {
+							try {
+								accept();
+							} catch (IOException e) {
+								Log.w(TAG, "Unable to accept new connection: " + e.getMessage());
+							}
+							continue;
+						}
+						Connection conn = (Connection)key.attachment();
+						try {
+							if ( key.isReadable() ) conn.onReadable();
+							if ( key.isValid() && key.isWritable() ) conn.onWritable();
+						} catch (IOException e) {
+							// peer went away or sent garbage; nothing more we can say to it
+							conn.close();
+						} catch (Throwable t) {
+							// a bug handling this connection; drop it, but keep serving the others
+							Log.e(TAG, "Closing connection after unexpected " + t);
+							conn.close();
+						}
+					}
+
+					// a sweep looks at every connection, so not on every wakeup
+					long now = System.currentTimeMillis();
+					if ( now - mLastReap >= mGranularity ) {
+						mLastReap = now;
+						reapIdle(now);
+					}
+				}
+			} catch (IOException e) {
+				Log.w(TAG, "Selector loop " + mIndex + " exiting due to " + e.getMessage());
+			} finally {
+				for ( SelectionKey key : mSelector.keys() ) {
+					try { key.channel().close(); } catch (IOException e) { }
+				}
+				try { mSelector.close(); } catch (IOException e) { }
+			}
+		}
+
+		private void accept() throws IOException {
+			SocketChannel channel;
+			while ( (channel = mServerChannel.accept()) != null ) {
+				final SocketChannel accepted = channel;
+				accepted.configureBlocking(false);
+				final SelectorLoop owner = mLoops[(mNextLoop.getAndIncrement() & Integer.MAX_VALUE) % mLoops.length];
+				if ( owner == this ) owner.register(accepted);
+				else owner.post(new Runnable() {
+					@Override
+					public void run() {
+						owner.register(accepted);
+					}
+				});
+			}
+		}
+
+		private void register(SocketChannel channel) {
+			try {
+				Connection conn = new Connection(this, channel);
+				conn.mKey = channel.register(mSelector, SelectionKey.OP_READ, conn);
+				mConnectionCount++;
+			} catch (IOException e) {
+				Log.w(TAG, "Unable to register new connection: " + e.getMessage());
+				try { channel.close(); } catch (IOException e2) { }
+			}
+		}
+
+		// Closes connections that have sat idle longer than their timeout.  Connections with calls
+		// in progress aren't idle, no matter how long the methods take.
+		private void reapIdle(long now) {
+			for ( SelectionKey key : mSelector.keys() ) {
+				if ( !(key.attachment() instanceof Connection) ) continue;
+				Connection conn = (Connection)key.attachment();
+				if ( conn.mCallsInProgress == 0 && now - conn.mLastActivity > conn.timeout() ) {
+					Log.d(TAG, "Closing idle connection " + conn.mChannel.socket().getRemoteSocketAddress());
+					conn.close();
+				}
+			}
+		}
+	}
+
+	//--------------------------------------------------------------------------------------
+	// Per-connection state machine
+	//--------------------------------------------------------------------------------------
+
+	private class Connection {
+		private final SelectorLoop mLoop;
+		private final SocketChannel mChannel;
+		private SelectionKey mKey;
+
+		private final ByteBuffer mLengthBuf = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+		private ByteBuffer mBodyBuf = null;
+		// Kept between frames so that each one needn't allocate a body buffer
+		private ByteBuffer mSpareBodyBuf = null;
+		private final Queue<ByteBuffer[]> mWriteQueue = new ArrayDeque<ByteBuffer[]>();
+		// An invocation waiting for its attachments, and those that have arrived so far
+		private RPCMessage mAwaitingMsg = null;
+		private RPCCodec.AttachmentRefs mAwaitingRefs = null;
+		private byte[][] mAttachments = null;
+		private int mNextAttachment = 0;
+
+		private RPCCodec mCodec = RPCCodec.JSON_CODEC;
+		private boolean mHandshakeDone = false;
+		private boolean mKeepAlive = false;
+		private boolean mCloseAfterWrite = false;
+		private boolean mMultiplexed = false;
+		private int mCallsInProgress = 0;
+		// Sends chunks of streamed responses, if the handshake agreed to them
+		private RPCService.MessageSender mChunkSender = null;
+		// Bytes queued for writing, which workers streaming responses wait on; guarded by mFlowLock
+		private final Object mFlowLock = new Object();
+		private long mQueuedBytes = 0;
+		private volatile boolean mClosed = false;
+		private long mLastActivity = System.currentTimeMillis();
+
+		Connection(SelectorLoop loop, SocketChannel channel) {
+			mLoop = loop;
+			mChannel = channel;
+		}
+
+		// Whether to read further invocations now
+		private boolean canRead() {
+			if ( mCloseAfterWrite ) return false;
+			return mMultiplexed ? mCallsInProgress < mService.maxInFlight() : mCallsInProgress == 0;
+		}
+
+		long timeout() {
+			return mKeepAlive ? mPersistenceTimeout : mSocketTimeout;
+		}
+
+		void onReadable() throws IOException {
+			mLastActivity = System.currentTimeMillis();
+			// Keep decoding frames as long as there is data and we're willing to start another call.
+			while ( canRead() ) {
+				if ( mBodyBuf == null ) {
+					if ( mChannel.read(mLengthBuf) < 0 ) throw new IOException("EOF");
+					if ( mLengthBuf.hasRemaining() ) return;
+					int length = mLengthBuf.getInt(0);
+					mLengthBuf.clear();
+					if ( length < 0 ) throw new IOException("Bad message length " + length);
+					// an attachment is handed on, so it needs an array of its own
+					if ( mAttachments == null && mSpareBodyBuf != null && mSpareBodyBuf.capacity() >= length ) {
+						mBodyBuf = mSpareBodyBuf;
+						mBodyBuf.clear().limit(length);
+					} else {
+						mBodyBuf = ByteBuffer.allocate(length);
+					}
+				}
+				if ( mBodyBuf.hasRemaining() && mChannel.read(mBodyBuf) < 0 ) throw new IOException("EOF");
+				if ( mBodyBuf.hasRemaining() ) return;
+
+				ByteBuffer body = mBodyBuf;
+				mBodyBuf = null;
+				if ( mAttachments != null ) {
+					onAttachment(body.array());
+					continue;
+				}
+				try {
+					onMessage(body.array(), body.limit());
+				} finally {
+					mSpareBodyBuf = body.capacity() <= RPCCodec.Buffers.MAX_RETAINED ? body : null;
+				}
+			}
+		}
+
+		private void onMessage(byte[] body, int length) throws IOException {
+			RPCMessage msg = null;
+			if ( !mHandshakeDone ) {
+				try {
+					msg = mCodec.decode(body, 0, length);
+					if ( msg == null ) throw new IOException("Unreadable handshake");
+					JSONObject retval = mService.handshake(msg);
+					mKeepAlive = RPCService.isKeepAlive(retval);
+					mMultiplexed = RPCService.isMultiplexed(retval);
+					if ( RPCService.isStreaming(retval) ) mChunkSender = new RPCService.MessageSender() {
+						@Override
+						public void send(RPCMessage msg) throws IOException {
+							sendFromWorker(msg);
+						}
+					};
+					if ( mMultiplexed ) mChannel.socket().setTcpNoDelay(true);
+					mHandshakeDone = true;
+					// the response goes out in JSON; everything after it in the agreed encoding
+					enqueue(new RPCNormalResponseMessage(msg.id(), retval));
+					mCodec = RPCCodec.negotiated(retval);
+				} catch (Exception e) {
+					// Handshake failed.  Try to say why, then close the connection.
+					mCloseAfterWrite = true;
+					if ( msg == null ) {
+						// nothing to answer
+						close();
+						return;
+					}
+					try {
+						enqueue(new RPCErrorResponseMessage(msg.id(), e.getMessage(), null));
+					} catch (Exception e2) { }
+					if ( mKey.isValid() ) onWritable();
+				}
+				return;
+			}
+
+			// An invocation.  A message we can't even parse breaks the connection, as in the threaded server.
+			RPCMessage invocationMsg = mCodec.decode(body, 0, length);
+			if ( mCodec.attachments() ) {
+				RPCCodec.AttachmentRefs refs = new RPCCodec.AttachmentRefs(invocationMsg);
+				if ( refs.count() > 0 ) {
+					mAwaitingMsg = invocationMsg;
+					mAwaitingRefs = refs;
+					mAttachments = new byte[refs.count()][];
+					mNextAttachment = 0;
+					return;
+				}
+			}
+			startCall(invocationMsg);
+		}
+
+		private void onAttachment(byte[] attachment) throws IOException {
+			mAttachments[mNextAttachment++] = attachment;
+			if ( mNextAttachment < mAttachments.length ) return;
+			RPCMessage invocationMsg = mAwaitingMsg;
+			mAwaitingRefs.resolve(mAttachments);
+			mAwaitingMsg = null;
+			mAwaitingRefs = null;
+			mAttachments = null;
+			startCall(invocationMsg);
+		}
+
+		private void startCall(final RPCMessage invocationMsg) {
+			mCallsInProgress++;
+			updateInterest();
+			try {
+				ExecutorService workers = invocationMsg instanceof RPCInvokeMessage &&
+						((RPCInvokeMessage)invocationMsg).acceptsStream() ? mStreamWorkers : mWorkers;
+				workers.execute(new Runnable() {
+					@Override
+					public void run() {
+						RPCMessage response = null;
+						try {
+							response = mService.dispatch(invocationMsg, mChunkSender);
+						} finally {
+							// posted whatever happened, so the call is always counted as done
+							final RPCMessage result = response;
+							mLoop.post(new Runnable() {
+								@Override
+								public void run() {
+									onCallComplete(result);
+								}
+							});
+						}
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				// shutting down
+				close();
+			}
+		}
+
+		private void onCallComplete(RPCMessage response) {
+			if ( !mKey.isValid() ) return;
+			mCallsInProgress--;
+			mLastActivity = System.currentTimeMillis();
+			if ( !mKeepAlive ) mCloseAfterWrite = true;
+			try {
+				if ( response != null ) enqueue(response);
+				else updateInterest();
+				// Frames may have arrived while we weren't reading.
+				if ( !mCloseAfterWrite ) onReadable();
+			} catch (IOException e) {
+				close();
+			}
+		}
+
+		// Queues msg, followed by its attachments, as one gathering write
+		private void enqueue(RPCMessage msg) throws IOException {
+			queue(encode(msg));
+		}
+
+		private void queue(ByteBuffer[] frames) throws IOException {
+			synchronized (mFlowLock) {
+				mQueuedBytes += size(frames);
+			}
+			mWriteQueue.add(frames);
+			onWritable();
+		}
+
+		// Called by a worker thread: encodes msg and queues it to the loop, first waiting for the
+		// connection's queue to drain below the stream window
+		private void sendFromWorker(RPCMessage msg) throws IOException {
+			final ByteBuffer[] frames = encode(msg);
+			synchronized (mFlowLock) {
+				try {
+					while ( mQueuedBytes > mStreamWindow && !mClosed ) mFlowLock.wait();
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException("Interrupted waiting to send");
+				}
+				if ( mClosed ) throw new IOException("Connection closed");
+			}
+			mLoop.post(new Runnable() {
+				@Override
+				public void run() {
+					if ( !mKey.isValid() ) return;
+					try {
+						queue(frames);
+					} catch (IOException e) {
+						close();
+					}
+				}
+			});
+		}
+
+		private ByteBuffer[] encode(RPCMessage msg) throws IOException {
+			RPCCodec.MessageBuffer body = new RPCCodec.MessageBuffer();
+			mCodec.encode(msg, body);
+			List<byte[]> attachments = body.attachments();
+			ByteBuffer[] frames = new ByteBuffer[2 + 2*attachments.size()];
+			frames[0] = lengthOf(body.size());
+			frames[1] = ByteBuffer.wrap(body.array(), 0, body.size());
+			for ( int i=0; i<attachments.size(); i++ ) {
+				frames[2 + 2*i] = lengthOf(attachments.get(i).length);
+				frames[3 + 2*i] = ByteBuffer.wrap(attachments.get(i));
+			}
+			return frames;
+		}
+
+		private ByteBuffer lengthOf(int length) {
+			return ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(0, length);
+		}
+
+		void onWritable() throws IOException {
+			while ( !mWriteQueue.isEmpty() ) {
+				ByteBuffer[] frames = mWriteQueue.peek();
+				mChannel.write(frames);
+				if ( hasRemaining(frames) ) break;
+				mWriteQueue.poll();
+				written(size(frames));
+			}
+			if ( mWriteQueue.isEmpty() && mCloseAfterWrite && mCallsInProgress == 0 ) {
+				close();
+				return;
+			}
+			updateInterest();
+		}
+
+		private void written(long nBytes) {
+			synchronized (mFlowLock) {
+				mQueuedBytes -= nBytes;
+				if ( mQueuedBytes <= mStreamWindow ) mFlowLock.notifyAll();
+			}
+		}
+
+		// Total length of a queued message's frames
+		private long size(ByteBuffer[] frames) {
+			long size = 0;
+			for ( ByteBuffer frame : frames ) size += frame.limit();
+			return size;
+		}
+
+		private boolean hasRemaining(ByteBuffer[] buffers) {
+			for ( ByteBuffer buffer : buffers ) if ( buffer.hasRemaining() ) return true;
+			return false;
+		}
+
+		private void updateInterest() {
+			if ( !mKey.isValid() ) return;
+			int ops = 0;
+			if ( !mWriteQueue.isEmpty() ) ops |= SelectionKey.OP_WRITE;
+			if ( canRead() ) ops |= SelectionKey.OP_READ;
+			mKey.interestOps(ops);
+		}
+
+		void close() {
+			synchronized (mFlowLock) {
+				mClosed = true;
+				mFlowLock.notifyAll();
+			}
+			if ( mKey != null && mKey.isValid() ) {
+				mKey.cancel();
+				mLoop.mConnectionCount--;
+			}
+			try { mChannel.close(); } catch (IOException e) { }
+		}
+	}
+
+	@Override
+	public String toString() {
+		return mLoops.length + " selector loop(s) serving " + connectionCount() + " connection(s)";
+	}
+}
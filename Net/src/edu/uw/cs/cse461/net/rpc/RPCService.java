@@ -5,22 +5,34 @@ import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
-import java.util.HashMap;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import edu.uw.cs.cse461.net.base.NetBase;
 import edu.uw.cs.cse461.net.base.NetLoadable.NetLoadableService;
 import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCCallMessage;
+import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCCallMessage.RPCBatchMessage;
 import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCCallMessage.RPCControlMessage;
 import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCCallMessage.RPCInvokeMessage;
+import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCResponseMessage.RPCChunkMessage;
 import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCResponseMessage.RPCErrorResponseMessage;
 import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCResponseMessage.RPCNormalResponseMessage;
 import edu.uw.cs.cse461.net.tcpmessagehandler.TCPMessageHandler;
+import edu.uw.cs.cse461.util.ConnectionExecutor;
 import edu.uw.cs.cse461.util.IPFinder;
 import edu.uw.cs.cse461.util.Log;
 
@@ -35,9 +47,45 @@ public class RPCService extends NetLoadableService implements Runnable, RPCServi
 	private static final String TAG="RPCService";
 	private static final boolean ALLOW_PERSISTENCE = true;
 	
-	private final Map<Pair<String, String>, RPCCallableMethod> rpcMethods;
+	/**
+	 * Handshake option asking that calls on the connection be multiplexed: the caller may send
+	 * further invocations before earlier ones are answered, and responses come back in whatever
+	 * order the calls finish, matched to their invocations by callid.
+	 */
+	static final String MULTIPLEX_OPTION = "multiplex";
+	
+	/**
+	 * Handshake option saying the caller may send batch messages (see RPCBatchMessage), several
+	 * invocations in one frame answered by one response.
+	 */
+	static final String BATCH_OPTION = "batch";
+	
+	/**
+	 * Handshake option saying the caller can receive streamed responses (see RPCChunkMessage).
+	 * Streaming methods can be called only on connections that agreed to it.
+	 */
+	static final String STREAM_OPTION = "stream";
+	
+	/**
+	 * How a connection sends the chunks of a streamed response.
+	 */
+	interface MessageSender {
+		void send(RPCMessage msg) throws IOException;
+	}
+	
+	// Registered methods, by service name and then method name.  Two lookups in concurrent maps resolve
+	// a call without allocating a key or taking a lock, while registrations come and go.
+	private final ConcurrentHashMap<String, ConcurrentHashMap<String, RPCCallableMethod>> rpcMethods;
 	private ServerSocket mServerSocket = null;
 	private ExecutorService threadPool = null;
+	// Runs the calls arriving on multiplexed connections
+	private ExecutorService mCallPool = null;
+	// Runs the calls whose responses may be streamed, in nio mode
+	private ExecutorService mStreamPool = null;
+	private int mMaxInFlight;
+	private int mMaxBatch;
+	private int mBatchParallelism;
+	private RPCSelectorServer mSelectorServer = null;
 	
 	private static final int NUM_THREADS = 40;
 		
@@ -47,22 +95,60 @@ public class RPCService extends NetLoadableService implements Runnable, RPCServi
 	 * Otherwise, you should specify port 0, meaning the operating system should choose a currently unused port.
 	 * <p>
 	 * Once the port is created, a thread needs to be spun up to listen for connections on it.
+	 * <p>
+	 * If config file entry rpc.server.mode is "nio", connections are instead multiplexed over
+	 * rpc.server.selectors selector threads (see RPCSelectorServer), and the thread pool only runs
+	 * the RPC methods themselves.  Otherwise each connection occupies a pool thread for its lifetime.
+	 * <p>
+	 * In nio mode, calls whose responses may be streamed run on a pool of their own
+	 * (rpc.streams.executor, cached by default), since they can block until the caller takes the chunks.
+	 * <p>
+	 * The kind of pool is chosen by config file entries rpc.executor and rpc.threads (see ConnectionExecutor).
+	 * With rpc.executor=virtual every connection gets its own virtual thread, so the threaded mode
+	 * is no longer capped at rpc.threads concurrent connections.
+	 * <p>
+	 * Callers may ask for a connection to be multiplexed (see MULTIPLEX_OPTION), in which case up to
+	 * rpc.multiplex.maxinflight of its calls execute at once.  In threaded mode they run on a separate
+	 * pool (rpc.calls.executor, cached by default), so that they can't be starved by the connections
+	 * occupying the main one.  Config file entry rpc.multiplex=false turns multiplexing off.
+	 * <p>
+	 * The invocations of a batch message also run in parallel on that pool; config file entry
+	 * rpc.batch.max limits how many one batch may carry, and rpc.batch.parallelism how many of them
+	 * execute at once (so a batch uses at most that many threads, however large it is).
 	 * 
 	 * @throws Exception
 	 */
 	public RPCService() throws Exception {
 		super("rpc");
-		rpcMethods = new HashMap<Pair<String, String>, RPCCallableMethod>();
+		rpcMethods = new ConcurrentHashMap<String, ConcurrentHashMap<String, RPCCallableMethod>>();
 		
 		String serverIP = IPFinder.localIP();
 		int tcpPort = NetBase.theNetBase().config().getAsInt("rpc.server.port", 0);
+		String mode = NetBase.theNetBase().config().getProperty("rpc.server.mode", "threaded");
+		
+		// Create a thread pool for this service.
+		threadPool = ConnectionExecutor.create(NetBase.theNetBase().config(), "rpc", ConnectionExecutor.FIXED, NUM_THREADS);
+		mMaxInFlight = NetBase.theNetBase().config().getAsInt("rpc.multiplex.maxinflight", 64, 1);
+		mMaxBatch = NetBase.theNetBase().config().getAsInt("rpc.batch.max", 1024, 1);
+		mBatchParallelism = NetBase.theNetBase().config().getAsInt("rpc.batch.parallelism", 8, 1);
+		
+		if ( mode.equalsIgnoreCase("nio") ) {
+			mCallPool = threadPool;
+			ServerSocketChannel serverChannel = ServerSocketChannel.open();
+			mServerSocket = serverChannel.socket();
+			mServerSocket.bind(new InetSocketAddress(serverIP, tcpPort));
+			int nSelectors = NetBase.theNetBase().config().getAsInt("rpc.server.selectors", 1, 1);
+			mStreamPool = ConnectionExecutor.create(NetBase.theNetBase().config(), "rpc.streams", ConnectionExecutor.CACHED, NUM_THREADS);
+			mSelectorServer = new RPCSelectorServer(this, serverChannel, nSelectors, threadPool, mStreamPool);
+			mSelectorServer.start();
+			return;
+		}
+		
+		mCallPool = ConnectionExecutor.create(NetBase.theNetBase().config(), "rpc.calls", ConnectionExecutor.CACHED, NUM_THREADS);
 		mServerSocket = new ServerSocket();
 		mServerSocket.bind(new InetSocketAddress(serverIP, tcpPort));
 		mServerSocket.setSoTimeout( NetBase.theNetBase().config().getAsInt("net.timeout.granularity", 500));
 		
-		// Create a thread pool for this service.
-		threadPool = Executors.newFixedThreadPool(NUM_THREADS);
-		
 		new Thread() {
 			@Override
 			public void run() {
@@ -82,7 +168,12 @@ public class RPCService extends NetLoadableService implements Runnable, RPCServi
 				TCPMessageHandler handler = new TCPMessageHandler(mServerSocket.accept());
 				
 				// Spawn a thread to process this connection.
-				threadPool.execute(new RPCConnection(handler));
+				try {
+					threadPool.execute(new RPCConnection(handler));
+				} catch (RejectedExecutionException e) {
+					// we're shutting down
+					handler.close();
+				}
 			} catch (SocketTimeoutException e) {
 				// this is normal.  Just loop back and see if we're terminating.
 			} catch (IOException e) {
@@ -95,21 +186,305 @@ public class RPCService extends NetLoadableService implements Runnable, RPCServi
 			try { mServerSocket.close(); } catch (IOException e) { }
 	}
 	
+	/**
+	 * Stops accepting connections and lets the thread pool wind down.
+	 */
+	@Override
+	public void shutdown() {
+		super.shutdown();
+		threadPool.shutdown();
+		if ( mCallPool != threadPool ) mCallPool.shutdown();
+		if ( mStreamPool != null ) mStreamPool.shutdown();
+	}
+	
+	/**
+	 * Processes the connect control message that opens every RPC connection.
+	 * @param rawConnectMsg The first message received on the connection
+	 * @return The value to return in the OK response: a "connection":"keep-alive" option if the
+	 *  connection is to be persistent, and an "encoding" option if the caller asked for an encoding
+	 *  other than JSON that we support, a "multiplex":"yes" option if the caller asked for multiplexing
+	 *  on a persistent connection and rpc.multiplex allows it, a "batch":"yes" option if the caller
+	 *  offered to send batches, an "attachments":"yes" option if the caller asked to send byte arrays
+	 *  as attachments (see RPCCodec), and a "stream":"yes" option if the caller can receive streamed
+	 *  responses.  Null if there are no options to return.
+	 * @throws JSONException
+	 * @throws ClassCastException If the message isn't a control message
+	 */
+	JSONObject handshake(RPCMessage rawConnectMsg) throws JSONException, ClassCastException {
+		RPCControlMessage connectMsg = (RPCControlMessage) rawConnectMsg;
+		JSONObject retval = new JSONObject();
+		boolean keepAlive = "keep-alive".equalsIgnoreCase(connectMsg.getOption("connection"));
+		if ( ALLOW_PERSISTENCE && keepAlive ) {
+			retval.put("connection", "keep-alive");
+			// multiplexing a connection that carries a single call would gain nothing
+			if ( "yes".equalsIgnoreCase(connectMsg.getOption(MULTIPLEX_OPTION)) &&
+					NetBase.theNetBase().config().getProperty("rpc.multiplex", "true").equalsIgnoreCase("true") )
+				retval.put(MULTIPLEX_OPTION, "yes");
+		}
+		if ( "yes".equalsIgnoreCase(connectMsg.getOption(BATCH_OPTION)) ) retval.put(BATCH_OPTION, "yes");
+		if ( "yes".equalsIgnoreCase(connectMsg.getOption(RPCCodec.ATTACHMENTS_OPTION)) ) retval.put(RPCCodec.ATTACHMENTS_OPTION, "yes");
+		if ( "yes".equalsIgnoreCase(connectMsg.getOption(STREAM_OPTION)) ) retval.put(STREAM_OPTION, "yes");
+		RPCCodec.request(retval, RPCCodec.accept(connectMsg.getOption(RPCCodec.ENCODING_OPTION)));
+		return retval.length() == 0 ? null : retval;
+	}
+	
+	/**
+	 * Returns true if the value of a handshake response says the connection is persistent.
+	 */
+	static boolean isKeepAlive(JSONObject handshakeValue) {
+		return handshakeValue != null && "keep-alive".equalsIgnoreCase(handshakeValue.optString("connection"));
+	}
+	
+	/**
+	 * Returns true if the value of a handshake response says calls on the connection are multiplexed.
+	 */
+	static boolean isMultiplexed(JSONObject handshakeValue) {
+		return handshakeValue != null && "yes".equalsIgnoreCase(handshakeValue.optString(MULTIPLEX_OPTION));
+	}
+	
+	/**
+	 * Returns true if the value of a handshake response says the service accepts batch messages.
+	 */
+	static boolean acceptsBatches(JSONObject handshakeValue) {
+		return handshakeValue != null && "yes".equalsIgnoreCase(handshakeValue.optString(BATCH_OPTION));
+	}
+	
+	/**
+	 * Returns true if the value of a handshake response says responses may be streamed.
+	 */
+	static boolean isStreaming(JSONObject handshakeValue) {
+		return handshakeValue != null && "yes".equalsIgnoreCase(handshakeValue.optString(STREAM_OPTION));
+	}
+	
+	/**
+	 * Executor that runs the calls arriving on multiplexed connections.
+	 */
+	ExecutorService callPool() {
+		return mCallPool;
+	}
+	
+	/**
+	 * Maximum number of calls a multiplexed connection may have executing at once.  Further invocations
+	 * aren't read from the connection until one finishes.
+	 */
+	int maxInFlight() {
+		return mMaxInFlight;
+	}
+	
+	/**
+	 * Executes a single invocation message, returning the response to send.  Failures the caller should
+	 * hear about (unknown method, exception thrown by the method) come back as an error response message.
+	 * A batch message is executed by dispatchBatch().
+	 * @param invocationMsg The message received from the caller
+	 * @return The response, or null if no sensible response could be built
+	 */
+	RPCMessage dispatch(RPCMessage invocationMsg) {
+		return dispatch(invocationMsg, null);
+	}
+	
+	/**
+	 * Executes an invocation message on a connection that can stream responses.  A streaming method's
+	 * chunks are sent with sender as it writes them, if the caller marked the call as streamed; the
+	 * returned response ends the call.
+	 * @param sender Sends chunks on the caller's connection, or null if it can't receive them
+	 */
+	RPCMessage dispatch(RPCMessage invocationMsg, MessageSender sender) {
+		if (invocationMsg instanceof RPCBatchMessage) return dispatchBatch((RPCBatchMessage) invocationMsg);
+		try {
+			try {
+				if (invocationMsg instanceof RPCInvokeMessage) {
+					// Is a valid invocation message.
+					RPCInvokeMessage invokeMsg = (RPCInvokeMessage) invocationMsg;
+					RPCCallableMethod method = lookup(invokeMsg.app(), invokeMsg.method());
+					if (method != null) {
+						// The requested method is registered.
+						JSONObject result;
+						if (method.isStreaming() && sender != null && invokeMsg.acceptsStream()) {
+							ChunkStream stream = new ChunkStream(invokeMsg.id(), sender);
+							try {
+								result = method.handleCall(invokeMsg.args(), stream);
+							} finally {
+								stream.close();
+							}
+						} else {
+							result = method.handleCall(invokeMsg.args(), null);
+						}
+						return new RPCNormalResponseMessage(invokeMsg.id(), result);
+					} else {
+						// Send non-connection breaking error.
+						throw new Exception("No (app, method) of the requested combination is registered: (" + 
+								invokeMsg.app() + ", " + invokeMsg.method() + ")");
+					}
+				} else {
+					// Send non-connection breaking error.
+					throw new Exception("Expected RPCInvokeMessage but got " + invocationMsg.getClass());
+				}
+			} catch (Throwable e) {
+				// Send non-connection-breaking error message.  Errors too: the caller (and, for a
+				// selector connection, the count of calls in progress) is waiting on this response.
+				RPCCallMessage sendErrorInfo = invocationMsg instanceof RPCCallMessage ?
+						(RPCCallMessage) invocationMsg : null;
+				// some exceptions have no message, and a response without one can't be sent
+				String message = e.getMessage() != null ? e.getMessage() : e.toString();
+				return new RPCErrorResponseMessage(invocationMsg.id(), message, sendErrorInfo);
+			}
+		} catch (JSONException e) {
+			Log.w(TAG, "Unable to build response: " + e.getMessage());
+			return null;
+		}
+	}
+	
+	/**
+	 * The stream a streaming method writes to: each chunk becomes an RPCChunkMessage for the call.
+	 */
+	private static class ChunkStream implements RPCCallableMethod.Stream {
+		private final int callid;
+		private final MessageSender sender;
+		private volatile boolean closed = false;
+		
+		ChunkStream(int callid, MessageSender sender) {
+			this.callid = callid;
+			this.sender = sender;
+		}
+		
+		@Override
+		public void write(JSONObject chunk) throws IOException {
+			if (chunk == null) throw new IllegalArgumentException("chunk must be non-null");
+			if (closed) throw new IOException("Stream is closed: the call has returned");
+			try {
+				sender.send(new RPCChunkMessage(callid, chunk));
+			} catch (JSONException e) {
+				throw new IOException("Can't build chunk: " + e.getMessage());
+			}
+		}
+		
+		void close() {
+			closed = true;
+		}
+	}
+	
+	/**
+	 * Executes the invocations of a batch in parallel on the call pool, returning one response that
+	 * holds each invocation's response in order.  At most mBatchParallelism of them execute at once:
+	 * this thread and up to mBatchParallelism-1 pool threads each take the next invocation not yet
+	 * started until there are none left.  An invocation that fails gets an error response in its
+	 * slot; the batch as a whole fails only if it can't be read or is too large.
+	 * @param batchMsg The batch received from the caller
+	 * @return The response, or null if no sensible response could be built
+	 */
+	private RPCMessage dispatchBatch(RPCBatchMessage batchMsg) {
+		try {
+			try {
+				List<RPCInvokeMessage> calls = batchMsg.calls();
+				if (calls.size() > mMaxBatch)
+					throw new Exception("Batch of " + calls.size() + " calls exceeds the limit of " + mMaxBatch);
+				
+				final List<FutureTask<RPCMessage>> tasks = new ArrayList<FutureTask<RPCMessage>>(calls.size());
+				for (final RPCInvokeMessage call : calls) {
+					tasks.add(new FutureTask<RPCMessage>(new Callable<RPCMessage>() {
+						@Override
+						public RPCMessage call() {
+							return dispatch(call);
+						}
+					}));
+				}
+				final AtomicInteger next = new AtomicInteger();
+				Runnable runner = new Runnable() {
+					@Override
+					public void run() {
+						int i;
+						while ((i = next.getAndIncrement()) < tasks.size()) tasks.get(i).run();
+					}
+				};
+				// This thread may itself be a pool thread, so rather than just waiting it runs whatever
+				// the pool hasn't started yet.  Batches then can't deadlock a pool whose threads are all
+				// waiting on batches.
+				int nRunners = Math.min(mBatchParallelism, tasks.size()) - 1;
+				for (int i = 0; i < nRunners; i++) {
+					try {
+						mCallPool.execute(runner);
+					} catch (RejectedExecutionException e) {
+						// we're shutting down, or the pool is full; this thread runs them
+						break;
+					}
+				}
+				runner.run();
+				
+				JSONArray responses = new JSONArray();
+				for (FutureTask<RPCMessage> task : tasks) {
+					RPCMessage response = task.get();
+					responses.put(response != null ? response.marshall() : JSONObject.NULL);
+				}
+				return new RPCNormalResponseMessage(batchMsg.id(), new JSONObject().put("responses", responses));
+			} catch (Exception e) {
+				String message = e.getMessage() != null ? e.getMessage() : e.toString();
+				return new RPCErrorResponseMessage(batchMsg.id(), message, null);
+			}
+		} catch (JSONException e) {
+			Log.w(TAG, "Unable to build response: " + e.getMessage());
+			return null;
+		}
+	}
+	
 	/**
 	 * Services and applications with RPC callable methods register them with the RPC service using this routine.
 	 * Those methods are then invoked as callbacks when an remote RPC request for them arrives.
+	 * A registration replaces any earlier one for the same service and method.  Registering is safe while
+	 * calls are being handled; calls already under way finish with the method they started with.
 	 * @param serviceName  The name of the service.
 	 * @param methodName  The external, well-known name of the service's method to call
 	 * @param method The descriptor allowing invocation of the Java method implementing the call
 	 * @throws Exception
 	 */
 	@Override
-	public synchronized void registerHandler(String serviceName, String methodName, RPCCallableMethod method) throws Exception {
+	public void registerHandler(String serviceName, final String methodName, final RPCCallableMethod method) throws Exception {
 		if (serviceName == null) throw new IllegalArgumentException("serviceName must be non-null");
 		if (methodName == null) throw new IllegalArgumentException("methodName must be non-null");
 		if (method == null) throw new IllegalArgumentException("method must be non-null");
 		
-		rpcMethods.put(Pair.pair(serviceName, methodName), method);
+		// compute() makes this atomic with respect to unregisterHandler() dropping the service's table
+		rpcMethods.compute(serviceName, new BiFunction<String, ConcurrentHashMap<String, RPCCallableMethod>, ConcurrentHashMap<String, RPCCallableMethod>>() {
+			@Override
+			public ConcurrentHashMap<String, RPCCallableMethod> apply(String service, ConcurrentHashMap<String, RPCCallableMethod> methods) {
+				if (methods == null) methods = new ConcurrentHashMap<String, RPCCallableMethod>();
+				methods.put(methodName, method);
+				return methods;
+			}
+		});
+	}
+	
+	/**
+	 * Removes the registration for a service's method, so that further calls of it get an error response.
+	 * Calls already under way aren't affected.
+	 * @return The registration removed, or null if there wasn't one
+	 */
+	@Override
+	public RPCCallableMethod unregisterHandler(String serviceName, final String methodName) {
+		if (serviceName == null || methodName == null) return null;
+		final RPCCallableMethod[] removed = new RPCCallableMethod[1];
+		rpcMethods.computeIfPresent(serviceName, new BiFunction<String, ConcurrentHashMap<String, RPCCallableMethod>, ConcurrentHashMap<String, RPCCallableMethod>>() {
+			@Override
+			public ConcurrentHashMap<String, RPCCallableMethod> apply(String service, ConcurrentHashMap<String, RPCCallableMethod> methods) {
+				removed[0] = methods.remove(methodName);
+				return methods.isEmpty() ? null : methods;
+			}
+		});
+		return removed[0];
+	}
+	
+	// The registration for a service's method, or null
+	private RPCCallableMethod lookup(String serviceName, String methodName) {
+		if (serviceName == null || methodName == null) return null;
+		Map<String, RPCCallableMethod> methods = rpcMethods.get(serviceName);
+		return methods == null ? null : methods.get(methodName);
+	}
+	
+	/**
+	 * Registers a method whose calls go straight to handler.
+	 * @see RPCCallableMethod.Handler
+	 */
+	public void registerHandler(String serviceName, String methodName, RPCCallableMethod.Handler handler) throws Exception {
+		registerHandler(serviceName, methodName, new RPCCallableMethod(handler));
 	}
 	
 	/**
@@ -121,7 +496,7 @@ public class RPCService extends NetLoadableService implements Runnable, RPCServi
 	 * @return The existing registration for that method of that service, or null if no registration exists.
 	 */
 	public RPCCallableMethod getRegistrationFor(String serviceName, String methodName) {
-		return rpcMethods.get(Pair.pair(serviceName, methodName));
+		return lookup(serviceName, methodName);
 	}
 	
 	/**
@@ -138,11 +513,14 @@ public class RPCService extends NetLoadableService implements Runnable, RPCServi
 		StringBuilder message = new StringBuilder();
 		message.append("Listening at ");
 		message.append(mServerSocket.getLocalSocketAddress() + "\n");
+		if ( mSelectorServer != null ) message.append(mSelectorServer + "\n");
 		
 		message.append("Registered apps/methods:\n");
 		
-		for (Pair<String, String> app : rpcMethods.keySet()) {
-			message.append(app.left + ": " + app.right + "\n");
+		for (Map.Entry<String, ConcurrentHashMap<String, RPCCallableMethod>> app : rpcMethods.entrySet()) {
+			for (String method : app.getValue().keySet()) {
+				message.append(app.getKey() + ": " + method + "\n");
+			}
 		}
 		
 		return message.toString();
@@ -151,6 +529,9 @@ public class RPCService extends NetLoadableService implements Runnable, RPCServi
 	/**
 	 * This class handles a RPCConnection. It performs an initial handshake,
 	 * and then the procedure call, if the call is valid.
+	 * <p>
+	 * On a multiplexed connection this thread only reads: each invocation is handed to the call pool,
+	 * and the call writes its own response when it finishes.  Writes are serialized on writeLock.
 	 * 
 	 * @author grahamb5
 	 * @author brymar
@@ -158,6 +539,15 @@ public class RPCService extends NetLoadableService implements Runnable, RPCServi
 	private class RPCConnection implements Runnable {
 		private TCPMessageHandler handler;
 		private boolean keepAlive;
+		private boolean multiplexed;
+		// sends the chunks of streamed responses, if the caller agreed to them
+		private MessageSender chunkSender;
+		private RPCCodec codec = RPCCodec.JSON_CODEC;
+		private final RPCCodec.Buffers buffers = new RPCCodec.Buffers();
+		// used only when multiplexed
+		private final Object writeLock = new Object();
+		private final RPCCodec.Buffers writeBuffers = new RPCCodec.Buffers();
+		private Semaphore callPermits;
 		private int commandsExecuted = 0;
 		
 		public RPCConnection(TCPMessageHandler handler) throws SocketException {
@@ -171,29 +561,42 @@ public class RPCService extends NetLoadableService implements Runnable, RPCServi
 			// Perform handshake
 			RPCMessage rawConnectMsg = null;
 			try {
-				// Get message.
-				rawConnectMsg = RPCMessage.unmarshall(handler.readMessageAsString());
-				
-				// Convert to control message.
-				RPCControlMessage connectMsg = (RPCControlMessage) rawConnectMsg;
-				keepAlive = connectMsg.getOption("connection").equalsIgnoreCase("keep-alive");
+				// Get message.  The handshake is always JSON.
+				rawConnectMsg = codec.read(handler, buffers);
 				
 				// Create response message.
-				JSONObject retval = ALLOW_PERSISTENCE && keepAlive ? 
-						new JSONObject().put("connection", "keep-alive") : null;
-				RPCMessage successMsg = new RPCNormalResponseMessage(connectMsg.id(), retval);
+				JSONObject retval = handshake(rawConnectMsg);
+				keepAlive = isKeepAlive(retval);
+				multiplexed = isMultiplexed(retval);
+				if (isStreaming(retval)) chunkSender = new MessageSender() {
+					@Override
+					public void send(RPCMessage msg) throws IOException {
+						if (!multiplexed) {
+							// the connection's thread is the one running the call
+							codec.write(handler, msg, buffers);
+							return;
+						}
+						synchronized (writeLock) {
+							codec.write(handler, msg, writeBuffers);
+						}
+					}
+				};
+				// responses from concurrent calls mustn't wait on Nagle for each other's acks
+				if (multiplexed) handler.setNoDelay(true);
+				RPCMessage successMsg = new RPCNormalResponseMessage(rawConnectMsg.id(), retval);
 				
 				// Change timeout if there is persistence.
-				if (retval != null)
+				if (keepAlive)
 					handler.setTimeout(NetBase.theNetBase().config().getAsInt("rpc.persistence.timeout", 25000));
 				
-				// Send message.
-				handler.sendMessage(successMsg.marshall());
+				// Send message, then switch to whatever encoding was agreed on.
+				codec.write(handler, successMsg, buffers);
+				codec = RPCCodec.negotiated(retval);
 			} catch (IOException | JSONException | ClassCastException e) {
 				try {
 					// Try to send error, assuming enough information exists.
 					RPCMessage errorMsg = new RPCErrorResponseMessage(rawConnectMsg.id(), e.getMessage(), null);
-					handler.sendMessage(errorMsg.marshall());
+					codec.write(handler, errorMsg, buffers);
 				} catch (Exception e2) { }
 				
 				// Handshake failed. Close connection and return.
@@ -201,6 +604,11 @@ public class RPCService extends NetLoadableService implements Runnable, RPCServi
 				return;
 			}
 			
+			if (multiplexed) {
+				runMultiplexed();
+				return;
+			}
+			
 			// Wait for invocation message(s).
 			RPCMessage invocationMsg = null;
 			try {
@@ -208,35 +616,13 @@ public class RPCService extends NetLoadableService implements Runnable, RPCServi
 				// keeping it alive.
 				while (commandsExecuted++ == 0 || keepAlive) {
 					// Get message.
-					invocationMsg = RPCMessage.unmarshall(handler.readMessageAsString());
-					try {
-						if (invocationMsg instanceof RPCInvokeMessage) {
-							// Is a valid invocation message.
-							RPCInvokeMessage invokeMsg = (RPCInvokeMessage) invocationMsg;
-							RPCCallableMethod method = rpcMethods.get(Pair.pair(invokeMsg.app(), invokeMsg.method()));
-							if (method != null) {
-								// The requested method is registered.
-								JSONObject result = method.handleCall(invokeMsg.args());
-								
-								RPCNormalResponseMessage responseMsg = new RPCNormalResponseMessage(invokeMsg.id(), result);
-								handler.sendMessage(responseMsg.marshall());
-							} else {
-								// Send non-connection breaking error.
-								throw new Exception("No (app, method) of the requested combination is registered: " + 
-										Pair.pair(invokeMsg.app(), invokeMsg.method()));
-							}
-						} else {
-							// Send non-connection breaking error.
-							throw new Exception("Expected RPCInvokeMessage but got " + invocationMsg.getClass());
-						}
-					} catch (Exception e) {
-						// Send non-connection-breaking error message.
-						// Breaks connection on failure.
-						RPCCallMessage sendErrorInfo = invocationMsg instanceof RPCCallMessage ?
-								(RPCCallMessage) invocationMsg : null;
-						RPCMessage errorMsg = new RPCErrorResponseMessage(invocationMsg.id(), e.getMessage(), sendErrorInfo);
-						handler.sendMessage(errorMsg.marshall());
-					}
+					invocationMsg = codec.read(handler, buffers);
+					
+					// Breaks connection if no response can be built or sent.
+					RPCMessage responseMsg = dispatch(invocationMsg, chunkSender);
+					if (responseMsg == null)
+						throw new IOException("Unable to respond to invocation " + invocationMsg);
+					codec.write(handler, responseMsg, buffers);
 				}
 			} catch (SocketTimeoutException ste) {
 				Log.w(TAG, "Socket timed out.");
@@ -244,46 +630,76 @@ public class RPCService extends NetLoadableService implements Runnable, RPCServi
 				try {
 					// Try to send connection-breaking error.
 					RPCMessage errorMsg = new RPCErrorResponseMessage(invocationMsg.id(), e.getMessage(), (RPCCallMessage) invocationMsg);
-					handler.sendMessage(errorMsg.marshall());
+					codec.write(handler, errorMsg, buffers);
 				} catch (Exception e2) { }
 				Log.w(TAG, "Unable to process invocation due to " + e.getClass());
 			} finally {
 				handler.close();
 			}
 		}
-	}
-	
-	// Simple pair-of-values class.
-	private static class Pair<E, T> {
-		private E left;
-		private T right;
-		
-		public static <E, T> Pair<E, T> pair(E left, T right) {
-			return new Pair<E, T>(left, right);
-		}
-		
-		private Pair(E left, T right) {
-			this.left = left;
-			this.right = right;
-		}
-		
-		@Override
-		public int hashCode() {
-			return left.hashCode() * 11 + right.hashCode();
-		}
 		
-		@Override
-		public boolean equals(Object other) {
-			if (other instanceof Pair<?, ?>) {
-				return left.equals(((Pair<?, ?>) other).left) &&
-						right.equals(((Pair<?, ?>) other).right);				
+		// Reads invocations until the connection closes or sits idle, passing each to the call pool.
+		private void runMultiplexed() {
+			callPermits = new Semaphore(mMaxInFlight);
+			try {
+				while (true) {
+					final RPCMessage invocationMsg;
+					long consumed = handler.bytesRead();
+					try {
+						invocationMsg = codec.read(handler, buffers);
+					} catch (SocketTimeoutException ste) {
+						// part way through a message the framing is lost, and the connection with it
+						if ( handler.bytesRead() != consumed ) {
+							Log.w(TAG, "Socket timed out part way through a message.");
+							break;
+						}
+						// idle only if nothing is still executing
+						if (callPermits.availablePermits() < mMaxInFlight) continue;
+						Log.w(TAG, "Socket timed out.");
+						break;
+					}
+					
+					// stop reading while the connection has as many calls executing as it's allowed
+					callPermits.acquireUninterruptibly();
+					try {
+						mCallPool.execute(new Runnable() {
+							@Override
+							public void run() {
+								try {
+									respond(invocationMsg, dispatch(invocationMsg, chunkSender));
+								} finally {
+									callPermits.release();
+								}
+							}
+						});
+					} catch (RejectedExecutionException e) {
+						// we're shutting down
+						callPermits.release();
+						break;
+					}
+				}
+			} catch (IOException e) {
+				// caller closed the connection, or it broke
+			} finally {
+				// let calls still executing finish writing before we close
+				callPermits.acquireUninterruptibly(mMaxInFlight);
+				handler.close();
 			}
-			return false;
 		}
 		
-		@Override
-		public String toString() {
-			return "(" + left + ", " + right + ")";
+		// Sends the response to a call on a multiplexed connection, closing the connection if that fails.
+		private void respond(RPCMessage invocationMsg, RPCMessage responseMsg) {
+			try {
+				if (responseMsg == null)
+					throw new IOException("Unable to respond to invocation " + invocationMsg);
+				synchronized (writeLock) {
+					codec.write(handler, responseMsg, writeBuffers);
+				}
+			} catch (IOException e) {
+				Log.w(TAG, "Unable to send response: " + e.getMessage());
+				// the reader notices and winds up the connection
+				handler.close();
+			}
 		}
 	}
 }
@@ -0,0 +1,126 @@
+package edu.uw.cs.cse461.net.tcpmessagehandler;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Input side of the TCPMessageHandler wire format (4-byte little endian length, then that many bytes).
+ * <p>
+ * InputStream.read() may return fewer bytes than asked for, so every read here loops until the
+ * requested amount has arrived, and end of stream part way through a length or a message is an
+ * EOFException rather than a silently short (or endlessly retried) read.
+ * <p>
+ * Reads are batched through an internal buffer: one read from the socket typically brings in many
+ * small messages, which are then handed out without further system calls.  Message bodies at
+ * least as large as the buffer are read directly into the destination, so large transfers aren't copied twice.
+ * A buffer size of 0 disables buffering; every read then goes straight to the stream.
+ * <p>
+ * A FrameDecoder owns the bytes it has read ahead, so once one is wrapped around a stream,
+ * nothing else should read from that stream.  If a read throws part way through a message
+ * (a timeout, say), the framing is lost and the connection should be closed.  consumed() tells
+ * the two cases apart: a read that timed out without consuming anything can simply be retried.
+ *
+ * @author grahamb5
+ */
+public class FrameDecoder {
+	private final InputStream mIn;
+	private final byte[] mBuf;
+	private int mPos = 0;     // next unconsumed byte in mBuf
+	private int mLimit = 0;   // end of valid data in mBuf
+	private final byte[] mIntBuf = new byte[4];
+	private long mConsumed = 0;  // bytes handed out so far
+
+	/**
+	 * Constructor.
+	 * @param in The stream to decode
+	 * @param bufferSize Size of the read-ahead buffer; 0 means unbuffered
+	 */
+	public FrameDecoder(InputStream in, int bufferSize) {
+		mIn = in;
+		mBuf = new byte[Math.max(0, bufferSize)];
+	}
+
+	/**
+	 * Number of bytes that have been read from the stream but not yet consumed.
+	 */
+	public int buffered() {
+		return mLimit - mPos;
+	}
+
+	/**
+	 * Total number of bytes handed out by the reads so far, including those of a read that then threw.
+	 */
+	public long consumed() {
+		return mConsumed;
+	}
+
+	/**
+	 * Reads a 4-byte little endian int.
+	 * @throws EOFException If the stream ends before all four bytes arrive
+	 */
+	public int readInt() throws IOException {
+		readFully(mIntBuf, 0, 4);
+		return (mIntBuf[0] & 0xff) | (mIntBuf[1] & 0xff) << 8 | (mIntBuf[2] & 0xff) << 16 | (mIntBuf[3] & 0xff) << 24;
+	}
+
+	/**
+	 * Reads a message length prefix and checks it against the bounds.
+	 * @param maxLen Largest acceptable message length
+	 * @throws IOException If the length is negative or greater than maxLen
+	 */
+	public int readLength(int maxLen) throws IOException {
+		int length = readInt();
+		if ( length < 0 || length > maxLen )
+			throw new IOException("Message length " + length + " is out of range (max " + maxLen + ")");
+		return length;
+	}
+
+	/**
+	 * Reads exactly len bytes into b, starting at off.
+	 * @throws EOFException If the stream ends first
+	 */
+	public void readFully(byte[] b, int off, int len) throws IOException {
+		int nRead = 0;
+		// whatever is already buffered
+		int n = Math.min(len, mLimit - mPos);
+		if ( n > 0 ) {
+			System.arraycopy(mBuf, mPos, b, off, n);
+			mPos += n;
+			nRead = n;
+			mConsumed += n;
+		}
+		while ( nRead < len ) {
+			int remaining = len - nRead;
+			if ( remaining >= mBuf.length ) {
+				// big enough that buffering would only add a copy
+				n = mIn.read(b, off + nRead, remaining);
+				if ( n < 0 ) throw eof(nRead, len);
+				nRead += n;
+				mConsumed += n;
+			} else {
+				if ( !fill() ) throw eof(nRead, len);
+				n = Math.min(remaining, mLimit - mPos);
+				System.arraycopy(mBuf, mPos, b, off + nRead, n);
+				mPos += n;
+				nRead += n;
+				mConsumed += n;
+			}
+		}
+	}
+
+	// Refills the (empty) buffer with a single read.  Returns false at end of stream.
+	private boolean fill() throws IOException {
+		mPos = 0;
+		mLimit = 0;
+		int n = mIn.read(mBuf, 0, mBuf.length);
+		if ( n < 0 ) return false;
+		mLimit = n;
+		return true;
+	}
+
+	private static EOFException eof(int nRead, int len) {
+		if ( nRead == 0 ) return new EOFException("EOF");
+		return new EOFException("EOF after " + nRead + " of " + len + " bytes");
+	}
+}
@@ -1,5 +1,6 @@
 package edu.uw.cs.cse461.net.tcpmessagehandler;
 
+import java.io.BufferedOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
@@ -10,6 +11,7 @@ import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.SocketChannel;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -28,6 +30,14 @@ import edu.uw.cs.cse461.util.Log;
  * Design note: TCPMessageHandler cannot usefully subclass Socket, but rather must
  * wrap an existing Socket, because servers must use ServerSocket.accept(), which
  * returns a Socket that must then be turned into a TCPMessageHandler.
+ * <p>
+ * Sending never copies the payload.  The length prefix is written from a buffer owned by the handler,
+ * followed by the caller's bytes; if the socket has a (blocking) channel, the two go out in a single
+ * gathering write.  Callers that want to avoid per-message garbage on the receiving side can use
+ * readMessageInto() with a buffer they reuse.
+ * <p>
+ * Input goes through a FrameDecoder, which batches socket reads and copes with short reads and EOF.
+ * Its buffer size is config entry tcpmessagehandler.readbuffersize (0 for unbuffered reads).
  *  
  * @author zahorjan
  *
@@ -41,8 +51,20 @@ public class TCPMessageHandler implements TCPMessageHandlerInterface {
 	private Socket mySocket;
 	private int myMaxReadLen;
 	private static final int MAX_READ_LEN_DEFAULT = 1000;
+	private static final int READ_BUFFER_SIZE_DEFAULT = 16384;
 	InputStream myInStream;
 	OutputStream myOutStream;
+	private FrameDecoder myDecoder;
+	
+	// Payloads at least this long bypass the output buffer and are written straight from the caller's array.
+	private static final int OUT_BUFFER_SIZE = 8192;
+	
+	// Non-null if the socket was created by a SocketChannel; enables gathering writes.
+	private SocketChannel myChannel;
+	// Reused for every length prefix we send.
+	private final byte[] myLengthBuf = new byte[4];
+	private final ByteBuffer myLengthBuffer = ByteBuffer.wrap(myLengthBuf);
+	private final ByteBuffer[] myGatherBuffers = new ByteBuffer[2];
 	//--------------------------------------------------------------------------------------
 	// helper routines
 	//--------------------------------------------------------------------------------------
@@ -55,13 +77,21 @@ public class TCPMessageHandler implements TCPMessageHandlerInterface {
 	 * @return A byte[4] encoding the integer argument.
 	 */
 	protected static byte[] intToByte(int i) {
-		ByteBuffer b = ByteBuffer.allocate(4);
-		b.order(ByteOrder.LITTLE_ENDIAN);
-		b.putInt(i);
-		byte buf[] = b.array();
+		byte buf[] = new byte[4];
+		intToByte(i, buf);
 		return buf;
 	}
 	
+	/**
+	 * Encodes an int into the on the wire format, writing into the first four elements of buf.
+	 */
+	protected static void intToByte(int i, byte buf[]) {
+		buf[0] = (byte)i;
+		buf[1] = (byte)(i >>> 8);
+		buf[2] = (byte)(i >>> 16);
+		buf[3] = (byte)(i >>> 24);
+	}
+	
 	/**
 	 * We need an "on the wire" format for a binary integer.
 	 * This method decodes from that format, which is little endian
@@ -70,24 +100,35 @@ public class TCPMessageHandler implements TCPMessageHandlerInterface {
 	 * @return 
 	 */
 	protected static int byteToInt(byte buf[]) {
-		// You need to implement this.  It's the inverse of intToByte().
-		ByteBuffer b = ByteBuffer.allocate(4);
-		b.put(buf);
-		b.order(ByteOrder.LITTLE_ENDIAN);
-		int i = b.getInt(0);
-		return i;
+		// It's the inverse of intToByte().
+		return (buf[0] & 0xff) | (buf[1] & 0xff) << 8 | (buf[2] & 0xff) << 16 | (buf[3] & 0xff) << 24;
 	}
 
 	/**
 	 * Constructor, associating this TCPMessageHandler with a connected socket.
+	 * The read buffer size comes from the config file.
 	 * @param sock
 	 * @throws IOException
 	 */
 	public TCPMessageHandler(Socket sock) throws IOException {
+		this(sock, NetBase.theNetBase() == null ? READ_BUFFER_SIZE_DEFAULT :
+				NetBase.theNetBase().config().getAsInt("tcpmessagehandler.readbuffersize", READ_BUFFER_SIZE_DEFAULT, 0));
+	}
+	
+	/**
+	 * Constructor, associating this TCPMessageHandler with a connected socket.
+	 * @param sock
+	 * @param readBufferSize Size of the input buffer; 0 reads directly from the socket
+	 * @throws IOException
+	 */
+	public TCPMessageHandler(Socket sock, int readBufferSize) throws IOException {
 		mySocket = sock;
 		myMaxReadLen = MAX_READ_LEN_DEFAULT;
 		myInStream = mySocket.getInputStream();
-		myOutStream = mySocket.getOutputStream();
+		myDecoder = new FrameDecoder(myInStream, readBufferSize);
+		myOutStream = new BufferedOutputStream(mySocket.getOutputStream(), OUT_BUFFER_SIZE);
+		myChannel = mySocket.getChannel();
+		myLengthBuffer.order(ByteOrder.LITTLE_ENDIAN);
 	}
 	
 	/**
@@ -144,6 +185,15 @@ public class TCPMessageHandler implements TCPMessageHandlerInterface {
 	public int getMaxReadLength() {
 		return myMaxReadLen;
 	}
+
+	/**
+	 * Total number of bytes of messages read so far.  If a read times out, comparing this against its value
+	 * before the read tells whether the timeout hit between messages (nothing consumed; the connection is
+	 * still usable) or part way through one (the framing is lost).
+	 */
+	public long bytesRead() {
+		return myDecoder.consumed();
+	}
 	
 	//--------------------------------------------------------------------------------------
 	// send routines
@@ -151,11 +201,54 @@ public class TCPMessageHandler implements TCPMessageHandlerInterface {
 	
 	@Override
 	public void sendMessage(byte[] buf) throws IOException {
-		byte[] length = intToByte(buf.length);
-		ByteBuffer message = ByteBuffer.allocate(length.length + buf.length);
-		message.put(length, 0, length.length);
-		message.put(buf, 0, buf.length);
-		myOutStream.write(message.array());
+		sendMessage(buf, 0, buf.length);
+	}
+	
+	/**
+	 * Sends len bytes of buf, starting at offset off, as a single message.
+	 */
+	public void sendMessage(byte[] buf, int off, int len) throws IOException {
+		intToByte(len, myLengthBuf);
+		// Small messages are coalesced with the length in the output buffer; large ones are
+		// written directly from buf after the length is flushed.
+		myOutStream.write(myLengthBuf, 0, 4);
+		myOutStream.write(buf, off, len);
+		myOutStream.flush();
+	}
+	
+	/**
+	 * Sends the remaining bytes of buf as a single message, without copying them.
+	 * On return, buf's position has been advanced to its limit.
+	 */
+	@Override
+	public void sendMessage(ByteBuffer buf) throws IOException {
+		int len = buf.remaining();
+		if ( myChannel != null && myChannel.isBlocking() ) {
+			// gathering write: length and payload in one system call
+			myLengthBuffer.clear();
+			myLengthBuffer.putInt(0, len);
+			myGatherBuffers[0] = myLengthBuffer;
+			myGatherBuffers[1] = buf;
+			try {
+				while ( myLengthBuffer.hasRemaining() || buf.hasRemaining() ) myChannel.write(myGatherBuffers);
+			} finally {
+				myGatherBuffers[1] = null;
+			}
+		} else if ( buf.hasArray() ) {
+			sendMessage(buf.array(), buf.arrayOffset() + buf.position(), len);
+			buf.position(buf.limit());
+		} else {
+			// a direct buffer, but no channel to hand it to
+			intToByte(len, myLengthBuf);
+			myOutStream.write(myLengthBuf, 0, 4);
+			byte[] chunk = new byte[Math.min(len, OUT_BUFFER_SIZE)];
+			while ( buf.hasRemaining() ) {
+				int n = Math.min(buf.remaining(), chunk.length);
+				buf.get(chunk, 0, n);
+				myOutStream.write(chunk, 0, n);
+			}
+			myOutStream.flush();
+		}
 	}
 	
 	/**
@@ -199,33 +292,71 @@ public class TCPMessageHandler implements TCPMessageHandlerInterface {
 	
 	@Override
 	public byte[] readMessageAsBytes() throws IOException {
-		// read in the length of this message
-		int length = readMessageAsInt();
-		
-		// check if the length is short enough
-		if (length > myMaxReadLen) {
-			throw new IOException("Message length too large");
-		}
-		
-		// length is good, read in the message
+		int length = myDecoder.readLength(myMaxReadLen);
 		byte[] messageBuf = new byte[length];
-		int bytesToRead = length;
-		while (bytesToRead > 0) {
-			bytesToRead -= myInStream.read(messageBuf, length - bytesToRead, bytesToRead);
-		}
+		myDecoder.readFully(messageBuf, 0, length);
 		return messageBuf;
 	}
 	
+	/**
+	 * Reads the next message into dst, starting at its current position, so that a buffer
+	 * can be reused for many messages.  On return, dst's position has advanced by the message length.
+	 * If the message won't fit in dst's remaining space an IOException is thrown; the stream is
+	 * then out of sync and the handler should be closed.
+	 * @return The length of the message read
+	 */
+	@Override
+	public int readMessageInto(ByteBuffer dst) throws IOException {
+		int length = myDecoder.readLength(myMaxReadLen);
+		if ( length > dst.remaining() )
+			throw new IOException("Message length " + length + " exceeds buffer space " + dst.remaining());
+		
+		if ( dst.hasArray() ) {
+			myDecoder.readFully(dst.array(), dst.arrayOffset() + dst.position(), length);
+			dst.position(dst.position() + length);
+		} else {
+			byte[] chunk = new byte[Math.min(length, OUT_BUFFER_SIZE)];
+			int nRead = 0;
+			while ( nRead < length ) {
+				int n = Math.min(chunk.length, length - nRead);
+				myDecoder.readFully(chunk, 0, n);
+				dst.put(chunk, 0, n);
+				nRead += n;
+			}
+		}
+		return length;
+	}
+	
+	/**
+	 * Reads the next message into reuse if it has the capacity, otherwise into a newly allocated heap buffer.
+	 * Callers that hang on to the returned buffer and pass it back in on the next call read every
+	 * message into the same storage, however large.
+	 * @param reuse A heap buffer to read into, or null
+	 * @return The buffer holding the message, positioned at 0 with limit the message length
+	 */
+	@Override
+	public ByteBuffer readMessage(ByteBuffer reuse) throws IOException {
+		int length = myDecoder.readLength(myMaxReadLen);
+		ByteBuffer buf = reuse != null && reuse.hasArray() && reuse.capacity() >= length ? reuse : ByteBuffer.allocate(length);
+		buf.clear();
+		myDecoder.readFully(buf.array(), buf.arrayOffset(), length);
+		buf.limit(length);
+		return buf;
+	}
+	
 	@Override
 	public String readMessageAsString() throws IOException {
 		return new String(readMessageAsBytes());
 	}
 
+	/**
+	 * Inverse of sendMessage(int): reads a 4-byte message and decodes it.
+	 */
 	@Override
 	public int readMessageAsInt() throws IOException {
-		byte[] lengthBuf = new byte[4];
-		myInStream.read(lengthBuf, 0, 4);
-		return byteToInt(lengthBuf);
+		int length = myDecoder.readLength(myMaxReadLen);
+		if ( length != 4 ) throw new IOException("Expected a 4-byte int message but got " + length + " bytes");
+		return myDecoder.readInt();
 	}
 	
 	@Override
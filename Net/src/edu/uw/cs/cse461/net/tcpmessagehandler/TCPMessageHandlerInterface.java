@@ -2,6 +2,7 @@ package edu.uw.cs.cse461.net.tcpmessagehandler;
 
 import java.io.IOException;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -20,6 +21,7 @@ public interface TCPMessageHandlerInterface {
 	public void sendMessage(int value) throws IOException;
 	public void sendMessage(JSONArray jsArray) throws IOException;
 	public void sendMessage(JSONObject jsObject) throws IOException;
+	public void sendMessage(ByteBuffer buf) throws IOException;  // sends buf's remaining bytes, without copying them
 	
 	//--------------------------------------------------------------------------------------
 	// read routines
@@ -34,6 +36,8 @@ public interface TCPMessageHandlerInterface {
 	public int readMessageAsInt() throws IOException;
 	public JSONArray readMessageAsJSONArray() throws IOException, JSONException;
 	public JSONObject readMessageAsJSONObject() throws IOException, JSONException;
+	public int readMessageInto(ByteBuffer dst) throws IOException;  // reads into caller's buffer; returns message length
+	public ByteBuffer readMessage(ByteBuffer reuse) throws IOException;  // reads into reuse if it's big enough, else a new buffer
 	
 	public int setMaxReadLength(int maxLen);  // don't even try to read a message claiming to be longer than the arg value
 	public int getMaxReadLength();            // returns current value of max read length
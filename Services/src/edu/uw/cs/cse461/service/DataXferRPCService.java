@@ -11,7 +11,8 @@ import edu.uw.cs.cse461.util.Base64;
 
 /**
  * A simple service that simply echoes back whatever it is sent.
- * It exposes a single method via RPC: dataxfer.
+ * It exposes two methods via RPC: dataxfer, and dataxferstream, which sends the same data as a streamed
+ * response of chunks, so that neither end need hold it all at once.
  * <p>
  * To make a method available via RPC you must do two key things:
  * <ol>
@@ -44,9 +45,19 @@ public class DataXferRPCService extends DataXferServiceBase {
 	
 
 	/**
-	 * Key used for DataXferRPC's payload, in the args of an RPC call
+	 * Key used for DataXferRPC's payload, in the value returned by the call.  dataxfer returns it as a
+	 * Base64 string; each chunk of dataxferstream carries a byte[], which RPC sends as a raw attachment
+	 * if the caller supports them.
 	 */
 	public static final String DATA_KEY = "data";
+	
+	/**
+	 * Key used in the header of a dataxferstream call for the size of each chunk.  Optional; the
+	 * default is config file entry dataxferrpc.chunklength.
+	 */
+	public static final String HEADER_CHUNK_LEN_KEY = "chunkLength";
+	
+	private final int mChunkLength;
 
 	// A variable capable of describing a method that can be invoked by RPC.
 	private RPCCallableMethod xfer;
@@ -63,18 +74,51 @@ public class DataXferRPCService extends DataXferServiceBase {
 		xfer = new RPCCallableMethod(this, "_xfer");
 		// Register the method with the RPC service as externally invocable method "echo"
 		((RPCService)NetBase.theNetBase().getService("rpc")).registerHandler(loadablename(), "dataxfer", xfer);
+		
+		mChunkLength = NetBase.theNetBase().config().getAsInt("dataxferrpc.chunklength", 65536, 1);
+		((RPCService)NetBase.theNetBase().getService("rpc")).registerHandler(loadablename(), "dataxferstream",
+				new RPCCallableMethod(new RPCCallableMethod.StreamHandler() {
+					@Override
+					public JSONObject handleCall(JSONObject args, RPCCallableMethod.Stream stream) throws Exception {
+						return _xferStream(args, stream);
+					}
+				}));
 	}
 
 	public JSONObject _xfer(JSONObject args) throws Exception {
-		// check header
-		JSONObject header = args.getJSONObject(HEADER_KEY);
-		if ( header == null  || !header.has(HEADER_TAG_KEY) || !header.getString(HEADER_TAG_KEY).equalsIgnoreCase(HEADER_STR) || !header.has(HEADER_XFER_LEN_KEY))
-			throw new Exception("Missing or incorrect header value: '" + header + "'");
-		
+		JSONObject header = checkHeader(args);
 		
 		byte[] data = new byte[header.getInt(HEADER_XFER_LEN_KEY)];
 		header.put(HEADER_TAG_KEY, RESPONSE_OKAY_STR);
-		args.put("data", Base64.encodeBytes(data));
+		args.put(DATA_KEY, Base64.encodeBytes(data));
 		return args;
 	}
+	
+	/**
+	 * Sends xferLength bytes as chunks of {"data":bytes}, then returns the header.
+	 */
+	public JSONObject _xferStream(JSONObject args, RPCCallableMethod.Stream stream) throws Exception {
+		JSONObject header = checkHeader(args);
+		long xferLength = header.getLong(HEADER_XFER_LEN_KEY);
+		int chunkLength = header.optInt(HEADER_CHUNK_LEN_KEY, mChunkLength);
+		if ( chunkLength <= 0 ) throw new Exception("Bad chunk length " + chunkLength);
+		
+		// The data is all zeros, and written chunks are never changed, so one array serves for every full chunk.
+		byte[] chunk = new byte[(int)Math.min(chunkLength, xferLength)];
+		long sent = 0;
+		while ( sent < xferLength ) {
+			int len = (int)Math.min(chunk.length, xferLength - sent);
+			stream.write(new JSONObject().put(DATA_KEY, len == chunk.length ? chunk : new byte[len]));
+			sent += len;
+		}
+		header.put(HEADER_TAG_KEY, RESPONSE_OKAY_STR);
+		return new JSONObject().put(HEADER_KEY, header);
+	}
+	
+	private JSONObject checkHeader(JSONObject args) throws Exception {
+		JSONObject header = args.getJSONObject(HEADER_KEY);
+		if ( header == null  || !header.has(HEADER_TAG_KEY) || !header.getString(HEADER_TAG_KEY).equalsIgnoreCase(HEADER_STR) || !header.has(HEADER_XFER_LEN_KEY))
+			throw new Exception("Missing or incorrect header value: '" + header + "'");
+		return header;
+	}
 }
@@ -1,26 +1,66 @@
 package edu.uw.cs.cse461.service;
 
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.net.InetSocketAddress;
-import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketAddress;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import edu.uw.cs.cse461.net.base.NetBase;
 import edu.uw.cs.cse461.net.base.NetLoadableInterface.NetLoadableServiceInterface;
 import edu.uw.cs.cse461.util.ConfigManager;
+import edu.uw.cs.cse461.util.ConnectionExecutor;
+import edu.uw.cs.cse461.util.DatagramRing;
 import edu.uw.cs.cse461.util.IPFinder;
 import edu.uw.cs.cse461.util.Log;
+import edu.uw.cs.cse461.util.ReusePort;
+import edu.uw.cs.cse461.util.TokenBucket;
 
 /**
- * Transfers reasonably large amounts of data to client over raw TCP and UDP sockets.  In both cases,
- * the server simply sends as fast as it can.  The server does not implement any correctness mechanisms,
- * so, when using UDP, clients may not receive all the data sent.
+ * Transfers reasonably large amounts of data to client over raw TCP and UDP sockets.  Over TCP,
+ * the server simply sends as fast as it can.  Over UDP it sends at the rate set by dataxferraw.udp.rate,
+ * since datagrams sent faster than the client can take them are simply dropped.  The server does not
+ * implement any correctness mechanisms, so, when using UDP, clients may not receive all the data sent;
+ * a client can ask for sequence numbered datagrams (UDP_OPTION_SEQUENCE) to find out what it missed.
+ * Or it can ask for a reliable transfer (UDP_OPTION_RELIABLE), of any length, which retransmits
+ * whatever is lost; see ReliableUdp.
  * <p>
- * Four consecutive ports are used to send fixed amounts of data of various sizes.
+ * Four consecutive ports are used to send fixed amounts of data of various sizes.  Each UDP port can be
+ * served by dataxferraw.udp.sockets sockets, each with its own thread, so that many clients' requests
+ * are answered on several cores at once (see ReusePort).
+ * <p>
+ * Each TCP port serves many clients at once, on the executor selected by dataxferraw.executor (see
+ * ConnectionExecutor), up to dataxferraw.maxconcurrent transfers per port.
+ * <p>
+ * A fifth TCP port (dataxferraw.bulk.port, by default the one after those four) sends whatever amount
+ * the client asks for: the client follows the header with the length it wants and the offset it wants
+ * it from, each an 8 byte big-endian long (the offset is 0 for an ordinary transfer).  The
+ * data comes from a file, dataxferraw.bulk.file, or if that isn't set from a temporary file of
+ * dataxferraw.bulk.filelength zero bytes; a transfer longer than the file sends it repeatedly, and one
+ * with an offset sends what a transfer from offset 0 would have sent from that point on (so clients can
+ * fetch one transfer as several ranges, over several connections at once).  It's sent
+ * with FileChannel.transferTo(), so it goes from the page cache to the socket without being copied
+ * through the heap, and transfers of many gigabytes cost no more memory than small ones.
  * <p>
  * @author zahorjan
  *
@@ -31,7 +71,36 @@ public class DataXferRawService extends DataXferServiceBase implements NetLoadab
 	public static final int NPORTS = 4;
 	public static final int[] XFERSIZE = {1000, 10000, 100000, 1000000};
 
+	// data bytes carried by each UDP response datagram (the last may carry fewer)
+	public static final int UDP_PAYLOAD_LEN = 1000;
+	// A UDP request may follow the header with one byte of options.  This one asks for each response
+	// datagram to carry its sequence number (0, 1, ...), as a 4 byte big-endian int after the "okay".
+	public static final byte UDP_OPTION_SEQUENCE = 1;
+	public static final int UDP_SEQ_LEN = 4;
+	// This one asks for a reliable transfer, of any length (see ReliableUdp)
+	public static final byte UDP_OPTION_RELIABLE = 2;
+
+	// Most UDP requests a DgramThread takes per wakeup
+	private static final int RING_SLOTS = 16;
+	// Pool size used if dataxferraw.executor=fixed
+	private static final int NUM_THREADS = 40;
+	// The data sent by the fixed size TCP ports, shared (read only) by all their transfers
+	private static final ByteBuffer ZEROS = ByteBuffer.allocateDirect(XFERSIZE[NPORTS - 1]).asReadOnlyBuffer();
+
 	private int mBasePort;
+	private ExecutorService mConnectionExecutor;
+	private int mMaxConcurrent;
+	// UDP pacing (bytes/sec. and bytes); a rate of 0 sends as fast as possible
+	private int mUdpRate;
+	private int mUdpBurst;
+	// most datagrams a reliable UDP transfer has in flight
+	private int mUdpWindow;
+	// sockets (and receiving threads) per UDP port
+	private int mUdpSockets;
+	private final List<TcpThread> mTcpThreads = new ArrayList<TcpThread>();
+	// where bulk transfers come from
+	private FileChannel mBulkFile;
+	private long mBulkFileLength;
 
 	public DataXferRawService() throws Exception {
 		super("dataxferraw");
@@ -41,10 +110,51 @@ public class DataXferRawService extends DataXferServiceBase implements NetLoadab
 		if ( mBasePort == 0 ) throw new RuntimeException("dataxferraw service can't run -- no dataxferraw.server.baseport entry in config file");
 		//TODO: implement this method (hint: look at echo raw service)
 
+		// TCP transfers are run on the executor chosen by the dataxferraw.executor config entry,
+		// at most dataxferraw.maxconcurrent at a time per port.
+		mConnectionExecutor = ConnectionExecutor.create(config, loadablename(), ConnectionExecutor.CACHED, NUM_THREADS);
+		mMaxConcurrent = config.getAsInt("dataxferraw.maxconcurrent", 32, 1);
+
+		// UDP responses are paced: dataxferraw.udp.rate bytes/sec., in bursts of at most dataxferraw.udp.burst bytes
+		mUdpRate = config.getAsInt("dataxferraw.udp.rate", 0, 0);
+		mUdpBurst = config.getAsInt("dataxferraw.udp.burst", 64 * 1024, RESPONSE_OKAY_LEN + UDP_SEQ_LEN + UDP_PAYLOAD_LEN);
+		mUdpWindow = config.getAsInt("dataxferraw.udp.window", 1024, 1);
+
+		// each UDP port has dataxferraw.udp.sockets sockets, each with its own thread (see ReusePort)
+		mUdpSockets = ReusePort.socketCount(config, "dataxferraw.udp.sockets", 1);
 		for (int i = 0 ; i < 4 ; i++) {
-			new DgramThread(mBasePort + i).start();
-			new TcpThread(mBasePort + i).start();
+			startDgramThreads(mBasePort + i, mUdpSockets);
+			ByteBuffer data = ZEROS.duplicate();
+			data.limit(XFERSIZE[i]);
+			mTcpThreads.add(new TcpThread(mBasePort + i, data.slice()));
+		}
+
+		int bulkPort = config.getAsInt("dataxferraw.bulk.port", mBasePort + NPORTS);
+		if ( bulkPort > 0 ) {
+			mBulkFile = openBulkFile(config);
+			mBulkFileLength = mBulkFile.size();
+			if ( mBulkFileLength == 0 ) throw new RuntimeException("dataxferraw bulk file is empty");
+			mTcpThreads.add(new TcpThread(bulkPort, null));
 		}
+		for (TcpThread t : mTcpThreads) t.start();
+	}
+
+	/**
+	 * Opens the file bulk transfers are sent from: dataxferraw.bulk.file if it's set, otherwise
+	 * a temporary file of dataxferraw.bulk.filelength zeros.  (The temporary file is sparse, so
+	 * it takes no disk space.)
+	 */
+	private static FileChannel openBulkFile(ConfigManager config) throws IOException {
+		String fileName = config.getProperty("dataxferraw.bulk.file");
+		if ( fileName != null && !fileName.trim().isEmpty() ) {
+			Log.i(TAG, "Bulk transfers are sent from " + fileName);
+			return new RandomAccessFile(fileName.trim(), "r").getChannel();
+		}
+		File tmp = File.createTempFile("dataxferraw", ".bulk");
+		tmp.deleteOnExit();
+		RandomAccessFile file = new RandomAccessFile(tmp, "rw");
+		file.setLength(config.getAsLong("dataxferraw.bulk.filelength", 64L * 1024 * 1024, 1));
+		return file.getChannel();
 	}
 
 
@@ -54,138 +164,320 @@ public class DataXferRawService extends DataXferServiceBase implements NetLoadab
 	 */
 	@Override
 	public String dumpState() {
-		//TODO: not necessary, but filling this in is useful
-		return "";
+		StringBuilder sb = new StringBuilder(super.dumpState());
+		sb.append("\nUDP ports ").append(mBasePort).append("-").append(mBasePort + NPORTS - 1).append(": ")
+		  .append(mUdpSockets).append(mUdpSockets == 1 ? " socket" : " sockets").append(" each");
+		for (TcpThread t : mTcpThreads) {
+			sb.append("\nTCP port ").append(t.port).append(": ").append(t.activeTransfers())
+			  .append(" of at most ").append(mMaxConcurrent).append(" transfers running");
+		}
+		sb.append("\n");
+		return sb.toString();
+	}
+
+	@Override
+	public void shutdown() {
+		super.shutdown();
+		// transfers already running finish (or time out)
+		mConnectionExecutor.shutdown();
+		if ( mBulkFile != null ) try { mBulkFile.close(); } catch (IOException e) {}
+	}
 
+	/**
+	 * Opens nSockets sockets on one UDP port and starts a thread receiving on each.  The threads share
+	 * the port's limit on reliable transfers.  A client's datagrams always reach the same socket, so
+	 * its repeated requests are always seen by the same thread.
+	 */
+	private void startDgramThreads(int port, int nSockets) throws Exception {
+		String serverIP = IPFinder.localIP();
+		if ( serverIP == null ) throw new Exception("IPFinder isn't providing the local IP address.  Can't run.");
+		Semaphore permits = new Semaphore(mMaxConcurrent);
+		for ( DatagramChannel channel : ReusePort.openDatagramChannels(new InetSocketAddress(serverIP, port), nSockets) )
+			new DgramThread(port, channel, permits).start();
 	}
 
 	private class DgramThread extends Thread {
 		int port;
-		private DatagramSocket mDatagramSocket;
+		// the port's socket, with a ring of buffers requests are received into
+		private final DatagramRing mRing;
+		private final TokenBucket mPacer;
+		// reliable transfers running (on the connection executor); at most mMaxConcurrent per port
+		private final Semaphore mPermits;
+		private final Set<String> mTransfers = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 
-		DgramThread(int portnum) throws Exception {
+		DgramThread(int portnum, DatagramChannel channel, Semaphore permits) throws Exception {
 			this.port = portnum;
+			// room for the options byte, and a reliable transfer's id and length
+			this.mRing = new DatagramRing(channel, RING_SLOTS, ReliableUdp.REQUEST_LEN);
+			this.mPacer = new TokenBucket(mUdpRate, mUdpBurst);
+			this.mPermits = permits;
 
-			String serverIP = IPFinder.localIP();
-			if ( serverIP == null ) throw new Exception("IPFinder isn't providing the local IP address.  Can't run.");
-			this.mDatagramSocket = new DatagramSocket(new InetSocketAddress(serverIP, port));
-			this.mDatagramSocket.setSoTimeout(NetBase.theNetBase().config().getAsInt("net.timeout.granularity", 500));
-
-			Log.i(TAG,  "Datagram socket = " + mDatagramSocket.getLocalSocketAddress());
+			Log.i(TAG,  "Datagram socket = " + channel.socket().getLocalSocketAddress() + ", paced at " + mPacer);
 		}
 
 		public void run() {
-			byte receiveBuf[] = new byte[HEADER_LEN];
-
-			DatagramPacket packet = new DatagramPacket(receiveBuf, receiveBuf.length);
-			
-			//	Thread termination in this code is primitive.  When shutdown() is called (by the
-			//	application's main thread, so asynchronously to the threads just mentioned) it
-			//	closes the sockets.  This causes an exception on any thread trying to read from
-			//	it, which is what provokes thread termination.
+			int granularity = NetBase.theNetBase().config().getAsInt("net.timeout.granularity", 500);
+			int socketTimeout = NetBase.theNetBase().config().getAsInt("net.timeout.socket", 5000);
+
+			// Every response datagram is built in sendBuf.  The data is all zeros, so only the "okay"
+			// header and the sequence number are ever written into it.
+			ByteBuffer sendBuf = ByteBuffer.allocateDirect(RESPONSE_OKAY_LEN + UDP_SEQ_LEN + UDP_PAYLOAD_LEN);
+			sendBuf.put(RESPONSE_OKAY_BYTES);
+			byte[] header = new byte[HEADER_LEN];
+			int xferLength = XFERSIZE[port - mBasePort];
+
+			//	The thread waits for requests for at most granularity msec. at a time, so that it
+			//	notices when shutdown() has been called.  Each time it wakes up it takes every request
+			//	that has arrived (up to RING_SLOTS of them), and answers them in turn.
 			try {
 				while ( !mAmShutdown ) {
-					try {
-						mDatagramSocket.receive(packet);
-						if ( packet.getLength() < HEADER_LEN )
-							throw new Exception("Bad header: length = " + packet.getLength());
-						String headerStr = new String( receiveBuf, 0, HEADER_LEN );
-						if ( ! headerStr.equalsIgnoreCase(HEADER_STR) )
-							throw new Exception("Bad header: got '" + headerStr + "', wanted '" + HEADER_STR + "'");
-
-						// The full amount of data to be sent.
-						byte[] data = new byte[XFERSIZE[port - mBasePort]];
-						
-						// Split it up into 1000 byte increments.
-						int bytesSent = 0;
-						while (bytesSent < data.length) {
-							byte[] part = new byte[RESPONSE_OKAY_LEN + Math.min(data.length - bytesSent, 1000)];
-							System.arraycopy(RESPONSE_OKAY_BYTES, 0, part, 0, RESPONSE_OKAY_LEN);
-							System.arraycopy(data, bytesSent, part, RESPONSE_OKAY_LEN, part.length - RESPONSE_OKAY_LEN);
-							DatagramPacket sendpacket = new DatagramPacket(part, part.length, packet.getAddress(), packet.getPort());
-							mDatagramSocket.send( sendpacket);
-							bytesSent += part.length - RESPONSE_OKAY_LEN;
+					int n = mRing.receive(granularity);
+					for ( int i=0; i<n; i++ ) {
+						try {
+							ByteBuffer request = mRing.get(i);
+							if ( request.remaining() < HEADER_LEN )
+								throw new Exception("Bad header: length = " + request.remaining());
+							request.get(header);
+							String headerStr = new String(header);
+							if ( ! headerStr.equalsIgnoreCase(HEADER_STR) )
+								throw new Exception("Bad header: got '" + headerStr + "', wanted '" + HEADER_STR + "'");
+							byte options = request.hasRemaining() ? request.get() : 0;
+							if ( (options & UDP_OPTION_RELIABLE) != 0 ) {
+								startReliableTransfer(request, mRing.source(i));
+								continue;
+							}
+							boolean sequenced = (options & UDP_OPTION_SEQUENCE) != 0;
+							int dataOffset = RESPONSE_OKAY_LEN + (sequenced ? UDP_SEQ_LEN : 0);
+
+							// Split the data up into UDP_PAYLOAD_LEN byte datagrams, sent no faster than the pacer allows
+							SocketAddress client = mRing.source(i);
+							mPacer.reset();
+							int bytesSent = 0;
+							for ( int seq=0; bytesSent < xferLength; seq++ ) {
+								int partLen = Math.min(xferLength - bytesSent, UDP_PAYLOAD_LEN);
+								if ( sequenced ) sendBuf.putInt(RESPONSE_OKAY_LEN, seq);
+								sendBuf.limit(dataOffset + partLen).position(0);
+								mPacer.acquire(dataOffset + partLen);
+								mRing.send(sendBuf, client, socketTimeout);
+								bytesSent += partLen;
+							}
+						} catch (Exception e) {
+							Log.w(TAG,  "Dgram thread caught " + e.getClass().getName() + " exception: " + e.getMessage());
 						}
-					} catch (SocketTimeoutException e) {
-						// socket timeout is normal
-					} catch (Exception e) {
-						Log.w(TAG,  "Dgram reading thread caught " + e.getClass().getName() + " exception: " + e.getMessage());
 					}
 				}
+			} catch (Exception e) {
+				Log.w(TAG, "Dgram thread exiting due to exception: " + e.getMessage());
 			} finally {
-				if ( mDatagramSocket != null ) { mDatagramSocket.close(); mDatagramSocket = null; }
+				mRing.close();
 			}
 
 		}
+
+		/**
+		 * Starts the reliable transfer requested by request (positioned after the options byte), on the
+		 * connection executor, unless it's already running (the client repeats its request until data
+		 * arrives) or too many are.
+		 */
+		private void startReliableTransfer(ByteBuffer request, SocketAddress client) throws Exception {
+			if ( request.limit() < ReliableUdp.REQUEST_LEN ) throw new Exception("Bad reliable request: length = " + request.limit());
+			int id = request.getInt();
+			long xferLength = request.getLong();
+			if ( xferLength < 0 || xferLength > ReliableUdp.MAX_XFER_LENGTH ) throw new Exception("Bad transfer length " + xferLength);
+
+			final String transfer = client + "/" + id;
+			if ( !mTransfers.add(transfer) ) return;
+			if ( !mPermits.tryAcquire() ) {
+				// the client's repeated request may find room
+				mTransfers.remove(transfer);
+				return;
+			}
+			DatagramChannel channel = null;
+			try {
+				channel = DatagramChannel.open();
+				channel.socket().bind(new InetSocketAddress(mRing.channel().socket().getLocalAddress(), 0));
+				channel.connect(client);
+				channel.configureBlocking(false);
+				final ReliableUdp.Sender sender = new ReliableUdp.Sender(channel, id, xferLength, mUdpWindow, new TokenBucket(mUdpRate, mUdpBurst),
+						NetBase.theNetBase().config().getAsInt("net.timeout.socket", 5000));
+				mConnectionExecutor.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							sender.run();
+						} finally {
+							mTransfers.remove(transfer);
+							mPermits.release();
+						}
+					}
+				});
+			} catch (Exception e) {
+				if ( channel != null ) try { channel.close(); } catch (Exception e2) {}
+				mTransfers.remove(transfer);
+				mPermits.release();
+				throw e;
+			}
+		}
 	}
 
+	/**
+	 * Accepts connections to one TCP port, handing each to the connection executor.  At most
+	 * mMaxConcurrent transfers run per port; while that many are running the thread stops accepting,
+	 * so further clients wait in the listen backlog rather than piling up threads.
+	 */
 	private class TcpThread extends Thread {
 		int port;
-		private ServerSocket mServerSocket;
+		// null for the bulk port
+		private final ByteBuffer mData;
+		private final Semaphore mPermits;
+		private final AtomicInteger mActive = new AtomicInteger();
+		private ServerSocketChannel mServerChannel;
 
-		TcpThread(int portnum) throws Exception{
+		/**
+		 * @param data What to send each client, or null for the bulk port, where the client says how much it wants
+		 */
+		TcpThread(int portnum, ByteBuffer data) throws Exception {
 			this.port = portnum;
+			this.mData = data;
+			this.mPermits = new Semaphore(mMaxConcurrent);
 
 			String serverIP = IPFinder.localIP();
 			if ( serverIP == null ) throw new Exception("IPFinder isn't providing the local IP address.  Can't run.");
-			this.mServerSocket = new ServerSocket();
-			this.mServerSocket.bind(new InetSocketAddress(serverIP, port));
-			this.mServerSocket.setSoTimeout(NetBase.theNetBase().config().getAsInt("net.timeout.granularity", 500));
+			this.mServerChannel = ServerSocketChannel.open();
+			this.mServerChannel.socket().bind(new InetSocketAddress(serverIP, port));
+			this.mServerChannel.socket().setSoTimeout(NetBase.theNetBase().config().getAsInt("net.timeout.granularity", 500));
 
-			Log.i(TAG,  "Server socket = " + mServerSocket.getLocalSocketAddress());
+			Log.i(TAG,  (data == null ? "Bulk server socket = " : "Server socket = ") + mServerChannel.socket().getLocalSocketAddress());
+		}
+
+		int activeTransfers() {
+			return mActive.get();
 		}
 
 		public void run() {
-			byte[] header = new byte[HEADER_LEN];
-			byte[] data = new byte[XFERSIZE[port - mBasePort]];
-			int socketTimeout = NetBase.theNetBase().config().getAsInt("net.timeout.socket", 5000);
+			int granularity = NetBase.theNetBase().config().getAsInt("net.timeout.granularity", 500);
 			try {
 				while ( !isShutdown() ) {
-					Socket sock = null;
+					if ( !mPermits.tryAcquire(granularity, TimeUnit.MILLISECONDS) ) continue;
+					final Socket sock;
 					try {
 						// accept() blocks until a client connects.  When it does, a new socket is created that communicates only
 						// with that client.  That socket is returned.
-						sock = mServerSocket.accept();
-						// We're going to read from sock, to get the message to echo, but we can't risk a client mistake
-						// blocking us forever.  So, arrange for the socket to give up if no data arrives for a while.
-						sock.setSoTimeout(socketTimeout);
-						InputStream is = sock.getInputStream();
-						OutputStream os = sock.getOutputStream();
-						// Read the header.  Either it gets here in one chunk or we ignore it.  (That's not exactly the
-						// spec, admittedly.)
-						int len = is.read(header);
-						if ( len != HEADER_LEN )
-							throw new Exception("Bad header length: got " + len + " but wanted " + HEADER_LEN);
-						String headerStr = new String(header); 
-						if ( !headerStr.equalsIgnoreCase(HEADER_STR) )
-							throw new Exception("Bad header: got '" + headerStr + "' but wanted '" + HEADER_STR + "'");
-						
-						// Write response header.
-						os.write(RESPONSE_OKAY_BYTES);
-
-						// Write the data in one fell swoop. ("Split it up" to be extendible to big files).
-						int bytesSent = 0;
-						while (bytesSent < data.length) {
-							int partLen = Math.min(data.length - bytesSent, 1000000);
-							os.write(data, bytesSent, partLen);
-							bytesSent += partLen;
-						}
+						sock = mServerChannel.socket().accept();
 					} catch (SocketTimeoutException e) {
-						// normal behavior, but we're done with the client we were talking with
-					} catch (Exception e) {
-						Log.i(TAG, "TCP thread caught " + e.getClass().getName() + " exception: " + e.getMessage());
-					} finally {
-						if ( sock != null ) try { sock.close(); sock = null;} catch (Exception e) {}
+						// normal; loop back and see if we're terminating
+						mPermits.release();
+						continue;
+					}
+					try {
+						mConnectionExecutor.execute(new Runnable() {
+							@Override
+							public void run() {
+								mActive.incrementAndGet();
+								try {
+									handleConnection(sock, mData);
+								} finally {
+									mActive.decrementAndGet();
+									mPermits.release();
+								}
+							}
+						});
+					} catch (RejectedExecutionException e) {
+						// we're shutting down
+						try { sock.close(); } catch (Exception e2) {}
+						mPermits.release();
 					}
 				}
 			} catch (Exception e) {
 				Log.w(TAG, "TCP server thread exiting due to exception: " + e.getMessage());
 			} finally {
-				if ( mServerSocket != null ) try { mServerSocket.close(); mServerSocket = null; } catch (Exception e) {}
+				if ( mServerChannel != null ) try { mServerChannel.close(); mServerChannel = null; } catch (Exception e) {}
 			}
 		}
+	}
 
+	/**
+	 * Serves one client: reads its header (and, on the bulk port, the length it wants), then sends it
+	 * the data.  Runs on a thread of the connection executor.
+	 * <p>
+	 * The header is read through the socket's stream, which honors the socket timeout.  The data is written
+	 * with the channel in non-blocking mode, waiting on a selector whenever the socket's send buffer is full,
+	 * so a client that stops reading is dropped after net.timeout.socket msec. instead of holding a thread
+	 * (and one of its port's transfer slots) forever.
+	 */
+	private void handleConnection(Socket sock, ByteBuffer data) {
+		int socketTimeout = NetBase.theNetBase().config().getAsInt("net.timeout.socket", 5000);
+		Selector selector = null;
+		try {
+			// We're going to read from sock, to get the header, but we can't risk a client mistake
+			// blocking us forever.  So, arrange for the socket to give up if no data arrives for a while.
+			sock.setSoTimeout(socketTimeout);
+			DataInputStream is = new DataInputStream(sock.getInputStream());
+			byte[] header = new byte[HEADER_LEN];
+			is.readFully(header);
+			String headerStr = new String(header);
+			if ( !headerStr.equalsIgnoreCase(HEADER_STR) )
+				throw new Exception("Bad header: got '" + headerStr + "' but wanted '" + HEADER_STR + "'");
+			long xferLength = data != null ? data.remaining() : is.readLong();
+			if ( xferLength < 0 ) throw new Exception("Bad transfer length " + xferLength);
+			long offset = data != null ? 0 : is.readLong();
+			if ( offset < 0 ) throw new Exception("Bad transfer offset " + offset);
+
+			SocketChannel channel = sock.getChannel();
+			channel.configureBlocking(false);
+			selector = Selector.open();
+			channel.register(selector, SelectionKey.OP_WRITE);
+
+			// Write response header, then the data
+			write(channel, ByteBuffer.wrap(RESPONSE_OKAY_BYTES), selector, socketTimeout);
+			if ( data != null ) write(channel, data.duplicate(), selector, socketTimeout);
+			else sendBulk(channel, offset, xferLength, selector, socketTimeout);
+		} catch (SocketTimeoutException e) {
+			// normal behavior, but we're done with the client we were talking with
+		} catch (Exception e) {
+			Log.i(TAG, "TCP connection caught " + e.getClass().getName() + " exception: " + e.getMessage());
+		} finally {
+			if ( selector != null ) try { selector.close(); } catch (Exception e) {}
+			try { sock.close(); } catch (Exception e) {}
+		}
+	}
+
+	// Writes all of buf to the (non-blocking) channel.
+	private static void write(SocketChannel channel, ByteBuffer buf, Selector selector, int timeout) throws IOException {
+		while ( buf.hasRemaining() ) {
+			if ( channel.write(buf) == 0 ) awaitWritable(selector, timeout);
+		}
 	}
-}
 
+	// Waits for the channel registered with selector to have room in its send buffer.
+	private static void awaitWritable(Selector selector, int timeout) throws IOException {
+		if ( selector.select(timeout) == 0 ) throw new SocketTimeoutException("Client read nothing for " + timeout + " msec.");
+		selector.selectedKeys().clear();
+	}
 
+	/**
+	 * Sends xferLength bytes of mBulkFile, starting at offset (taken modulo the file's length) and
+	 * starting over at its beginning as often as necessary.  transferTo() reads at the position it's
+	 * given, not the channel's, so any number of threads can be sending from the file at once.
+	 */
+	private void sendBulk(SocketChannel channel, long offset, long xferLength, Selector selector, int timeout) throws IOException {
+		long sent = 0;
+		boolean waited = false;
+		long start = offset % mBulkFileLength;
+		while ( sent < xferLength ) {
+			long position = (start + sent) % mBulkFileLength;
+			long n = mBulkFile.transferTo(position, Math.min(xferLength - sent, mBulkFileLength - position), channel);
+			if ( n > 0 ) {
+				sent += n;
+				waited = false;
+			} else if ( !waited ) {
+				// the socket's send buffer is full
+				awaitWritable(selector, timeout);
+				waited = true;
+			} else {
+				// the socket had room, but the file had nothing to send
+				throw new IOException("Bulk file is shorter than its original " + mBulkFileLength + " bytes");
+			}
+		}
+	}
+}
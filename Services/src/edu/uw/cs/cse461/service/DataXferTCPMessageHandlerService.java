@@ -5,7 +5,9 @@ import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -13,13 +15,28 @@ import org.json.JSONObject;
 import edu.uw.cs.cse461.net.base.NetBase;
 import edu.uw.cs.cse461.net.base.NetLoadableInterface.NetLoadableServiceInterface;
 import edu.uw.cs.cse461.net.tcpmessagehandler.TCPMessageHandler;
+import edu.uw.cs.cse461.util.ConnectionExecutor;
 import edu.uw.cs.cse461.util.IPFinder;
 import edu.uw.cs.cse461.util.Log;
 
+/**
+ * Transfers data over TCPMessageHandler connections.  Each request is the header message, then a JSON
+ * message giving the transferSize; the response is the "okay" message and then the data, in messages
+ * of up to 1000 bytes.  The request may also give an offset and a length, to ask for just that range
+ * of the transfer, so clients can fetch one transfer as several ranges over several connections at once.
+ */
 public class DataXferTCPMessageHandlerService extends DataXferServiceBase implements NetLoadableServiceInterface{
 	private static final String TAG="DataXferTCPMessageHandlerService";
+
+	public static final String TRANSFER_SIZE_KEY = "transferSize";
+	public static final String RANGE_OFFSET_KEY = "offset";
+	public static final String RANGE_LENGTH_KEY = "length";
 	
 	private ServerSocket mServerSocket;
+	private ExecutorService mConnectionExecutor;
+	
+	// Pool size used if dataxfertcpmessagehandler.executor=fixed
+	private static final int NUM_THREADS = 40;
 	
 	public DataXferTCPMessageHandlerService() throws Exception {
 		super("dataxfertcpmessagehandler");
@@ -30,50 +47,26 @@ public class DataXferTCPMessageHandlerService extends DataXferServiceBase implem
 		mServerSocket.setSoTimeout( NetBase.theNetBase().config().getAsInt("net.timeout.granularity", 500));
 		Log.i(TAG,  "Server socket = " + mServerSocket.getLocalSocketAddress());
 		
+		// Connections are handled on the executor chosen by the dataxfertcpmessagehandler.executor config entry.
+		mConnectionExecutor = ConnectionExecutor.create(NetBase.theNetBase().config(), loadablename(), ConnectionExecutor.CACHED, NUM_THREADS);
+		
 		Thread tcpThread = new Thread() {
 			@Override
 			public void run() {
 				try {
 					while ( !mAmShutdown ) {
-						Socket sock = null;
 						try {
-							sock = mServerSocket.accept();  // if this fails, we want out of the while loop...
-							// should really spawn a thread here, but the code is already complicated enough that we don't bother
-							TCPMessageHandler tcpMessageHandlerSocket = null;
+							final Socket sock = mServerSocket.accept();  // if this fails, we want out of the while loop...
 							try {
-								// this loop exits when readMessageAsString() throws an IOException indicating EOF, or 
-								// because it has timed out on the read
-								while ( true ) {
-									tcpMessageHandlerSocket = new TCPMessageHandler(sock);
-									tcpMessageHandlerSocket.setTimeout(NetBase.theNetBase().config().getAsInt("net.timeout.socket", 5000));
-									tcpMessageHandlerSocket.setNoDelay(true);
-									
-									String header = tcpMessageHandlerSocket.readMessageAsString();
-									if ( ! header.equalsIgnoreCase(DataXferServiceBase.HEADER_STR))
-										throw new Exception("Bad header: '" + header + "'");
-									JSONObject obj = tcpMessageHandlerSocket.readMessageAsJSONObject();
-									int transferSize = obj.getInt("transferSize");
-									// now respond with the provided amount of data.
-									tcpMessageHandlerSocket.sendMessage(DataXferServiceBase.RESPONSE_OKAY_STR);
-									byte[] data = new byte[transferSize];
-									int amountSent = 0;
-									while (amountSent < transferSize) {
-										int amountToSend = Math.min(transferSize - amountSent, 1000);
-										tcpMessageHandlerSocket.sendMessage(Arrays.copyOfRange(data, amountSent, amountSent + amountToSend));
-										amountSent += amountToSend;
+								mConnectionExecutor.execute(new Runnable() {
+									@Override
+									public void run() {
+										handleConnection(sock);
 									}
-								}
-							} catch (SocketTimeoutException e) {
-								Log.e(TAG, "Timed out waiting for data on tcp connection");
-							} catch (EOFException e) {
-								// normal termination of loop
-								Log.d(TAG, "EOF on tcpMessageHandlerSocket.readMessageAsString()");
-							} catch (JSONException e) {
-								Log.i(TAG, "Invalid JSON layout.");
-							} catch (Exception e) {
-								Log.i(TAG, "Unexpected exception while handling connection: " + e.getMessage());
-							} finally {
-								if ( tcpMessageHandlerSocket != null ) try { tcpMessageHandlerSocket.close(); } catch (Exception e) {}
+								});
+							} catch (RejectedExecutionException e) {
+								// we're shutting down
+								try { sock.close(); } catch (Exception e2) {}
 							}
 						} catch (SocketTimeoutException e) {
 							// this is normal.  Just loop back and see if we're terminating.
@@ -84,12 +77,63 @@ public class DataXferTCPMessageHandlerService extends DataXferServiceBase implem
 				} finally {
 					if ( mServerSocket != null )  try { mServerSocket.close(); } catch (Exception e) {}
 					mServerSocket = null;
+					mConnectionExecutor.shutdown();
 				}
 			}
 		};
 		tcpThread.start();
 	}
 	
+	/**
+	 * Serves transfer requests on a single connection until the client closes it or it times out.
+	 * Runs on a thread provided by the connection executor.
+	 */
+	private void handleConnection(Socket sock) {
+		TCPMessageHandler tcpMessageHandlerSocket = null;
+		try {
+			tcpMessageHandlerSocket = new TCPMessageHandler(sock);
+			tcpMessageHandlerSocket.setTimeout(NetBase.theNetBase().config().getAsInt("net.timeout.socket", 5000));
+			tcpMessageHandlerSocket.setNoDelay(true);
+			// this loop exits when readMessageAsString() throws an IOException indicating EOF, or 
+			// because it has timed out on the read
+			while ( true ) {
+				String header = tcpMessageHandlerSocket.readMessageAsString();
+				if ( ! header.equalsIgnoreCase(DataXferServiceBase.HEADER_STR))
+					throw new Exception("Bad header: '" + header + "'");
+				JSONObject obj = tcpMessageHandlerSocket.readMessageAsJSONObject();
+				int transferSize = obj.getInt(TRANSFER_SIZE_KEY);
+				// Optionally, just the range [offset, offset+length) of the transfer
+				int offset = obj.optInt(RANGE_OFFSET_KEY, 0);
+				int length = obj.optInt(RANGE_LENGTH_KEY, transferSize - offset);
+				if ( offset < 0 || length < 0 || (long)offset + length > transferSize )
+					throw new Exception("Bad range: offset " + offset + ", length " + length + " of " + transferSize + " bytes");
+				// now respond with the requested amount of data.
+				tcpMessageHandlerSocket.sendMessage(DataXferServiceBase.RESPONSE_OKAY_STR);
+				// Each chunk is a window onto the one data buffer; nothing is copied per message.
+				ByteBuffer data = ByteBuffer.allocate(length);
+				int amountSent = 0;
+				while (amountSent < length) {
+					int amountToSend = Math.min(length - amountSent, 1000);
+					data.limit(amountSent + amountToSend).position(amountSent);
+					tcpMessageHandlerSocket.sendMessage(data);
+					amountSent += amountToSend;
+				}
+			}
+		} catch (SocketTimeoutException e) {
+			Log.e(TAG, "Timed out waiting for data on tcp connection");
+		} catch (EOFException e) {
+			// normal termination of loop
+			Log.d(TAG, "EOF on tcpMessageHandlerSocket.readMessageAsString()");
+		} catch (JSONException e) {
+			Log.i(TAG, "Invalid JSON layout.");
+		} catch (Exception e) {
+			Log.i(TAG, "Unexpected exception while handling connection: " + e.getMessage());
+		} finally {
+			if ( tcpMessageHandlerSocket != null ) try { tcpMessageHandlerSocket.close(); } catch (Exception e) {}
+			else try { sock.close(); } catch (Exception e) {}
+		}
+	}
+	
 	@Override
 	public String dumpState() {
 		StringBuilder sb = new StringBuilder(super.dumpState());
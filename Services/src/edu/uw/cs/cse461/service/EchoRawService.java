@@ -1,36 +1,78 @@
 package edu.uw.cs.cse461.service;
 
+import java.io.DataInputStream;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import edu.uw.cs.cse461.net.base.NetBase;
+import edu.uw.cs.cse461.util.ConfigManager;
+import edu.uw.cs.cse461.util.ConnectionExecutor;
+import edu.uw.cs.cse461.util.DatagramRing;
 import edu.uw.cs.cse461.util.IPFinder;
 import edu.uw.cs.cse461.util.Log;
+import edu.uw.cs.cse461.util.ReusePort;
 
 /**
  * An echo service that communicates directly over UPD and TCP sockets that it creates.
+ * <p>
+ * Echo is used as a liveness and latency probe, often by many probers at once, so neither side
+ * serializes its clients.  Each TCP client gets its own session, on the executor chosen by
+ * echoraw.executor (see ConnectionExecutor), up to echoraw.maxconcurrent sessions at once.  UDP
+ * requests are answered straight out of the receive buffers of a DatagramRing, which takes every
+ * datagram that has arrived each time its thread wakes up: each one costs a receive and a send, and
+ * no allocation.  One thread can only answer so many a second, so echoraw.udp.sockets sockets
+ * can share the UDP port, each with its own thread (see ReusePort).
  * @author zahorjan
  *
  */
 public class EchoRawService extends EchoServiceBase  {
 	private static final String TAG="EchoRawService";
-	
+
+	// Pool size used if echoraw.executor=fixed
+	private static final int NUM_THREADS = 40;
+	// Largest UDP datagram
+	private static final int MAX_DGRAM_LEN = 64*1024;
+	// Most datagrams a UDP thread takes per wakeup
+	private static final int RING_SLOTS = 16;
+	// Size of the buffer each TCP session echoes through
+	private static final int TCP_BUFFER_SIZE = 64*1024;
+
+	// Each session thread keeps its echo buffer, so pooled threads don't allocate one per client
+	private static final ThreadLocal<byte[]> TCP_BUFFER = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[TCP_BUFFER_SIZE];
+		}
+	};
+
 	private ServerSocket mServerSocket;
-	private DatagramSocket mDatagramSocket;
+	private List<DatagramChannel> mDatagramChannels;
+	private ExecutorService mConnectionExecutor;
+	private Semaphore mSessionPermits;
+	private final AtomicInteger mActiveSessions = new AtomicInteger();
+	private final AtomicLong mDatagramsEchoed = new AtomicLong();
 	
 	/**
 	 * A NetLoadableService must provide a public constructor taking no arguments.
 	 * <p>
 	 * This service must listen to both a UDP and a TCP port.  It creates sockets
 	 * bound to those ports in this constructor.  It also creates a thread per socket -
-	 * the thread blocks trying to receive data on its socket, and when it does,
-	 * echoes back whatever it receives. 
+	 * the UDP threads echo back whatever datagrams they receive, and the TCP thread
+	 * accepts connections and hands each to a thread of the connection executor,
+	 * which echoes back whatever arrives on it. 
 	 * @throws Exception
 	 */
 	public EchoRawService() throws Exception {
@@ -47,90 +89,61 @@ public class EchoRawService extends EchoServiceBase  {
 		// There is (purposefully) no config file field to define the echo raw service's ports.
 		// Instead, ephemeral ports are used.  (You can run the dumpservericestate application
 		// to see ports are actually allocated.)
+		ConfigManager config = NetBase.theNetBase().config();
+		final int granularity = config.getAsInt("net.timeout.granularity", 500);
 				
 		mServerSocket = new ServerSocket();
 		mServerSocket.bind(new InetSocketAddress(serverIP, 0));
-		mServerSocket.setSoTimeout(NetBase.theNetBase().config().getAsInt("net.timeout.granularity", 500));
+		mServerSocket.setSoTimeout(granularity);
 		
-		mDatagramSocket = new DatagramSocket(new InetSocketAddress(serverIP, 0));
-		mDatagramSocket.setSoTimeout(NetBase.theNetBase().config().getAsInt("net.timeout.granularity", 500));
+		// echoraw.udp.sockets sockets share the UDP port, each with its own thread (see ReusePort)
+		mDatagramChannels = ReusePort.openDatagramChannels(new InetSocketAddress(serverIP, 0),
+				ReusePort.socketCount(config, "echoraw.udp.sockets", 1));
 		
 		Log.i(TAG,  "Server socket = " + mServerSocket.getLocalSocketAddress());
-		Log.i(TAG,  "Datagram socket = " + mDatagramSocket.getLocalSocketAddress());
-		
-		// Code/thread handling the UDP socket
-		Thread dgramThread = new Thread() {
-								public void run() {
-									byte buf[] = new byte[64*1024];
-									DatagramPacket packet = new DatagramPacket(buf, buf.length);
+		Log.i(TAG,  "Datagram socket = " + mDatagramChannels.get(0).socket().getLocalSocketAddress() + " x " + mDatagramChannels.size());
 
-									//	Thread termination in this code is primitive.  When shutdown() is called (by the
-									//	application's main thread, so asynchronously to the threads just mentioned) it
-									//	closes the sockets.  This causes an exception on any thread trying to read from
-									//	it, which is what provokes thread termination.
-									try {
-										while ( !mAmShutdown ) {
-											try {
-												mDatagramSocket.receive(packet);
-												if ( packet.getLength() < HEADER_STR.length() )
-													throw new Exception("Bad header: length = " + packet.getLength());
-												String headerStr = new String( buf, 0, HEADER_STR.length() );
-												if ( ! headerStr.equalsIgnoreCase(HEADER_STR) )
-													throw new Exception("Bad header: got '" + headerStr + "', wanted '" + HEADER_STR + "'");
-												System.arraycopy(RESPONSE_OKAY_STR.getBytes(), 0, buf, 0, HEADER_STR.length());
-												mDatagramSocket.send( new DatagramPacket(buf, packet.getLength(), packet.getAddress(), packet.getPort()));
-											} catch (SocketTimeoutException e) {
-												// socket timeout is normal
-											} catch (Exception e) {
-												Log.w(TAG,  "Dgram reading thread caught " + e.getClass().getName() + " exception: " + e.getMessage());
-											}
-										}
-									} finally {
-										if ( mDatagramSocket != null ) { mDatagramSocket.close(); mDatagramSocket = null; }
-									}
-								}
-		};
-		dgramThread.start();
+		// TCP sessions run on the executor chosen by the echoraw.executor config entry,
+		// at most echoraw.maxconcurrent at a time.
+		mConnectionExecutor = ConnectionExecutor.create(config, loadablename(), ConnectionExecutor.CACHED, NUM_THREADS);
+		mSessionPermits = new Semaphore(config.getAsInt("echoraw.maxconcurrent", 256, 1));
 		
-		// Code/thread handling the TCP socket
+		for ( DatagramChannel channel : mDatagramChannels ) startDgramThread(channel, granularity);
+		
+		// Code/thread accepting TCP connections
 		Thread tcpThread = new Thread() {
 
 			public void run() {
-				byte[] header = new byte[4];
-				byte[] buf = new byte[1024];
-				int socketTimeout = NetBase.theNetBase().config().getAsInt("net.timeout.socket", 5000);
 				try {
 					while ( !isShutdown() ) {
-						Socket sock = null;
+						if ( !mSessionPermits.tryAcquire(granularity, TimeUnit.MILLISECONDS) ) continue;
+						final Socket sock;
 						try {
 							// accept() blocks until a client connects.  When it does, a new socket is created that communicates only
 							// with that client.  That socket is returned.
 							sock = mServerSocket.accept();
-							// We're going to read from sock, to get the message to echo, but we can't risk a client mistake
-							// blocking us forever.  So, arrange for the socket to give up if no data arrives for a while.
-							sock.setSoTimeout(socketTimeout);
-							InputStream is = sock.getInputStream();
-							OutputStream os = sock.getOutputStream();
-							// Read the header.  Either it gets here in one chunk or we ignore it.  (That's not exactly the
-							// spec, admittedly.)
-							int len = is.read(header);
-							if ( len != HEADER_STR.length() )
-								throw new Exception("Bad header length: got " + len + " but wanted " + HEADER_STR.length());
-							String headerStr = new String(header); 
-							if ( !headerStr.equalsIgnoreCase(HEADER_STR) )
-								throw new Exception("Bad header: got '" + headerStr + "' but wanted '" + HEADER_STR + "'");
-							os.write(RESPONSE_OKAY_STR.getBytes());
-							
-							// Now read and echo the payload.
-							// Keep reading until the client has closed its side of the connection
-							while ( (len = is.read(buf)) >= 0 ) os.write(buf, 0, len);
-							
 						} catch (SocketTimeoutException e) {
-							// normal behavior, but we're done with the client we were talking with
-						} catch (Exception e) {
-							Log.i(TAG, "TCP thread caught " + e.getClass().getName() + " exception: " + e.getMessage());
-						} finally {
-							if ( sock != null ) try { sock.close(); sock = null;} catch (Exception e) {}
+							// normal; loop back and see if we're terminating
+							mSessionPermits.release();
+							continue;
+						}
+						try {
+							mConnectionExecutor.execute(new Runnable() {
+								@Override
+								public void run() {
+									mActiveSessions.incrementAndGet();
+									try {
+										handleConnection(sock);
+									} finally {
+										mActiveSessions.decrementAndGet();
+										mSessionPermits.release();
+									}
+								}
+							});
+						} catch (RejectedExecutionException e) {
+							// we're shutting down
+							try { sock.close(); } catch (Exception e2) {}
+							mSessionPermits.release();
 						}
 					}
 				} catch (Exception e) {
@@ -143,7 +156,93 @@ public class EchoRawService extends EchoServiceBase  {
 		tcpThread.start();
 	}
 
-	
+	/**
+	 * Starts the thread that echoes the datagrams arriving on one of the UDP sockets.
+	 */
+	private void startDgramThread(DatagramChannel channel, final int granularity) throws Exception {
+		final DatagramRing ring = new DatagramRing(channel, RING_SLOTS, MAX_DGRAM_LEN);
+
+		Thread dgramThread = new Thread() {
+			public void run() {
+				//	The thread waits for datagrams for at most granularity msec. at a time, so
+				//	that it notices when shutdown() has been called.  Each time it wakes up it
+				//	echoes every datagram that has arrived (up to RING_SLOTS of them).
+				try {
+					while ( !mAmShutdown ) {
+						try {
+							int n = ring.receive(granularity);
+							for ( int i=0; i<n; i++ ) {
+								ByteBuffer buf = ring.get(i);
+								if ( buf.remaining() < HEADER_LEN ) {
+									Log.w(TAG, "Bad header: length = " + buf.remaining());
+								} else if ( !isHeader(buf) ) {
+									Log.w(TAG, "Bad header: got '" + headerString(buf) + "', wanted '" + HEADER_STR + "'");
+								} else {
+									buf.put(RESPONSE_OKAY_BYTES).rewind();
+									// The socket's send buffer is full only if we're hopelessly behind;
+									// then the datagram is dropped, like any other UDP loss.
+									if ( ring.send(buf, ring.source(i), 0) ) mDatagramsEchoed.incrementAndGet();
+								}
+							}
+						} catch (Exception e) {
+							Log.w(TAG,  "Dgram reading thread caught " + e.getClass().getName() + " exception: " + e.getMessage());
+						}
+					}
+				} finally {
+					ring.close();
+				}
+			}
+		};
+		dgramThread.start();
+	}
+
+	/**
+	 * Echoes one TCP client's data until it closes its side of the connection (or goes quiet for
+	 * net.timeout.socket msec.).  Runs on a thread of the connection executor.
+	 */
+	private void handleConnection(Socket sock) {
+		byte[] buf = TCP_BUFFER.get();
+		try {
+			// We're going to read from sock, to get the message to echo, but we can't risk a client mistake
+			// blocking us forever.  So, arrange for the socket to give up if no data arrives for a while.
+			sock.setSoTimeout(NetBase.theNetBase().config().getAsInt("net.timeout.socket", 5000));
+			// Probers time round trips; don't let Nagle hold back small echoes
+			sock.setTcpNoDelay(true);
+			InputStream is = sock.getInputStream();
+			OutputStream os = sock.getOutputStream();
+			new DataInputStream(is).readFully(buf, 0, HEADER_LEN);
+			if ( !isHeader(ByteBuffer.wrap(buf, 0, HEADER_LEN)) )
+				throw new Exception("Bad header: got '" + new String(buf, 0, HEADER_LEN) + "' but wanted '" + HEADER_STR + "'");
+			os.write(RESPONSE_OKAY_BYTES);
+			
+			// Now read and echo the payload.
+			// Keep reading until the client has closed its side of the connection
+			int len;
+			while ( (len = is.read(buf)) >= 0 ) os.write(buf, 0, len);
+			
+		} catch (SocketTimeoutException e) {
+			// normal behavior, but we're done with the client we were talking with
+		} catch (Exception e) {
+			Log.i(TAG, "TCP session caught " + e.getClass().getName() + " exception: " + e.getMessage());
+		} finally {
+			try { sock.close(); } catch (Exception e) {}
+		}
+	}
+
+	// True if buf starts with the header (in any case).  Leaves buf's position unchanged.
+	private static boolean isHeader(ByteBuffer buf) {
+		for ( int i = 0; i < HEADER_LEN; i++ )
+			if ( Character.toLowerCase((char)buf.get(buf.position() + i)) != Character.toLowerCase((char)HEADER_BYTES[i]) ) return false;
+		return true;
+	}
+
+	// What a datagram has where the header should be, for error messages
+	private static String headerString(ByteBuffer buf) {
+		byte[] header = new byte[HEADER_LEN];
+		buf.duplicate().get(header);
+		return new String(header);
+	}
+
 	/**
 	 * This method is called when the entire infrastructure
 	 * wants to terminate.  We set a flag indicating all threads
@@ -155,6 +254,8 @@ public class EchoRawService extends EchoServiceBase  {
 	@Override
 	public void shutdown() {
 		super.shutdown();
+		// sessions already running finish (or time out)
+		mConnectionExecutor.shutdown();
 		Log.d(TAG, "Shutting down");
 	}
 	
@@ -168,9 +269,13 @@ public class EchoRawService extends EchoServiceBase  {
 		sb.append("\nListening on:\n\tTCP: ");
 		if ( mServerSocket != null ) sb.append(mServerSocket.toString());
 		else sb.append("Not listening");
+		sb.append(" (").append(mActiveSessions.get()).append(" active sessions)");
 		sb.append("\n\tUDP: ");
-		if ( mDatagramSocket != null ) sb.append(mDatagramSocket.getLocalSocketAddress());
+		DatagramChannel channel = mDatagramChannels.get(0);
+		if ( channel.isOpen() ) sb.append(channel.socket().getLocalSocketAddress());
 		else sb.append("Not listening");
+		sb.append(" (").append(mDatagramChannels.size()).append(mDatagramChannels.size() == 1 ? " socket, " : " sockets, ")
+		  .append(mDatagramsEchoed.get()).append(" datagrams echoed)");
 		return sb.toString();
 	}
 
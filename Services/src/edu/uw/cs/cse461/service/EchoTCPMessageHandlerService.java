@@ -5,9 +5,12 @@ import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 
 import edu.uw.cs.cse461.net.base.NetBase;
 import edu.uw.cs.cse461.net.tcpmessagehandler.TCPMessageHandler;
+import edu.uw.cs.cse461.util.ConnectionExecutor;
 import edu.uw.cs.cse461.util.IPFinder;
 import edu.uw.cs.cse461.util.Log;
 
@@ -20,6 +23,10 @@ public class EchoTCPMessageHandlerService extends EchoServiceBase  {
 	private static final String TAG="EchoTCPMessageHandlerService";
 	
 	private ServerSocket mServerSocket;
+	private ExecutorService mConnectionExecutor;
+	
+	// Pool size used if echotcpmessagehandler.executor=fixed
+	private static final int NUM_THREADS = 40;
 	
 	public EchoTCPMessageHandlerService() throws Exception {
 		super("echotcpmessagehandler");
@@ -31,40 +38,25 @@ public class EchoTCPMessageHandlerService extends EchoServiceBase  {
 		Log.i(TAG,  "Server socket = " + mServerSocket.getLocalSocketAddress());
 
 		
+		// Connections are handled on the executor chosen by the echotcpmessagehandler.executor config entry.
+		mConnectionExecutor = ConnectionExecutor.create(NetBase.theNetBase().config(), loadablename(), ConnectionExecutor.CACHED, NUM_THREADS);
+		
 		Thread tcpThread = new Thread() {
 			public void run() {
 				try {
 					while ( !mAmShutdown ) {
-						Socket sock = null;
 						try {
-							sock = mServerSocket.accept();  // if this fails, we want out of the while loop...
-							// should really spawn a thread here, but the code is already complicated enough that we don't bother
-							TCPMessageHandler tcpMessageHandlerSocket = null;
+							final Socket sock = mServerSocket.accept();  // if this fails, we want out of the while loop...
 							try {
-								// this loop exits when readMessageAsString() throws an IOException indicating EOF, or 
-								// because it has timed out on the read
-								while ( true ) {
-									tcpMessageHandlerSocket = new TCPMessageHandler(sock);
-									tcpMessageHandlerSocket.setTimeout(NetBase.theNetBase().config().getAsInt("net.timeout.socket", 5000));
-									tcpMessageHandlerSocket.setNoDelay(true);
-									
-									String header = tcpMessageHandlerSocket.readMessageAsString();
-									if ( ! header.equalsIgnoreCase(EchoServiceBase.HEADER_STR))
-										throw new Exception("Bad header: '" + header + "'");
-									String msg = tcpMessageHandlerSocket.readMessageAsString();
-									// now respond
-									tcpMessageHandlerSocket.sendMessage(EchoServiceBase.RESPONSE_OKAY_STR);
-									tcpMessageHandlerSocket.sendMessage(msg);
-								}
-							} catch (SocketTimeoutException e) {
-								Log.e(TAG, "Timed out waiting for data on tcp connection");
-							} catch (EOFException e) {
-								// normal termination of loop
-								Log.d(TAG, "EOF on tcpMessageHandlerSocket.readMessageAsString()");
-							} catch (Exception e) {
-								Log.i(TAG, "Unexpected exception while handling connection: " + e.getMessage());
-							} finally {
-								if ( tcpMessageHandlerSocket != null ) try { tcpMessageHandlerSocket.close(); } catch (Exception e) {}
+								mConnectionExecutor.execute(new Runnable() {
+									@Override
+									public void run() {
+										handleConnection(sock);
+									}
+								});
+							} catch (RejectedExecutionException e) {
+								// we're shutting down
+								try { sock.close(); } catch (Exception e2) {}
 							}
 						} catch (SocketTimeoutException e) {
 							// this is normal.  Just loop back and see if we're terminating.
@@ -75,11 +67,46 @@ public class EchoTCPMessageHandlerService extends EchoServiceBase  {
 				} finally {
 					if ( mServerSocket != null )  try { mServerSocket.close(); } catch (Exception e) {}
 					mServerSocket = null;
+					mConnectionExecutor.shutdown();
 				}
 			}
 		};
 		tcpThread.start();
 	}
+	
+	/**
+	 * Echoes messages on a single connection until the client closes it or it times out.
+	 * Runs on a thread provided by the connection executor.
+	 */
+	private void handleConnection(Socket sock) {
+		TCPMessageHandler tcpMessageHandlerSocket = null;
+		try {
+			tcpMessageHandlerSocket = new TCPMessageHandler(sock);
+			tcpMessageHandlerSocket.setTimeout(NetBase.theNetBase().config().getAsInt("net.timeout.socket", 5000));
+			tcpMessageHandlerSocket.setNoDelay(true);
+			// this loop exits when readMessageAsString() throws an IOException indicating EOF, or 
+			// because it has timed out on the read
+			while ( true ) {
+				String header = tcpMessageHandlerSocket.readMessageAsString();
+				if ( ! header.equalsIgnoreCase(EchoServiceBase.HEADER_STR))
+					throw new Exception("Bad header: '" + header + "'");
+				String msg = tcpMessageHandlerSocket.readMessageAsString();
+				// now respond
+				tcpMessageHandlerSocket.sendMessage(EchoServiceBase.RESPONSE_OKAY_STR);
+				tcpMessageHandlerSocket.sendMessage(msg);
+			}
+		} catch (SocketTimeoutException e) {
+			Log.e(TAG, "Timed out waiting for data on tcp connection");
+		} catch (EOFException e) {
+			// normal termination of loop
+			Log.d(TAG, "EOF on tcpMessageHandlerSocket.readMessageAsString()");
+		} catch (Exception e) {
+			Log.i(TAG, "Unexpected exception while handling connection: " + e.getMessage());
+		} finally {
+			if ( tcpMessageHandlerSocket != null ) try { tcpMessageHandlerSocket.close(); } catch (Exception e) {}
+			else try { sock.close(); } catch (Exception e) {}
+		}
+	}
 
 	@Override
 	public String dumpState() {
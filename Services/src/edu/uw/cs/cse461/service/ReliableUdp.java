@@ -0,0 +1,386 @@
+package edu.uw.cs.cse461.service;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.BitSet;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import edu.uw.cs.cse461.util.Log;
+import edu.uw.cs.cse461.util.TokenBucket;
+
+/**
+ * DataXferRawService's reliable UDP transfer protocol: all the data, at UDP speed.
+ * <p>
+ * The client asks one of the service's UDP ports for a transfer with a request datagram: "xfer", an options
+ * byte including UDP_OPTION_RELIABLE, a 4 byte transfer id of its choosing, and the 8 byte length it wants.
+ * (All integers are big-endian.)  The service answers from a new socket, used only for that transfer, with
+ * data datagrams: "okay", a 4 byte sequence number, and UDP_PAYLOAD_LEN bytes of data, fewer in the last
+ * one.  Datagram seq carries the data at offset seq * UDP_PAYLOAD_LEN.
+ * <p>
+ * The client sends SACK datagrams back to that socket: "sack", the transfer id, the cumulative ack (every
+ * datagram before it has arrived), its receive window (how many datagrams beyond the cumulative ack it will
+ * take), a 2 byte count, and that many [start, end) ranges of sequence numbers that have arrived beyond the
+ * cumulative ack, nearest first.  It sends one every ACK_EVERY datagrams, one straight away when a datagram
+ * arrives after a gap, and one whenever nothing has arrived for ACK_DELAY msec.  The transfer is complete
+ * when the cumulative ack reaches the number of datagrams.
+ * <p>
+ * The sender keeps at most min(its window, the receive window) datagrams past the cumulative ack in flight,
+ * paced by a TokenBucket.  It sends a datagram again if a later one has been acknowledged and a round trip
+ * has passed since it was sent, or if it's still unacknowledged when the retransmission timeout expires.
+ * The timeout is twice the smoothed round trip time, measured from datagrams sent only once, and doubles
+ * each time it expires.  There's no congestion control beyond that: the window and the pacing rate are
+ * meant to be set for the network.
+ *
+ * @author grahamb5
+ */
+public class ReliableUdp {
+	private static final String TAG="ReliableUdp";
+
+	public static final String SACK_STR = "sack";
+	public static final byte[] SACK_BYTES = SACK_STR.getBytes();
+	// "okay" and sequence number
+	public static final int DATA_HEADER_LEN = DataXferServiceBase.RESPONSE_OKAY_LEN + 4;
+	// "xfer", options, transfer id, length
+	public static final int REQUEST_LEN = DataXferServiceBase.HEADER_LEN + 1 + 4 + 8;
+	// "sack", transfer id, cumulative ack, receive window, block count
+	public static final int SACK_HEADER_LEN = SACK_BYTES.length + 4 + 4 + 4 + 2;
+	public static final int MAX_SACK_BLOCKS = 32;
+	public static final int MAX_SACK_LEN = SACK_HEADER_LEN + 8 * MAX_SACK_BLOCKS;
+	// longest transfer whose sequence numbers fit in an int
+	public static final long MAX_XFER_LENGTH = (long)Integer.MAX_VALUE * DataXferRawService.UDP_PAYLOAD_LEN;
+
+	// The receiver acks at least every ACK_EVERY datagrams, and after ACK_DELAY msec. without any
+	public static final int ACK_EVERY = 16;
+	public static final int ACK_DELAY = 5;
+	// how often a client repeats its request until data arrives, msec.
+	private static final int REQUEST_RETRY = 200;
+	// kernel buffer space a datagram takes, roughly, for working out the receive window
+	private static final int DATAGRAM_FOOTPRINT = 2048;
+
+	private static final long MIN_RTO = TimeUnit.MILLISECONDS.toNanos(4 * ACK_DELAY);
+	private static final long INITIAL_RTO = TimeUnit.MILLISECONDS.toNanos(200);
+	private static final long MAX_RTO = TimeUnit.SECONDS.toNanos(2);
+
+	private static int getInt(byte[] buf, int offset) {
+		return ((buf[offset] & 0xFF) << 24) | ((buf[offset+1] & 0xFF) << 16) | ((buf[offset+2] & 0xFF) << 8) | (buf[offset+3] & 0xFF);
+	}
+
+	private static boolean startsWith(byte[] buf, int len, byte[] prefix) {
+		if ( len < prefix.length ) return false;
+		for ( int i=0; i<prefix.length; i++ ) if ( buf[i] != prefix[i] ) return false;
+		return true;
+	}
+
+	//--------------------------------------------------------------------------------------
+	// Sender
+	//--------------------------------------------------------------------------------------
+
+	/**
+	 * The service's side of one transfer.  run() sends until the client has acknowledged everything,
+	 * or has sent nothing for idleTimeout msec.
+	 */
+	static class Sender implements Runnable {
+		private final DatagramChannel mChannel;
+		private final int mId;
+		private final long mXferLength;
+		private final int mNDatagrams;
+		private final int mWindow;
+		private final TokenBucket mPacer;
+		private final long mIdleTimeout;
+
+		// State of the datagrams in [mCumAck, mCumAck + mWindow), indexed by seq % mWindow
+		private final long[] mSentTime;
+		private final BitSet mAcked;
+		private final BitSet mResent;
+
+		private int mCumAck;
+		// one past the highest datagram acknowledged
+		private int mHighAck;
+		// the next datagram that has never been sent
+		private int mNextNew;
+		private int mRecvWindow;
+		// where the search for datagrams to send again resumes
+		private int mScan;
+		// unacknowledged datagrams sent before this are sent again
+		private long mResendBefore = Long.MIN_VALUE;
+		private long mSrtt = -1;
+		private long mRto = INITIAL_RTO;
+		private long mLastFeedback;
+		private long mRetransmits;
+
+		/**
+		 * @param channel Connected to the client; non-blocking.  Closed by run().
+		 * @param window Most datagrams in flight
+		 */
+		Sender(DatagramChannel channel, int id, long xferLength, int window, TokenBucket pacer, int idleTimeout) {
+			mChannel = channel;
+			mId = id;
+			mXferLength = xferLength;
+			mNDatagrams = (int)((xferLength + DataXferRawService.UDP_PAYLOAD_LEN - 1) / DataXferRawService.UDP_PAYLOAD_LEN);
+			mWindow = window;
+			mRecvWindow = window;
+			mPacer = pacer;
+			mIdleTimeout = TimeUnit.MILLISECONDS.toNanos(idleTimeout);
+			mSentTime = new long[window];
+			mAcked = new BitSet(window);
+			mResent = new BitSet(window);
+		}
+
+		@Override
+		public void run() {
+			Selector selector = null;
+			try {
+				selector = Selector.open();
+				SelectionKey key = mChannel.register(selector, SelectionKey.OP_READ);
+				ByteBuffer data = ByteBuffer.allocateDirect(DATA_HEADER_LEN + DataXferRawService.UDP_PAYLOAD_LEN);
+				data.put(DataXferServiceBase.RESPONSE_OKAY_BYTES);
+				ByteBuffer feedback = ByteBuffer.allocate(MAX_SACK_LEN);
+				mPacer.reset();
+				mLastFeedback = System.nanoTime();
+
+				while ( mCumAck < mNDatagrams ) {
+					long now = System.nanoTime();
+					while ( readFeedback(feedback, now) ) ;
+					if ( now - mLastFeedback > mIdleTimeout )
+						throw new SocketTimeoutException("No feedback for " + TimeUnit.NANOSECONDS.toMillis(mIdleTimeout) + " msec.");
+
+					int seq = nextToSend(now);
+					if ( seq >= 0 ) {
+						send(seq, data, key, selector);
+						continue;
+					}
+
+					// Nothing can be sent.  Wait for feedback, or for the oldest datagram's timeout.
+					long wait = mSentTime[slot(mCumAck)] + mRto - now;
+					if ( wait <= 0 ) {
+						mResendBefore = now - mRto;
+						mScan = mCumAck;
+						mRto = Math.min(2 * mRto, MAX_RTO);
+						continue;
+					}
+					selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait)));
+					selector.selectedKeys().clear();
+				}
+				Log.d(TAG, "Transfer " + mId + " to " + mChannel.getRemoteAddress() + ": " + mNDatagrams + " datagrams, " +
+						mRetransmits + " sent again, srtt " + TimeUnit.NANOSECONDS.toMicros(mSrtt) + " usec.");
+			} catch (SocketTimeoutException e) {
+				Log.i(TAG, "Transfer " + mId + " abandoned at " + mCumAck + " of " + mNDatagrams + " datagrams: " + e.getMessage());
+			} catch (Exception e) {
+				Log.i(TAG, "Transfer " + mId + " caught " + e.getClass().getName() + " exception: " + e.getMessage());
+			} finally {
+				if ( selector != null ) try { selector.close(); } catch (Exception e) {}
+				try { mChannel.close(); } catch (Exception e) {}
+			}
+		}
+
+		private int slot(int seq) {
+			return seq % mWindow;
+		}
+
+		/**
+		 * Chooses the next datagram to send: an unacknowledged one that's due to be sent again, or else
+		 * a new one, if the window allows.  Returns -1 if there's nothing to send.
+		 */
+		private int nextToSend(long now) {
+			if ( mScan < mCumAck ) mScan = mCumAck;
+			while ( mScan < mNextNew ) {
+				int seq = mScan++;
+				if ( mAcked.get(slot(seq)) ) continue;
+				long sent = mSentTime[slot(seq)];
+				if ( sent < mResendBefore ) return seq;
+				// a later datagram got there, so this one's lost if it has had a round trip to be acknowledged
+				if ( seq < mHighAck && now - sent > (mSrtt > 0 ? mSrtt : mRto) ) return seq;
+			}
+			if ( mNextNew < mNDatagrams && mNextNew - mCumAck < Math.min(mWindow, mRecvWindow) ) return mNextNew++;
+			return -1;
+		}
+
+		private void send(int seq, ByteBuffer data, SelectionKey key, Selector selector) throws IOException, InterruptedException {
+			int len = (int)Math.min(DataXferRawService.UDP_PAYLOAD_LEN, mXferLength - (long)seq * DataXferRawService.UDP_PAYLOAD_LEN);
+			data.clear();
+			data.putInt(DataXferServiceBase.RESPONSE_OKAY_LEN, seq);
+			data.limit(DATA_HEADER_LEN + len);
+			mPacer.acquire(DATA_HEADER_LEN + len);
+			while ( mChannel.write(data) == 0 ) {
+				// send buffer full
+				key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+				selector.select(ACK_DELAY);
+				selector.selectedKeys().clear();
+				key.interestOps(SelectionKey.OP_READ);
+			}
+			// a slot's time is cleared when the cumulative ack passes it, so it's set only if seq has been sent before
+			int slot = slot(seq);
+			if ( mSentTime[slot] != 0 ) {
+				mResent.set(slot);
+				mRetransmits++;
+			}
+			mSentTime[slot] = System.nanoTime();
+		}
+
+		/**
+		 * Reads and applies one SACK, if one has arrived.  Returns false if there wasn't one.
+		 */
+		private boolean readFeedback(ByteBuffer buf, long now) throws IOException {
+			buf.clear();
+			if ( mChannel.read(buf) <= 0 ) return false;
+			buf.flip();
+			if ( !startsWith(buf.array(), buf.limit(), SACK_BYTES) || buf.limit() < SACK_HEADER_LEN ) return true;
+			buf.position(SACK_BYTES.length);
+			if ( buf.getInt() != mId ) return true;
+			int cumAck = Math.min(buf.getInt(), mNextNew);
+			int recvWindow = buf.getInt();
+			int nBlocks = Math.min(buf.getShort() & 0xFFFF, buf.remaining() / 8);
+			mLastFeedback = now;
+			mRecvWindow = Math.max(1, recvWindow);
+
+			boolean progress = false;
+			for ( ; mCumAck < cumAck; mCumAck++ ) {
+				int slot = slot(mCumAck);
+				if ( !mAcked.get(slot) ) acked(slot, now);
+				// free the slot for mCumAck + mWindow
+				mAcked.clear(slot);
+				mResent.clear(slot);
+				mSentTime[slot] = 0;
+				progress = true;
+			}
+			if ( mHighAck < mCumAck ) mHighAck = mCumAck;
+			for ( int i=0; i<nBlocks; i++ ) {
+				int start = Math.max(buf.getInt(), mCumAck);
+				int end = Math.min(buf.getInt(), mNextNew);
+				for ( int seq=start; seq<end; seq++ ) {
+					int slot = slot(seq);
+					if ( mAcked.get(slot) ) continue;
+					acked(slot, now);
+					mAcked.set(slot);
+					progress = true;
+				}
+				if ( end > mHighAck ) mHighAck = end;
+			}
+			if ( progress ) {
+				mRto = mSrtt > 0 ? Math.max(MIN_RTO, 2 * mSrtt) : INITIAL_RTO;
+				mScan = mCumAck;
+			}
+			return true;
+		}
+
+		// Takes a round trip sample from a newly acknowledged datagram, if it was only sent once.
+		private void acked(int slot, long now) {
+			if ( mResent.get(slot) || mSentTime[slot] == 0 ) return;
+			long sample = now - mSentTime[slot];
+			mSrtt = mSrtt < 0 ? sample : mSrtt + (sample - mSrtt) / 8;
+		}
+	}
+
+	//--------------------------------------------------------------------------------------
+	// Receiver
+	//--------------------------------------------------------------------------------------
+
+	/**
+	 * Fetches xferLength bytes from a DataXferRawService UDP port, reliably.
+	 * @param timeout Give up if nothing arrives for this many msec.
+	 * @return The data
+	 * @throws SocketTimeoutException If the service goes quiet for timeout msec.
+	 */
+	public static byte[] receive(String hostIP, int udpPort, int timeout, int xferLength) throws IOException {
+		int payloadLen = DataXferRawService.UDP_PAYLOAD_LEN;
+		int nDatagrams = (xferLength + payloadLen - 1) / payloadLen;
+		byte[] result = new byte[xferLength];
+		long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+		DatagramSocket socket = new DatagramSocket();
+		try {
+			socket.setReceiveBufferSize(4 * 1024 * 1024);
+			socket.setSoTimeout(ACK_DELAY);
+			int window = Math.max(1, socket.getReceiveBufferSize() / DATAGRAM_FOOTPRINT);
+
+			int id = new Random().nextInt();
+			ByteBuffer request = ByteBuffer.allocate(REQUEST_LEN);
+			request.put(DataXferServiceBase.HEADER_BYTES).put(DataXferRawService.UDP_OPTION_RELIABLE).putInt(id).putLong(xferLength);
+			DatagramPacket requestPacket = new DatagramPacket(request.array(), REQUEST_LEN, new InetSocketAddress(hostIP, udpPort));
+			socket.send(requestPacket);
+			long lastRequest = System.nanoTime();
+
+			byte[] sack = new byte[MAX_SACK_LEN];
+			DatagramPacket sackPacket = new DatagramPacket(sack, sack.length);
+			byte[] buf = new byte[DATA_HEADER_LEN + payloadLen];
+			DatagramPacket packet = new DatagramPacket(buf, buf.length);
+			BitSet received = new BitSet(nDatagrams);
+			SocketAddress sender = null;
+			int cumAck = 0;
+			int highest = -1;
+			int unacked = 0;
+			long lastArrival = System.nanoTime();
+
+			while ( cumAck < nDatagrams ) {
+				try {
+					packet.setLength(buf.length);
+					socket.receive(packet);
+				} catch (SocketTimeoutException e) {
+					long now = System.nanoTime();
+					if ( now - lastArrival > timeoutNanos ) throw new SocketTimeoutException("Nothing received for " + timeout + " msec.");
+					if ( sender != null ) {
+						sendSack(socket, sackPacket, id, received, cumAck, window);
+						unacked = 0;
+					} else if ( now - lastRequest > TimeUnit.MILLISECONDS.toNanos(REQUEST_RETRY) ) {
+						socket.send(requestPacket);
+						lastRequest = now;
+					}
+					continue;
+				}
+				int len = packet.getLength();
+				if ( len < DATA_HEADER_LEN || !startsWith(buf, len, DataXferServiceBase.RESPONSE_OKAY_BYTES) ) continue;
+				if ( sender == null ) {
+					// the transfer's socket
+					sender = packet.getSocketAddress();
+					sackPacket.setSocketAddress(sender);
+				} else if ( !sender.equals(packet.getSocketAddress()) ) {
+					continue;
+				}
+				lastArrival = System.nanoTime();
+				int seq = getInt(buf, DataXferServiceBase.RESPONSE_OKAY_LEN);
+				if ( seq < 0 || seq >= nDatagrams || len - DATA_HEADER_LEN != Math.min(payloadLen, xferLength - seq * payloadLen) ) continue;
+				if ( !received.get(seq) ) {
+					System.arraycopy(buf, DATA_HEADER_LEN, result, seq * payloadLen, len - DATA_HEADER_LEN);
+					received.set(seq);
+					if ( seq == cumAck ) cumAck = received.nextClearBit(cumAck);
+				}
+				boolean gap = seq > highest + 1;
+				if ( seq > highest ) highest = seq;
+				if ( ++unacked >= ACK_EVERY || gap || cumAck == nDatagrams ) {
+					sendSack(socket, sackPacket, id, received, cumAck, window);
+					unacked = 0;
+				}
+			}
+			// Repeat the final ack, in case it's lost.  (If they all are, the sender times out.)
+			for ( int i=0; i<2; i++ ) sendSack(socket, sackPacket, id, received, cumAck, window);
+			return result;
+		} finally {
+			socket.close();
+		}
+	}
+
+	private static void sendSack(DatagramSocket socket, DatagramPacket sackPacket, int id, BitSet received, int cumAck, int window) throws IOException {
+		ByteBuffer sack = ByteBuffer.wrap(sackPacket.getData());
+		sack.put(SACK_BYTES).putInt(id).putInt(cumAck).putInt(window);
+		int countPos = sack.position();
+		sack.putShort((short)0);
+		int nBlocks = 0;
+		for ( int start = received.nextSetBit(cumAck); start >= 0 && nBlocks < MAX_SACK_BLOCKS; start = received.nextSetBit(start) ) {
+			int end = received.nextClearBit(start);
+			sack.putInt(start).putInt(end);
+			nBlocks++;
+			start = end;
+		}
+		sack.putShort(countPos, (short)nBlocks);
+		sackPacket.setLength(sack.position());
+		socket.send(sackPacket);
+	}
+}
@@ -201,4 +201,27 @@ public class ConfigManager extends Properties implements ConfigManagerInterface
 		}
 		return result;
 	}
+
+	/**
+	 * Returns a field value from the config file as a long, for values (like byte counts) that may
+	 * not fit in an int.  Returns the default value if the config file field value cannot be converted
+	 * to a long.  Returns the minimum value if the value that otherwise would be returned is less than
+	 * the minimum.
+	 */
+	@Override
+	public long getAsLong(String key, long defaultVal, long minimum) {
+		long result;
+		try {
+			result = Long.parseLong(getProperty(key));
+		} catch (Exception e) {
+			Log.i(TAG, "Missing or non-integer value for config entry " + key + ".  Using default " + defaultVal);
+			result = defaultVal;
+		}
+
+		if ( result < minimum ) {
+			Log.w(TAG, key + " value " + result + " is below minimum (" + minimum + ").  Resetting to minimum.");
+			result = minimum;
+		}
+		return result;
+	}
 }
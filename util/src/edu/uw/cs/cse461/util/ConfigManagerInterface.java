@@ -48,6 +48,12 @@ public interface ConfigManagerInterface {
 	 * the returned value is less than minimum or greater than maximum.
 	 */
 	public int getAsInt(String key, int defaultVal, int minimum, int maximum);
+	/**
+	 * Returns the long value associated with the key argument.  Returns defaultVal if
+	 * the key doesn't exist in the config file.   Adds a warning message to the log if 
+	 * the returned value is less than minimum.
+	 */
+	public long getAsLong(String key, long defaultVal, long minimum);
 	
 	/**
 	 * Reads whitespace separated vectors of entries like jz.cse461.:password
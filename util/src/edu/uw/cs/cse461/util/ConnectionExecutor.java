@@ -0,0 +1,82 @@
+package edu.uw.cs.cse461.util;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Creates the executors services use to run per-connection work, according to the config file.
+ * For a service whose config prefix is, say, "rpc", the entries consulted are:
+ * <ul>
+ * <li><tt>rpc.executor</tt>: one of
+ *   <ul>
+ *   <li><tt>fixed</tt> - a fixed size thread pool of <tt>rpc.threads</tt> threads.  Connections beyond
+ *       that number wait for a free thread.
+ *   <li><tt>cached</tt> - a new platform thread per connection (reused when idle).
+ *   <li><tt>virtual</tt> - a new virtual thread per connection.  Blocking socket code then costs a few
+ *       KB of heap per connection rather than an OS thread.  Virtual threads need Java 21; on older
+ *       JVMs this falls back to <tt>cached</tt>.
+ *   </ul>
+ * <li><tt>rpc.threads</tt>: pool size for the fixed executor.
+ * </ul>
+ *
+ * @author grahamb5
+ */
+public class ConnectionExecutor {
+	private static final String TAG = "ConnectionExecutor";
+
+	public static final String FIXED = "fixed";
+	public static final String CACHED = "cached";
+	public static final String VIRTUAL = "virtual";
+
+	/**
+	 * Builds the executor selected by the prefix.executor config entry.
+	 * @param config The config file
+	 * @param prefix Config file prefix of the service (e.g., "rpc")
+	 * @param defaultKind Executor kind to use when the config file doesn't say
+	 * @param defaultThreads Pool size to use for a fixed executor when the config file doesn't say
+	 */
+	public static ExecutorService create(ConfigManager config, String prefix, String defaultKind, int defaultThreads) {
+		String kind = config.getProperty(prefix + ".executor", defaultKind).trim();
+		int nThreads = config.getAsInt(prefix + ".threads", defaultThreads, 1);
+		return create(kind, nThreads);
+	}
+
+	/**
+	 * Builds an executor of the named kind.
+	 * @param kind fixed, cached, or virtual
+	 * @param nThreads Pool size, used only by the fixed kind
+	 */
+	public static ExecutorService create(String kind, int nThreads) {
+		if ( kind.equalsIgnoreCase(VIRTUAL) ) {
+			ExecutorService virtual = newVirtualThreadPerTaskExecutor();
+			if ( virtual != null ) return virtual;
+			Log.w(TAG, "Virtual threads aren't available on this JVM (" + System.getProperty("java.version") + ").  Using a cached thread pool.");
+			return Executors.newCachedThreadPool();
+		}
+		if ( kind.equalsIgnoreCase(CACHED) ) return Executors.newCachedThreadPool();
+		if ( !kind.equalsIgnoreCase(FIXED) ) Log.w(TAG, "Unknown executor kind '" + kind + "'.  Using a fixed pool.");
+		return Executors.newFixedThreadPool(nThreads);
+	}
+
+	// Executors.newVirtualThreadPerTaskExecutor() is looked up reflectively so that the code
+	// still compiles and runs (with a fallback) on pre-21 JVMs.
+	private static ExecutorService newVirtualThreadPerTaskExecutor() {
+		Method factory = lookupVirtualFactory();
+		if ( factory == null ) return null;
+		try {
+			return (ExecutorService)factory.invoke(null);
+		} catch (Exception e) {
+			Log.w(TAG, "Unable to create virtual thread executor: " + e.getMessage());
+			return null;
+		}
+	}
+
+	private static Method lookupVirtualFactory() {
+		try {
+			return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,156 @@
+package edu.uw.cs.cse461.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+/**
+ * A datagram channel plus a ring of preallocated receive buffers, for UDP code that handles a lot of
+ * datagrams.  Each call of receive() waits (once) for datagrams to arrive, then takes as many as have
+ * arrived, up to one per slot, without waiting again.  The datagrams stay in the ring, where the caller
+ * can read them (or modify and resend them) until the next receive().  Nothing is allocated per
+ * datagram; the slots are slices of one direct buffer, so the channel reads into them without copying.
+ * <p>
+ * The channel is put in non-blocking mode, and waits are made on a selector of the ring's own, so
+ * every wait has a timeout.  Sends can be made through the ring, too, so that they also time out
+ * rather than block forever.
+ * <p>
+ * A DatagramRing is meant to be used by one thread at a time.
+ *
+ * @author grahamb5
+ */
+public class DatagramRing implements Closeable {
+	private final DatagramChannel mChannel;
+	private final Selector mSelector;
+	private final SelectionKey mKey;
+	private final ByteBuffer[] mSlots;
+	private final SocketAddress[] mSources;
+	private int mCount;
+
+	/**
+	 * @param channel The channel to receive from (and send on).  It's put in non-blocking mode, and
+	 *  closed when the ring is.
+	 * @param nSlots Most datagrams one receive() takes
+	 * @param slotSize Bytes per slot.  A longer datagram is truncated to this length.
+	 */
+	public DatagramRing(DatagramChannel channel, int nSlots, int slotSize) throws IOException {
+		if ( nSlots <= 0 || slotSize <= 0 ) throw new IllegalArgumentException("nSlots and slotSize must be positive");
+		mChannel = channel;
+		mChannel.configureBlocking(false);
+		mSelector = Selector.open();
+		mKey = mChannel.register(mSelector, SelectionKey.OP_READ);
+		mSlots = new ByteBuffer[nSlots];
+		mSources = new SocketAddress[nSlots];
+		ByteBuffer all = ByteBuffer.allocateDirect(nSlots * slotSize);
+		for ( int i=0; i<nSlots; i++ ) {
+			all.limit((i + 1) * slotSize).position(i * slotSize);
+			mSlots[i] = all.slice();
+		}
+	}
+
+	/**
+	 * Opens a ring on a new, unbound channel (it's bound to an ephemeral port by its first send,
+	 * or by the caller connecting it).
+	 */
+	public static DatagramRing open(int nSlots, int slotSize) throws IOException {
+		DatagramChannel channel = DatagramChannel.open();
+		try {
+			return new DatagramRing(channel, nSlots, slotSize);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	public DatagramChannel channel() {
+		return mChannel;
+	}
+
+	/**
+	 * Waits up to timeout msec. for datagrams to arrive, then takes all those that have, up to the number
+	 * of slots.  The datagrams taken by the previous call are overwritten.
+	 * @param timeout Msec. to wait; 0 takes only what has already arrived
+	 * @return The number of datagrams taken, 0 if none arrived in time; they're get(0) .. get(n-1)
+	 */
+	public int receive(int timeout) throws IOException {
+		mCount = 0;
+		long deadline = System.currentTimeMillis() + timeout;
+		while ( true ) {
+			takeArrived();
+			long remaining = deadline - System.currentTimeMillis();
+			if ( mCount > 0 || remaining <= 0 ) return mCount;
+			if ( mSelector.select(remaining) > 0 ) mSelector.selectedKeys().clear();
+		}
+	}
+
+	private void takeArrived() throws IOException {
+		while ( mCount < mSlots.length ) {
+			ByteBuffer slot = mSlots[mCount];
+			slot.clear();
+			SocketAddress source = mChannel.receive(slot);
+			if ( source == null ) break;
+			slot.flip();
+			mSources[mCount++] = source;
+		}
+	}
+
+	/**
+	 * The i'th datagram taken by the last receive(), from position 0 to its length.  The caller may
+	 * move its position and limit, or overwrite it.
+	 */
+	public ByteBuffer get(int i) {
+		if ( i >= mCount ) throw new IndexOutOfBoundsException(i + " >= " + mCount);
+		return mSlots[i];
+	}
+
+	/**
+	 * Where the i'th datagram taken by the last receive() came from.
+	 */
+	public SocketAddress source(int i) {
+		if ( i >= mCount ) throw new IndexOutOfBoundsException(i + " >= " + mCount);
+		return mSources[i];
+	}
+
+	/**
+	 * Sends src's remaining bytes as one datagram.  If the socket's send buffer is full, waits up to
+	 * timeout msec. for room.
+	 * @param target Where to send it; null to send to the address the channel is connected to
+	 * @param timeout Msec. to wait for room; 0 doesn't wait
+	 * @return true if the datagram was sent, false if there was no room (and timeout was 0)
+	 * @throws SocketTimeoutException If there was still no room after a positive timeout
+	 */
+	public boolean send(ByteBuffer src, SocketAddress target, int timeout) throws IOException {
+		if ( trySend(src, target) ) return true;
+		if ( timeout <= 0 ) return false;
+		long deadline = System.currentTimeMillis() + timeout;
+		mKey.interestOps(SelectionKey.OP_WRITE);
+		try {
+			while ( true ) {
+				long remaining = deadline - System.currentTimeMillis();
+				if ( remaining <= 0 ) throw new SocketTimeoutException("UDP send buffer stayed full for " + timeout + " msec.");
+				if ( mSelector.select(remaining) > 0 ) mSelector.selectedKeys().clear();
+				if ( trySend(src, target) ) return true;
+			}
+		} finally {
+			mKey.interestOps(SelectionKey.OP_READ);
+		}
+	}
+
+	private boolean trySend(ByteBuffer src, SocketAddress target) throws IOException {
+		return (target == null ? mChannel.write(src) : mChannel.send(src, target)) > 0 || !src.hasRemaining();
+	}
+
+	/**
+	 * Closes the selector and the channel.
+	 */
+	@Override
+	public void close() {
+		try { mSelector.close(); } catch (IOException e) {}
+		try { mChannel.close(); } catch (IOException e) {}
+	}
+}
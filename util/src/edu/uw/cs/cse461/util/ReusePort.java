@@ -0,0 +1,94 @@
+package edu.uw.cs.cse461.util;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Opens several datagram sockets bound to the same port, using SO_REUSEPORT, so that a service can run
+ * one receive loop per socket.  The kernel spreads arriving datagrams across the sockets by hashing the
+ * sender's address and port, so each client's datagrams all go to one socket (and arrive in order),
+ * while many clients are served by all of them at once.  One receive loop is limited to what one core
+ * can do; this lets packets per second scale with cores.
+ * <p>
+ * SO_REUSEPORT needs Java 9 and an OS that supports it (Linux, the BSDs, macOS).  Where it's missing
+ * a single socket is opened instead.
+ * <p>
+ * Services read the socket count from a config entry: a positive value is the number of sockets, and
+ * 0 means one per core.
+ *
+ * @author grahamb5
+ */
+public class ReusePort {
+	private static final String TAG = "ReusePort";
+
+	// StandardSocketOptions.SO_REUSEPORT is looked up reflectively so that the code still compiles and
+	// runs (with one socket) on pre-9 JVMs.  null if it's not available.
+	private static final SocketOption<Boolean> SO_REUSEPORT = lookupReusePort();
+
+	/**
+	 * Returns true if this JVM and OS can bind several datagram sockets to one port.
+	 */
+	public static boolean isSupported() {
+		return SO_REUSEPORT != null;
+	}
+
+	/**
+	 * Reads a socket count from the config file.
+	 * @param key Config entry: the number of sockets, or 0 for one per core
+	 * @param defaultCount Used if the entry is missing
+	 * @return The number of sockets to open; 1 if SO_REUSEPORT isn't supported
+	 */
+	public static int socketCount(ConfigManager config, String key, int defaultCount) {
+		int count = config.getAsInt(key, defaultCount, 0);
+		if ( count == 0 ) count = Runtime.getRuntime().availableProcessors();
+		if ( count > 1 && !isSupported() ) {
+			Log.w(TAG, key + "=" + count + " but SO_REUSEPORT isn't available on this JVM/OS.  Using one socket.");
+			count = 1;
+		}
+		return count;
+	}
+
+	/**
+	 * Opens count datagram channels, in blocking mode, all bound to address.  If address's port is 0 the
+	 * first channel is bound to an ephemeral port and the rest to the same one.  With a count of 1 the
+	 * channel is opened without SO_REUSEPORT, just as DatagramChannel.open() would.
+	 * @throws IOException If any channel can't be opened or bound (those already opened are closed)
+	 */
+	public static List<DatagramChannel> openDatagramChannels(InetSocketAddress address, int count) throws IOException {
+		if ( count > 1 && !isSupported() ) throw new IOException("SO_REUSEPORT isn't supported");
+		List<DatagramChannel> channels = new ArrayList<DatagramChannel>(count);
+		try {
+			for ( int i=0; i<count; i++ ) {
+				DatagramChannel channel = DatagramChannel.open();
+				channels.add(channel);
+				if ( count > 1 ) channel.setOption(SO_REUSEPORT, true);
+				channel.socket().bind(address);
+				address = (InetSocketAddress)channel.socket().getLocalSocketAddress();
+			}
+		} catch (IOException e) {
+			for ( DatagramChannel channel : channels ) try { channel.close(); } catch (IOException e2) {}
+			throw e;
+		}
+		return channels;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static SocketOption<Boolean> lookupReusePort() {
+		try {
+			SocketOption<Boolean> option = (SocketOption<Boolean>)StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+			DatagramChannel probe = DatagramChannel.open();
+			try {
+				return probe.supportedOptions().contains(option) ? option : null;
+			} finally {
+				probe.close();
+			}
+		} catch (Exception e) {
+			return null;
+		}
+	}
+}
@@ -11,12 +11,135 @@ import java.util.List;
  * <p>
  * Subclasses provide explicit support for sampling elapsed time (summarized by an arithmetic mean) and average
  * transfer rate (summarized by a harmonic mean).
+ * <p>
+ * Each set of samples also keeps a Histogram of them, so percentiles (e.g., p99 latency) can be reported as well
+ * as means.
  * 
  * @author zahorjan
  *
  */
 public class SampledStatistic {
 
+	//--------------------------------------------------------------------------------------------
+	/**
+	 * A histogram of non-negative samples, for reporting percentiles.  It uses fixed memory (about 40KB) however
+	 * many samples are recorded, and recording a sample takes constant time.
+	 * <p>
+	 * Samples are counted in units of the histogram's resolution.  The buckets are log-linear, as in HdrHistogram:
+	 * each value below 2^SUB_BITS units has its own bucket, and each power of two above that is divided into
+	 * 2^SUB_BITS equal buckets, so a percentile is accurate to within 1% (or to within the resolution, for small values).
+	 * Values too large for the top bucket are counted in it.  The min and max are kept exactly.
+	 * <p>
+	 * Histograms with the same resolution can be merged, so, for instance, histograms taken by several threads, or
+	 * over several runs, can be combined.  Histograms aren't thread safe; take a snapshot() to hand one to another thread.
+	 * @author grahamb5
+	 *
+	 */
+	public static class Histogram {
+		private static final int SUB_BITS = 7;
+		private static final int SUB_COUNT = 1 << SUB_BITS;
+		// bucketed values are below 2^MAX_MAGNITUDE units (for the default resolution, 8 years in msec.)
+		private static final int MAX_MAGNITUDE = 48;
+		private static final int NUM_BUCKETS = SUB_COUNT + (MAX_MAGNITUDE - SUB_BITS) * SUB_COUNT;
+
+		private final double mResolution;
+		private final long[] mCounts;
+		private long   mTotal = 0;
+		private double mMin = Double.MAX_VALUE;
+		private double mMax = 0.0;
+
+		/**
+		 * @param resolution The smallest difference between samples the histogram needs to tell apart (e.g., 0.001 for
+		 *  samples in msec. that should be resolved to a microsecond).
+		 */
+		public Histogram(double resolution) {
+			if ( !(resolution > 0.0) ) throw new IllegalArgumentException("Histogram resolution must be greater than 0.0");
+			mResolution = resolution;
+			mCounts = new long[NUM_BUCKETS];
+		}
+
+		private Histogram(Histogram other) {
+			mResolution = other.mResolution;
+			mCounts = other.mCounts.clone();
+			mTotal = other.mTotal;
+			mMin = other.mMin;
+			mMax = other.mMax;
+		}
+
+		/**
+		 * Records a sample.  Negative samples are counted as 0.
+		 */
+		public void record(double sample) {
+			if ( !(sample > 0.0) ) sample = 0.0;
+			mCounts[bucketIndex((long)(sample / mResolution + 0.5))]++;
+			mTotal++;
+			if ( sample < mMin ) mMin = sample;
+			if ( sample > mMax ) mMax = sample;
+		}
+
+		private static int bucketIndex(long units) {
+			if ( units < SUB_COUNT ) return (int)units;
+			int magnitude = 63 - Long.numberOfLeadingZeros(units);
+			if ( magnitude >= MAX_MAGNITUDE ) return NUM_BUCKETS - 1;
+			int sub = (int)(units >>> (magnitude - SUB_BITS)) & (SUB_COUNT - 1);
+			return SUB_COUNT + (magnitude - SUB_BITS) * SUB_COUNT + sub;
+		}
+
+		// The middle of the range of values (in units) counted in bucket index
+		private static double bucketValue(int index) {
+			if ( index < SUB_COUNT ) return index;
+			int shift = (index - SUB_COUNT) / SUB_COUNT;
+			long low = (long)(SUB_COUNT + (index - SUB_COUNT) % SUB_COUNT) << shift;
+			return low + ((1L << shift) - 1) / 2.0;
+		}
+
+		/**
+		 * Returns the value that p percent of the samples are at or below (e.g., percentile(99.9)).
+		 * @param p Percentile, from 0.0 to 100.0
+		 * @return The percentile, or 0.0 if there are no samples.
+		 */
+		public double percentile(double p) {
+			if ( mTotal == 0 ) return 0.0;
+			long rank = Math.max(1, (long)Math.ceil(Math.min(100.0, p) / 100.0 * mTotal));
+			if ( rank >= mTotal ) return mMax;
+			long seen = 0;
+			int index = 0;
+			while ( (seen += mCounts[index]) < rank ) index++;
+			double value = bucketValue(index) * mResolution;
+			return Math.max(mMin, Math.min(mMax, value));
+		}
+
+		public long count() { return mTotal; }
+		public double min() { return mTotal > 0 ? mMin : 0.0; }
+		public double max() { return mMax; }
+
+		/**
+		 * Adds other's samples to this histogram's.
+		 * @throws IllegalArgumentException If the two histograms have different resolutions.
+		 */
+		public void merge(Histogram other) {
+			if ( other.mResolution != mResolution ) throw new IllegalArgumentException("Can't merge histograms with different resolutions");
+			for ( int i=0; i<NUM_BUCKETS; i++ ) mCounts[i] += other.mCounts[i];
+			mTotal += other.mTotal;
+			if ( other.mMin < mMin ) mMin = other.mMin;
+			if ( other.mMax > mMax ) mMax = other.mMax;
+		}
+
+		/**
+		 * Returns a copy of this histogram, which later samples don't change.
+		 */
+		public Histogram snapshot() { return new Histogram(this); }
+
+		/**
+		 * Format a string containing the median and tail percentiles.
+		 */
+		public String toString() {
+			return String.format("p50 %.3f, p90 %.3f, p99 %.3f, p99.9 %.3f, max %.3f",
+					percentile(50.0), percentile(90.0), percentile(99.0), percentile(99.9), max());
+		}
+	}
+	//--------------------------------------------------------------------------------------------
+
 	//--------------------------------------------------------------------------------------------
 	/**
 	 * A helper class.  There is a SampleSet associated with each distinct timer key value.
@@ -25,14 +148,19 @@ public class SampledStatistic {
 	 *
 	 */
 	static abstract class SampleSet {
+		// resolution of the histogram of samples: a microsecond, for elapsed times in msec.
+		protected static final double HISTOGRAM_RESOLUTION = 0.001;
+
 		protected long   mNumSamples = 0;
 		protected long   mNumAborted = 0;
 		
 		protected double mMaxSample = Double.MIN_VALUE;
 		protected double mMinSample = Double.MAX_VALUE;
+		protected final Histogram mHistogram = new Histogram(HISTOGRAM_RESOLUTION);
 
 		protected void addSample(double sample) {
 			mNumSamples++;
+			mHistogram.record(sample);
 			if ( sample < mMinSample ) mMinSample = sample;
 			if ( sample > mMaxSample ) mMaxSample = sample;
 		}
@@ -45,6 +173,17 @@ public class SampledStatistic {
 		public long nSamples() { return mNumSamples; }
 		public long nAborted() { return mNumAborted; }
 		public long nTrials() { return mNumAborted + mNumSamples; }
+
+		/**
+		 * Returns the value that p percent of the samples are at or below (aborted trials aren't samples).
+		 * @param p Percentile, from 0.0 to 100.0 (e.g., 99.0 for p99)
+		 */
+		public double percentile(double p) { return mHistogram.percentile(p); }
+
+		/**
+		 * Returns a snapshot of the histogram of samples, e.g., to merge with others.
+		 */
+		public Histogram histogram() { return mHistogram.snapshot(); }
 		
 		public double failureRate() {
 			if ( nTrials() > 0 ) return ((double)mNumAborted)/nTrials();
@@ -98,14 +237,29 @@ public class SampledStatistic {
 
 		double   	mSampleTimeTotal = 0.0;   // total time spent in transfers
 		long		mSampleDataTotal = 0;     // total data transferred
+		// the time samples; the rates themselves are in mHistogram
+		protected final Histogram mTimeHistogram = new Histogram(HISTOGRAM_RESOLUTION);
 
 		public void addSample(double timeSample, long dataSample) {
 			if ( timeSample <= 0.0 ) throw new RuntimeException("Harmonic mean time sample must be greater than 0.0");
 			super.addSample(dataSample/timeSample);
 			mSampleTimeTotal += timeSample;
 			mSampleDataTotal += dataSample;
+			mTimeHistogram.record(timeSample);
 		}
 
+		/**
+		 * Returns the time that p percent of the samples took at most.  (Unlike percentile(), which is over
+		 * the rates, high percentiles here are the slow samples.)
+		 * @param p Percentile, from 0.0 to 100.0
+		 */
+		public double timePercentile(double p) { return mTimeHistogram.percentile(p); }
+
+		/**
+		 * Returns a snapshot of the histogram of time samples.
+		 */
+		public Histogram timeHistogram() { return mTimeHistogram.snapshot(); }
+
 		/**
 		 * Return the arithemtic mean.
 		 * @return Arithmetic mean of samples.  Returns 0.0 if no samples yet registered.
@@ -149,6 +303,19 @@ public class SampledStatistic {
 			return sb.toString();
 		}
 
+		/**
+		 * Format a string giving the percentiles of the samples taken for each timer.
+		 */
+		public String percentileString() {
+			StringBuilder sb = new StringBuilder();
+			List<String> timerList = new ArrayList<String>(keySet());
+			java.util.Collections.sort(timerList);
+			for ( String k : timerList ) {
+				sb.append(k).append(": ").append(get(k).mHistogram.toString()).append("\n");
+			}
+			return sb.toString();
+		}
+
 		/**
 		 * A compact output string giving just the mean sample size for each timer.
 		 * @return
@@ -236,12 +403,49 @@ public class SampledStatistic {
 			entry.abort();
 			return sample;
 		}
-		
+
+		/**
+		 * Records an elapsed time sample that the caller measured itself.  start() and stop() time one
+		 * interval per key at a time; this is for intervals that overlap, like concurrent requests.
+		 * (Like the rest of this class, it isn't thread safe; concurrent callers must synchronize.)
+		 * @param key The name of the timer with which to record the sample.
+		 * @param msec The length of the interval, in msec.
+		 */
+		public static void record(String key, double msec) {
+			entryFor(key).addSample(msec);
+		}
+
+		/**
+		 * Records an aborted measurement, as abort() would, for a caller measuring its own intervals.
+		 * @param key The name of a timer.
+		 */
+		public static void recordAbort(String key) {
+			entryFor(key).abort();
+		}
+
+		private static ElapsedTimeInterval entryFor(String key) {
+			if ( key == null ) throw new RuntimeException("ElapsedTime key can't be null");
+			ElapsedTimeInterval entry = mSampleSetManager.get(key);
+			if ( entry == null ) {
+				entry = new ElapsedTimeInterval();
+				mSampleSetManager.put(key,  entry);
+			}
+			return entry;
+		}
+
 		public static ElapsedTimeInterval get(String key) {
 			if ( key == null ) throw new RuntimeException("ElapsedTime key can't be null");
 			return mSampleSetManager.get(key);
 		}
 
+		/**
+		 * Returns a snapshot of the histogram of key's samples, or null if there are none.
+		 */
+		public static Histogram histogram(String key) {
+			ElapsedTimeInterval entry = get(key);
+			return entry == null ? null : entry.histogram();
+		}
+
 		/**
 		 * Reset all sample sets.
 		 */
@@ -252,6 +456,11 @@ public class SampledStatistic {
 		 */
 		public static String statString() { return mSampleSetManager.statString(); }
 
+		/**
+		 * Returns String with the percentiles of the samples for all keys
+		 */
+		public static String percentileString() { return mSampleSetManager.percentileString(); }
+
 		/**
 		 * Returns String with summary information on all keys.  In comparison
 		 * with statString(), the returned string is shorter: it contains just mean
@@ -339,6 +548,14 @@ public class SampledStatistic {
 			return mSampleSetManager.get(key);
 		}
 
+		/**
+		 * Returns a snapshot of the histogram of key's transfer times (not rates), or null if there are none.
+		 */
+		public static Histogram timeHistogram(String key) {
+			TransferRateInterval entry = get(key);
+			return entry == null ? null : entry.timeHistogram();
+		}
+
 		/**
 		 * Reset all sample sets.
 		 */
@@ -349,6 +566,11 @@ public class SampledStatistic {
 		 */
 		public static String statString() { return mSampleSetManager.statString(); }
 
+		/**
+		 * Returns String with the percentiles of the rate samples for all keys
+		 */
+		public static String percentileString() { return mSampleSetManager.percentileString(); }
+
 		/**
 		 * Returns String with summary information on all keys.  In comparison
 		 * with statString(), the returned string is shorter: it contains just mean
@@ -0,0 +1,81 @@
+package edu.uw.cs.cse461.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Paces a sender to an average rate, allowing short bursts above it.  Tokens accumulate at rate per
+ * second, up to burst of them; sending n units (bytes, packets, whatever the caller is counting) takes
+ * n tokens, waiting for them if they aren't there yet.
+ * <p>
+ * Waits are made by parking the thread, which on most systems can oversleep by tens of microseconds.
+ * That's why the burst matters: tokens that accumulate while the sender oversleeps are spent straight
+ * away afterwards, so the average rate holds even when single waits are too long.  A burst of a few
+ * packets' worth is usually enough.
+ * <p>
+ * A TokenBucket is meant to be used by one thread at a time.
+ *
+ * @author grahamb5
+ */
+public class TokenBucket {
+	private final double mRate;
+	private final double mBurst;
+	// tokens on hand as of mLastTime; negative while a sender is paying off a debt
+	private double mTokens;
+	private long mLastTime;
+
+	/**
+	 * @param rate Tokens added per second.  0 (or less) means unlimited: acquire() never waits.
+	 * @param burst Most tokens that can accumulate.  Also the most acquire() can be asked for
+	 *  without waiting, when the bucket is full.
+	 */
+	public TokenBucket(double rate, long burst) {
+		if ( rate > 0 && burst <= 0 ) throw new IllegalArgumentException("burst must be positive");
+		mRate = rate;
+		mBurst = burst;
+		mTokens = burst;
+		mLastTime = System.nanoTime();
+	}
+
+	/**
+	 * True if this bucket never makes a sender wait.
+	 */
+	public boolean isUnlimited() {
+		return mRate <= 0;
+	}
+
+	/**
+	 * Takes n tokens, first waiting until they've accumulated if necessary.  n may be larger than the
+	 * burst; the wait is then however long it takes to earn the shortfall.
+	 * @throws InterruptedException If the thread is interrupted while it waits
+	 */
+	public void acquire(long n) throws InterruptedException {
+		if ( mRate <= 0 ) return;
+		refill();
+		mTokens -= n;
+		while ( mTokens < 0 ) {
+			LockSupport.parkNanos(this, (long)(-mTokens / mRate * TimeUnit.SECONDS.toNanos(1)));
+			if ( Thread.interrupted() ) throw new InterruptedException();
+			refill();
+		}
+	}
+
+	/**
+	 * Refills the bucket, as if it had been idle, so the next sender can start with a full burst.
+	 */
+	public void reset() {
+		mTokens = mBurst;
+		mLastTime = System.nanoTime();
+	}
+
+	private void refill() {
+		long now = System.nanoTime();
+		mTokens = Math.min(mBurst, mTokens + (now - mLastTime) * mRate / TimeUnit.SECONDS.toNanos(1));
+		mLastTime = now;
+	}
+
+	@Override
+	public String toString() {
+		return mRate <= 0 ? "unlimited" : String.format("%.0f/sec., burst %.0f", mRate, mBurst);
+	}
+}